@@ -0,0 +1,55 @@
+package org.gusdb.sitesearch.service;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.gusdb.sitesearch.service.Fixtures.CountingNullOutputStream;
+import org.gusdb.sitesearch.service.solr.ExportRowParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of SOLR cursorMark pages into export rows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportRowBenchmark {
+
+  @Param({ "export-page-100", "export-page-1000", "export-page-10000" })
+  public String fixture;
+
+  private byte[] _page;
+
+  @Setup
+  public void setup() {
+    _page = Fixtures.readBytes(fixture);
+  }
+
+  @Benchmark
+  public long writeRows() throws IOException {
+    CountingNullOutputStream out = new CountingNullOutputStream();
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(out))) {
+      ExportRowParser.writeRows(new InputStreamReader(new ByteArrayInputStream(_page), StandardCharsets.UTF_8), writer);
+    }
+    return out.getCount();
+  }
+}
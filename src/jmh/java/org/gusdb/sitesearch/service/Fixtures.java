@@ -0,0 +1,118 @@
+package org.gusdb.sitesearch.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gusdb.fgputil.solr.Solr;
+import org.gusdb.fgputil.solr.Solr.HttpMethod;
+import org.gusdb.fgputil.solr.SolrResponse;
+import org.gusdb.sitesearch.service.metadata.Metadata;
+import org.gusdb.sitesearch.service.solr.CircuitBreaker;
+import org.gusdb.sitesearch.service.solr.SolrCoreClient;
+import org.gusdb.sitesearch.service.solr.SolrTransport;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Loads the recorded SOLR responses and service requests in
+ * src/jmh/resources/fixtures.  SOLR responses are parsed the same way the
+ * service parses them: they are served from a local HTTP server and fetched
+ * through SolrTransport, so benchmarks operate on real SolrResponse objects.
+ */
+public class Fixtures {
+
+  private static final String FIXTURE_CORE = "fixtures";
+
+  public static byte[] readBytes(String name) {
+    try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name + ".json")) {
+      if (in == null) {
+        throw new IllegalArgumentException("No fixture named " + name);
+      }
+      return in.readAllBytes();
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public static String readString(String name) {
+    return new String(readBytes(name), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param names names of SOLR response fixtures
+   * @return map from fixture name to parsed response
+   */
+  public static Map<String,SolrResponse> loadSolrResponses(String... names) {
+    HttpServer server = startServer();
+    try (SolrTransport transport = new SolrTransport(
+        "http://localhost:" + server.getAddress().getPort(), 1, 1, 5000, 30000, 30000)) {
+      SolrCoreClient solr = new SolrCoreClient(transport, FIXTURE_CORE,
+          new CircuitBreaker(FIXTURE_CORE, 10, 10, 0, 30000, 5000));
+      Map<String,SolrResponse> responses = new HashMap<>();
+      for (String name : names) {
+        String query = "fixture=" + name;
+        responses.put(name, solr.executeQuery(HttpMethod.GET, query,
+            response -> Solr.parseResponse(query, response)));
+      }
+      return responses;
+    }
+    finally {
+      server.stop(0);
+    }
+  }
+
+  public static Metadata loadMetadata() {
+    Map<String,SolrResponse> responses = loadSolrResponses("document-categories", "document-fields");
+    return new Metadata(responses.get("document-categories"), responses.get("document-fields"));
+  }
+
+  // serves /fixtures/select?fixture=<name> with the named fixture
+  private static HttpServer startServer() {
+    try {
+      HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.createContext("/" + FIXTURE_CORE + "/select", exchange -> {
+        String name = exchange.getRequestURI().getQuery().substring("fixture=".length());
+        byte[] body = readBytes(name);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      });
+      server.start();
+      return server;
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Output stream which discards its input but counts bytes written
+   */
+  public static class CountingNullOutputStream extends OutputStream {
+
+    private long _count;
+
+    @Override
+    public void write(int b) {
+      _count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      _count += len;
+    }
+
+    public long getCount() {
+      return _count;
+    }
+  }
+}
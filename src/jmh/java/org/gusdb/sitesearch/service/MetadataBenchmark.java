@@ -0,0 +1,68 @@
+package org.gusdb.sitesearch.service;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.gusdb.fgputil.Tuples.TwoTuple;
+import org.gusdb.fgputil.solr.SolrResponse;
+import org.gusdb.sitesearch.service.metadata.FieldSet;
+import org.gusdb.sitesearch.service.metadata.Metadata;
+import org.gusdb.sitesearch.service.request.SearchRequest;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Construction of Metadata from the recorded document-categories and
+ * document-fields responses, and the per-request search field lookup
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+
+  @Param({ "search-request-simple", "search-request-filtered" })
+  public String requestFixture;
+
+  private SolrResponse _categories;
+  private SolrResponse _fields;
+  private Metadata _metadata;
+  private SearchRequest _request;
+
+  @Setup
+  public void setup() {
+    Map<String,SolrResponse> responses = Fixtures.loadSolrResponses("document-categories", "document-fields");
+    _categories = responses.get("document-categories");
+    _fields = responses.get("document-fields");
+    _metadata = construct();
+    _request = new SearchRequest(new JSONObject(Fixtures.readString(requestFixture)), true, false, false);
+  }
+
+  @Benchmark
+  public Metadata construct() {
+    return new Metadata(_categories, _fields);
+  }
+
+  @Benchmark
+  public TwoTuple<FieldSet,Boolean> searchFields() {
+    return _metadata.getSearchFields(_request, true);
+  }
+
+  @Benchmark
+  public SearchRequest validateRequest() {
+    _metadata.validateRequest(_request);
+    return _request;
+  }
+}
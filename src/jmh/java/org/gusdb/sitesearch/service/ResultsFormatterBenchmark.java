@@ -0,0 +1,70 @@
+package org.gusdb.sitesearch.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.gusdb.fgputil.solr.SolrResponse;
+import org.gusdb.sitesearch.service.Fixtures.CountingNullOutputStream;
+import org.gusdb.sitesearch.service.metadata.FacetCounts;
+import org.gusdb.sitesearch.service.metadata.Metadata;
+import org.gusdb.sitesearch.service.request.SearchRequest;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting of search responses (with facets and highlighting) into the
+ * service's response JSON
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultsFormatterBenchmark {
+
+  @Param({ "search-response-10", "search-response-50" })
+  public String fixture;
+
+  @Param({ "false", "true" })
+  public boolean pretty;
+
+  private Metadata _metadata;
+  private SolrResponse _response;
+  private FacetCounts _facets;
+
+  @Setup
+  public void setup() {
+    _metadata = Fixtures.loadMetadata();
+    _response = Fixtures.loadSolrResponses(fixture).get(fixture);
+    SearchRequest request = new SearchRequest(new JSONObject(Fixtures.readString("search-request-filtered")), true, false, false);
+    _facets = new FacetCounts();
+    _facets.setDocTypeFacetCounts(_response.getFacetCounts());
+    _facets.setOrganismFacetCounts(request.getRestrictMetadataToOrganisms(), _response.getFacetCounts());
+    _facets.setFieldFacetCounts(request.getDocTypeFilter(), _response.getFacetQueryResults());
+  }
+
+  @Benchmark
+  public long writeResults() throws IOException {
+    CountingNullOutputStream out = new CountingNullOutputStream();
+    StreamingJsonWriter writer = new StreamingJsonWriter(
+        new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), pretty);
+    ResultsFormatter.writeResults(_metadata, _facets, _response.getTotalCount(),
+        ResultsFormatter.getResultDocuments(_metadata, _response), false, Optional.empty(), Optional.empty(), 0, writer);
+    return out.getCount();
+  }
+}
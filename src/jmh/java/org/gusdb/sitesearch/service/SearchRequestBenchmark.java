@@ -0,0 +1,51 @@
+package org.gusdb.sitesearch.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gusdb.sitesearch.service.request.SearchRequest;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of search request bodies, as done for every POST to /
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchRequestBenchmark {
+
+  @Param({ "search-request-simple", "search-request-filtered" })
+  public String fixture;
+
+  private String _body;
+  private SearchRequest _request;
+
+  @Setup
+  public void setup() {
+    _body = Fixtures.readString(fixture);
+    _request = parse();
+  }
+
+  @Benchmark
+  public SearchRequest parse() {
+    return new SearchRequest(new JSONObject(_body), true, false, false);
+  }
+
+  @Benchmark
+  public String normalizedKey() {
+    return _request.getNormalizedKey();
+  }
+}
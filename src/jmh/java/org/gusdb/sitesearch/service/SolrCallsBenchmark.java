@@ -0,0 +1,52 @@
+package org.gusdb.sitesearch.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gusdb.sitesearch.service.metadata.Metadata;
+import org.gusdb.sitesearch.service.request.SearchRequest;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building of the SOLR query strings sent for searches and exports
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SolrCallsBenchmark {
+
+  @Param({ "search-request-simple", "search-request-filtered" })
+  public String requestFixture;
+
+  private Metadata _metadata;
+  private SearchRequest _request;
+
+  @Setup
+  public void setup() {
+    _metadata = Fixtures.loadMetadata();
+    _request = new SearchRequest(new JSONObject(Fixtures.readString(requestFixture)), true, false, false);
+  }
+
+  @Benchmark
+  public String searchQuery() {
+    return SolrCalls.buildSearchQuery(_request, _metadata);
+  }
+
+  @Benchmark
+  public String exportQuery() {
+    return SolrCalls.buildExportQuery(_request, _metadata);
+  }
+}
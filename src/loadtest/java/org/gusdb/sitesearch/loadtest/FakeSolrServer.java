@@ -0,0 +1,321 @@
+package org.gusdb.sitesearch.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for SOLR serving a SyntheticCorpus.  It answers the requests the
+ * service makes (select, suggest and admin/cores) with responses of the right
+ * shape and size, after a configurable delay.  It does not really search:
+ * the number of matches is derived from a hash of the query, and matching
+ * documents are a deterministic slice of the corpus.
+ */
+public class FakeSolrServer implements AutoCloseable {
+
+  private static final Pattern DOC_TYPE_FILTER = Pattern.compile("^document-type:\\((.+)\\)$");
+  private static final Pattern FACET_QUERY_KEY = Pattern.compile("key=([^ }]+)");
+  private static final String INDEX_VERSION = "1";
+
+  private final SyntheticCorpus _corpus;
+  private final String _core;
+  private final int _latencyMillis;
+  private final int _jitterMillis;
+  private final HttpServer _server;
+  private final ExecutorService _executor;
+
+  /**
+   * @param corpus corpus to serve
+   * @param core name of the core to serve it under
+   * @param port port on which to listen (0 for any free port)
+   * @param latencyMillis minimum delay before each response
+   * @param jitterMillis maximum random delay added to latencyMillis
+   */
+  public FakeSolrServer(SyntheticCorpus corpus, String core, int port, int latencyMillis, int jitterMillis) throws IOException {
+    _corpus = corpus;
+    _core = core;
+    _latencyMillis = latencyMillis;
+    _jitterMillis = jitterMillis;
+    _server = HttpServer.create(new InetSocketAddress(port), 0);
+    _server.createContext("/" + core + "/select", exchange -> handle(exchange, this::select));
+    // the service sends suggest requests to the base URL rather than the core
+    _server.createContext("/suggest", exchange -> handle(exchange, this::suggest));
+    _server.createContext("/admin/cores", exchange -> handle(exchange, this::coreStatus));
+    _executor = Executors.newCachedThreadPool();
+    _server.setExecutor(_executor);
+    _server.start();
+  }
+
+  public String getUrl() {
+    return "http://localhost:" + _server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    _server.stop(0);
+    _executor.shutdownNow();
+  }
+
+  private interface Handler {
+    String respond(Map<String,List<String>> params);
+  }
+
+  private void handle(HttpExchange exchange, Handler handler) throws IOException {
+    try {
+      String query = exchange.getRequestMethod().equals("POST") ?
+          new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8) :
+          exchange.getRequestURI().getRawQuery();
+      delay();
+      byte[] body = handler.respond(parseParams(query)).getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+    catch (RuntimeException e) {
+      byte[] body = new JSONObject().put("error", new JSONObject().put("msg", e.toString())).toString()
+          .getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(500, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+
+  private void delay() {
+    int millis = _latencyMillis + (_jitterMillis > 0 ? ThreadLocalRandom.current().nextInt(_jitterMillis + 1) : 0);
+    if (millis <= 0) return;
+    try {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static Map<String,List<String>> parseParams(String query) {
+    Map<String,List<String>> params = new HashMap<>();
+    if (query == null || query.isEmpty()) return params;
+    for (String pair : query.split("&")) {
+      int eq = pair.indexOf('=');
+      String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+      String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+      params.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+    }
+    return params;
+  }
+
+  private static String param(Map<String,List<String>> params, String name, String defaultValue) {
+    List<String> values = params.get(name);
+    return values == null || values.isEmpty() ? defaultValue : values.get(0);
+  }
+
+  private static List<String> params(Map<String,List<String>> params, String name) {
+    return params.getOrDefault(name, List.of());
+  }
+
+  private static JSONObject header(int qTime) {
+    return new JSONObject().put("status", 0).put("QTime", qTime);
+  }
+
+  private String select(Map<String,List<String>> params) {
+
+    // metadata documents and doc type filter
+    String docTypeFilter = null;
+    for (String fq : params(params, "fq")) {
+      Matcher matcher = DOC_TYPE_FILTER.matcher(fq);
+      if (matcher.matches()) docTypeFilter = matcher.group(1);
+    }
+    if ("document-categories".equals(docTypeFilter)) return metadataResponse(_corpus.getCategoriesJson());
+    if ("document-fields".equals(docTypeFilter)) return metadataResponse(_corpus.getFieldsJson());
+
+    // suggestion term loading (facet on a single field, no rows)
+    if (param(params, "rows", "10").equals("0") && param(params, "q", "").equals("*:*") &&
+        params.containsKey("facet.field")) {
+      return suggestionTermsResponse(param(params, "facet.field", ""), Integer.parseInt(param(params, "facet.limit", "1000")));
+    }
+
+    int docTypeIndex = docTypeFilter == null ? -1 : _corpus.getDocTypes().indexOf(docTypeFilter);
+    // searches pass their text in userq, referenced by local params in q
+    String q = param(params, "userq", param(params, "q", "*"));
+    long numFound = getNumFound(q, docTypeIndex);
+    int rows = Integer.parseInt(param(params, "rows", "10"));
+
+    // cursor paging without facets is an export; with facets, a page of search results
+    String cursorMark = param(params, "cursorMark", null);
+    if (cursorMark != null && !params.containsKey("facet")) {
+      return exportPage(q, docTypeIndex, numFound, rows, cursorMark);
+    }
+    long start = cursorMark == null ? Long.parseLong(param(params, "start", "0")) : getCursorPage(cursorMark) * rows;
+    return searchResponse(params, q, docTypeIndex, numFound, start, rows);
+  }
+
+  // cursor marks are "p<pageNumber>"; as in SOLR, the mark repeats once results are exhausted
+  private static long getCursorPage(String cursorMark) {
+    return cursorMark.equals("*") ? 0 : Long.parseLong(cursorMark.substring(1));
+  }
+
+  private static String getNextCursorMark(String cursorMark, long first, long end) {
+    return first >= end ? cursorMark : "p" + (getCursorPage(cursorMark) + 1);
+  }
+
+  private String metadataResponse(JSONArray blob) {
+    return new JSONObject()
+      .put("responseHeader", header(1))
+      .put("response", new JSONObject()
+        .put("numFound", 1).put("start", 0)
+        .put("docs", new JSONArray().put(new JSONObject().put("json-blob", blob))))
+      .toString();
+  }
+
+  private String suggestionTermsResponse(String field, int limit) {
+    JSONArray counts = new JSONArray();
+    List<String> words = _corpus.getVocabulary();
+    for (int i = 0; i < Math.min(limit, words.size()); i++) {
+      counts.put(words.get(i)).put(words.size() - i);
+    }
+    return new JSONObject()
+      .put("responseHeader", header(5))
+      .put("response", new JSONObject().put("numFound", _corpus.getNumDocs()).put("start", 0).put("docs", new JSONArray()))
+      .put("facet_counts", new JSONObject()
+        .put("facet_queries", new JSONObject())
+        .put("facet_fields", new JSONObject().put(field, counts)))
+      .toString();
+  }
+
+  // between 1/2 and 1/100 of the (filtered) corpus, depending on the query
+  private long getNumFound(String q, int docTypeIndex) {
+    long candidates = docTypeIndex < 0 ? _corpus.getNumDocs() : _corpus.getNumDocs() / _corpus.getDocTypes().size();
+    return candidates / (2 + Math.floorMod(q.hashCode(), 99));
+  }
+
+  // index in the corpus of the rank'th match of a query
+  private long getMatch(String q, int docTypeIndex, long rank) {
+    int numTypes = _corpus.getDocTypes().size();
+    long numDocs = _corpus.getNumDocs();
+    long base = Math.floorMod(q.hashCode(), numDocs);
+    if (docTypeIndex < 0) return (base + rank) % numDocs;
+    long numOfType = numDocs / numTypes;
+    return ((base / numTypes + rank) % numOfType) * numTypes + docTypeIndex;
+  }
+
+  private static double getScore(long numFound, long rank) {
+    return 40.0 * (numFound - rank) / numFound;
+  }
+
+  private String searchResponse(Map<String,List<String>> params, String q, int docTypeIndex,
+      long numFound, long start, int rows) {
+    JSONArray docs = new JSONArray();
+    JSONObject highlighting = new JSONObject();
+    String searchTerm = q.replaceAll("\\{![^}]*\\}", "").split(" ")[0];
+    for (long rank = start; rank < Math.min(numFound, start + rows); rank++) {
+      long index = getMatch(q, docTypeIndex, rank);
+      docs.put(_corpus.getDocument(index, getScore(numFound, rank)));
+      String docType = _corpus.getDocType(index);
+      highlighting.put(_corpus.getId(index), new JSONObject()
+        .put(_corpus.getFieldName(docType, 0), new JSONArray().put("<em>" + searchTerm + "</em> of " + docType))
+        .put(_corpus.getFieldName(docType, 1), new JSONArray().put("... <em>" + searchTerm + "</em> ...")));
+    }
+
+    // facets: split matches evenly across doc types and (decreasingly) across organisms
+    JSONArray docTypeCounts = new JSONArray();
+    List<String> docTypes = _corpus.getDocTypes();
+    for (int i = 0; i < docTypes.size(); i++) {
+      long count = docTypeIndex < 0 ? numFound / docTypes.size() : i == docTypeIndex ? numFound : 0;
+      docTypeCounts.put(docTypes.get(i)).put(count);
+    }
+    JSONArray organismCounts = new JSONArray();
+    List<String> organisms = _corpus.getOrganisms();
+    for (int i = 0; i < organisms.size(); i++) {
+      organismCounts.put(organisms.get(i)).put(numFound / (i + 2));
+    }
+    JSONObject facetQueries = new JSONObject();
+    int i = 0;
+    for (String facetQuery : params(params, "facet.query")) {
+      Matcher key = FACET_QUERY_KEY.matcher(facetQuery);
+      facetQueries.put(key.find() ? key.group(1) : facetQuery, numFound / (++i + 1));
+    }
+
+    JSONObject response = new JSONObject()
+      .put("responseHeader", header(10 + (int)Math.min(1000, numFound / 100000)))
+      .put("response", new JSONObject()
+        .put("numFound", numFound).put("start", start).put("maxScore", 40.0).put("docs", docs))
+      .put("facet_counts", new JSONObject()
+        .put("facet_queries", facetQueries)
+        .put("facet_fields", new JSONObject()
+          .put("document-type", docTypeCounts)
+          .put("organismsForFilter", organismCounts)));
+    if (param(params, "hl", "false").equals("true")) {
+      response.put("highlighting", highlighting);
+    }
+    if (params.containsKey("cursorMark")) {
+      response.put("nextCursorMark", getNextCursorMark(param(params, "cursorMark", "*"),
+          start, Math.min(numFound, start + rows)));
+    }
+    return response.toString();
+  }
+
+  private String exportPage(String q, int docTypeIndex, long numFound, int rows, String cursorMark) {
+    long first = getCursorPage(cursorMark) * rows;
+    long end = Math.min(numFound, first + rows);
+    StringBuilder out = new StringBuilder(64 * (int)Math.max(0, end - first) + 256);
+    out.append("{\"response\":{\"numFound\":").append(numFound).append(",\"start\":0,\"docs\":[");
+    for (long rank = first; rank < end; rank++) {
+      long index = getMatch(q, docTypeIndex, rank);
+      if (rank > first) out.append(',');
+      out.append("{\"primaryKey\":[").append(JSONObject.quote(_corpus.getSourceId(index)))
+         .append(',').append(JSONObject.quote(_corpus.getProject(index)))
+         .append("],\"score\":").append(getScore(numFound, rank))
+         .append(",\"project\":").append(JSONObject.quote(_corpus.getProject(index))).append('}');
+    }
+    out.append("]},\"nextCursorMark\":")
+       .append(JSONObject.quote(getNextCursorMark(cursorMark, first, end))).append('}');
+    return out.toString();
+  }
+
+  private String suggest(Map<String,List<String>> params) {
+    String text = param(params, "suggest.q", "");
+    int count = Integer.parseInt(param(params, "suggest.count", "10"));
+    String prefix = text.toLowerCase().trim();
+    JSONArray suggestions = new JSONArray();
+    List<String> words = _corpus.getVocabulary();
+    for (int i = 0; i < words.size() && suggestions.length() < count; i++) {
+      if (words.get(i).startsWith(prefix)) {
+        suggestions.put(new JSONObject().put("term", words.get(i)).put("weight", words.size() - i).put("payload", ""));
+      }
+    }
+    return new JSONObject()
+      .put("responseHeader", header(2))
+      .put("suggest", new JSONObject().put("default", new JSONObject().put(text, new JSONObject()
+        .put("numFound", suggestions.length())
+        .put("suggestions", suggestions))))
+      .toString();
+  }
+
+  private String coreStatus(Map<String,List<String>> params) {
+    return new JSONObject()
+      .put("responseHeader", header(0))
+      .put("status", new JSONObject().put(_core, new JSONObject()
+        .put("name", _core)
+        .put("index", new JSONObject().put("version", INDEX_VERSION).put("numDocs", _corpus.getNumDocs()))))
+      .toString();
+  }
+}
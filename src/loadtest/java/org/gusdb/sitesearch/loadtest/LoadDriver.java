@@ -0,0 +1,189 @@
+package org.gusdb.sitesearch.loadtest;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.gusdb.fgputil.web.MimeTypes;
+import org.json.JSONObject;
+
+/**
+ * Sends requests of one workload to a running service from a fixed number of
+ * concurrent clients, each issuing its next request as soon as the previous
+ * one completes, and reports throughput and latency percentiles.
+ */
+public class LoadDriver {
+
+  public enum Workload { SEARCH, STREAM, SUGGEST }
+
+  public static class Result {
+
+    private final Workload _workload;
+    private final int _concurrency;
+    private final double _seconds;
+    private final long[] _latencyNanos;
+    private final long _errors;
+    private final long _bytes;
+
+    private Result(Workload workload, int concurrency, double seconds, long[] latencyNanos, long errors, long bytes) {
+      _workload = workload;
+      _concurrency = concurrency;
+      _seconds = seconds;
+      _latencyNanos = latencyNanos;
+      _errors = errors;
+      _bytes = bytes;
+      Arrays.sort(_latencyNanos);
+    }
+
+    private double percentileMillis(double percentile) {
+      if (_latencyNanos.length == 0) return 0;
+      int index = (int)Math.ceil(percentile / 100 * _latencyNanos.length) - 1;
+      return _latencyNanos[Math.max(0, index)] / 1e6;
+    }
+
+    public static String getHeader() {
+      return String.format("%-8s %6s %9s %7s %10s %9s %9s %9s %9s %9s",
+          "workload", "conc", "requests", "errors", "req/s", "MB/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-8s %6d %9d %7d %10.1f %9.2f %9.1f %9.1f %9.1f %9.1f",
+          _workload.name().toLowerCase(), _concurrency, _latencyNanos.length, _errors,
+          _latencyNanos.length / _seconds, _bytes / _seconds / 1e6,
+          percentileMillis(50), percentileMillis(90), percentileMillis(99), percentileMillis(100));
+    }
+  }
+
+  private final String _serviceUrl;
+  private final SyntheticCorpus _corpus;
+  private final HttpClient _client;
+
+  /**
+   * @param serviceUrl base URL of the service under test
+   * @param corpus corpus served to the service, from which request terms are drawn
+   */
+  public LoadDriver(String serviceUrl, SyntheticCorpus corpus) {
+    _serviceUrl = serviceUrl.endsWith("/") ? serviceUrl : serviceUrl + "/";
+    _corpus = corpus;
+    _client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+  }
+
+  /**
+   * Runs a workload, discarding results gathered during warmup
+   *
+   * @param workload kind of requests to send
+   * @param concurrency number of concurrent clients
+   * @param warmupSecs seconds to run before measuring
+   * @param durationSecs seconds to measure
+   * @return measurements
+   */
+  public Result run(Workload workload, int concurrency, int warmupSecs, int durationSecs) throws InterruptedException {
+    AtomicBoolean measuring = new AtomicBoolean(false);
+    AtomicBoolean stopped = new AtomicBoolean(false);
+    List<List<Long>> latencies = new ArrayList<>();
+    long[] errors = new long[concurrency];
+    long[] bytes = new long[concurrency];
+    List<Thread> clients = new ArrayList<>();
+    for (int i = 0; i < concurrency; i++) {
+      List<Long> clientLatencies = new ArrayList<>();
+      latencies.add(clientLatencies);
+      int client = i;
+      Thread thread = new Thread(() -> {
+        while (!stopped.get()) {
+          long start = System.nanoTime();
+          long received = send(workload);
+          boolean measured = measuring.get();
+          if (!measured) continue;
+          if (received < 0) {
+            errors[client]++;
+          }
+          else {
+            clientLatencies.add(System.nanoTime() - start);
+            bytes[client] += received;
+          }
+        }
+      }, "load-client-" + i);
+      thread.setDaemon(true);
+      clients.add(thread);
+      thread.start();
+    }
+    Thread.sleep(warmupSecs * 1000L);
+    measuring.set(true);
+    long start = System.nanoTime();
+    Thread.sleep(durationSecs * 1000L);
+    measuring.set(false);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    stopped.set(true);
+    for (Thread client : clients) {
+      client.join();
+    }
+    return new Result(workload, concurrency, seconds,
+        latencies.stream().flatMap(List::stream).mapToLong(Long::longValue).toArray(),
+        Arrays.stream(errors).sum(), Arrays.stream(bytes).sum());
+  }
+
+  // returns number of bytes received, or -1 on error
+  private long send(Workload workload) {
+    try {
+      HttpResponse<InputStream> response = _client.send(buildRequest(workload), HttpResponse.BodyHandlers.ofInputStream());
+      long received = 0;
+      try (InputStream body = response.body()) {
+        byte[] buffer = new byte[8192];
+        for (int count; (count = body.read(buffer)) != -1; ) {
+          received += count;
+        }
+      }
+      return response.statusCode() == 200 ? received : -1;
+    }
+    catch (Exception e) {
+      return -1;
+    }
+  }
+
+  private HttpRequest buildRequest(Workload workload) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    List<String> words = _corpus.getVocabulary();
+    String word = words.get(random.nextInt(words.size()));
+    List<String> docTypes = _corpus.getDocTypes();
+    String docType = docTypes.get(random.nextInt(docTypes.size()));
+    switch (workload) {
+      case SEARCH:
+        JSONObject search = new JSONObject()
+          .put("searchText", word)
+          .put("pagination", new JSONObject().put("offset", 20 * random.nextInt(3)).put("numRecords", 20));
+        if (random.nextInt(3) == 0) {
+          search.put("documentTypeFilter", new JSONObject().put("documentType", docType));
+        }
+        return post(search, "application/json");
+      case STREAM:
+        return post(new JSONObject()
+          .put("searchText", word)
+          .put("documentTypeFilter", new JSONObject().put("documentType", docType)), MimeTypes.ND_JSON);
+      case SUGGEST:
+        String prefix = word.substring(0, Math.min(word.length(), 3 + random.nextInt(3)));
+        return HttpRequest.newBuilder(URI.create(_serviceUrl + "suggest?searchText=" +
+            URLEncoder.encode(prefix, StandardCharsets.UTF_8))).GET().build();
+      default:
+        throw new IllegalArgumentException("Unsupported workload " + workload);
+    }
+  }
+
+  private HttpRequest post(JSONObject body, String accept) {
+    return HttpRequest.newBuilder(URI.create(_serviceUrl))
+      .header("Content-Type", "application/json")
+      .header("Accept", accept)
+      .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+      .build();
+  }
+}
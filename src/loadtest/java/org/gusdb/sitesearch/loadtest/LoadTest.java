@@ -0,0 +1,147 @@
+package org.gusdb.sitesearch.loadtest;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gusdb.sitesearch.loadtest.LoadDriver.Result;
+import org.gusdb.sitesearch.loadtest.LoadDriver.Workload;
+import org.gusdb.sitesearch.service.server.Server;
+
+/**
+ * Offline load test of the service against a FakeSolrServer serving a
+ * SyntheticCorpus.  Modes:
+ *
+ * run       (default) starts the fake SOLR and the service (in a child JVM
+ *           on the same classpath), then runs each workload at each
+ *           concurrency level and prints a results table
+ * fake-solr starts only the fake SOLR, e.g. to test a separately started service
+ * drive     runs the workloads against an already running service (--service)
+ *
+ * Options (with defaults): --docs=1000000 --docTypes=6 --organisms=50
+ * --projects=6 --fields=8 --vocabulary=20000 --seed=1 --core=site_search
+ * --solrPort=0 --solrLatencyMs=5 --solrJitterMs=5 --service=http://localhost:8080
+ * --servicePort=0 --workloads=search,suggest,stream --concurrency=1,8,32
+ * --warmupSecs=10 --durationSecs=30
+ */
+public class LoadTest {
+
+  public static void main(String[] args) throws Exception {
+    String mode = args.length > 0 && !args[0].startsWith("--") ? args[0] : "run";
+    Map<String,String> options = parseOptions(args);
+    SyntheticCorpus corpus = new SyntheticCorpus(
+        Long.parseLong(options.getOrDefault("docs", "1000000")),
+        Integer.parseInt(options.getOrDefault("docTypes", "6")),
+        Integer.parseInt(options.getOrDefault("organisms", "50")),
+        Integer.parseInt(options.getOrDefault("projects", "6")),
+        Integer.parseInt(options.getOrDefault("fields", "8")),
+        Integer.parseInt(options.getOrDefault("vocabulary", "20000")),
+        Long.parseLong(options.getOrDefault("seed", "1")));
+    String core = options.getOrDefault("core", "site_search");
+
+    switch (mode) {
+      case "fake-solr":
+        FakeSolrServer solr = startSolr(corpus, core, options);
+        System.out.println("Fake SOLR serving core '" + core + "' at " + solr.getUrl() + "; Ctrl-C to stop");
+        Thread.currentThread().join();
+        break;
+      case "drive":
+        drive(new LoadDriver(options.getOrDefault("service", "http://localhost:8080"), corpus), options);
+        break;
+      case "run":
+        try (FakeSolrServer fakeSolr = startSolr(corpus, core, options)) {
+          int port = Integer.parseInt(options.getOrDefault("servicePort", "0"));
+          if (port == 0) port = findFreePort();
+          Process service = startService(fakeSolr.getUrl(), core, port);
+          try {
+            String serviceUrl = "http://localhost:" + port;
+            awaitService(serviceUrl);
+            drive(new LoadDriver(serviceUrl, corpus), options);
+          }
+          finally {
+            service.destroy();
+          }
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown mode '" + mode + "'; must be one of run, fake-solr, drive");
+    }
+  }
+
+  private static Map<String,String> parseOptions(String[] args) {
+    Map<String,String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--")) continue;
+      int eq = arg.indexOf('=');
+      if (eq < 0) throw new IllegalArgumentException("Option " + arg + " must be of the form --name=value");
+      options.put(arg.substring(2, eq), arg.substring(eq + 1));
+    }
+    return options;
+  }
+
+  private static FakeSolrServer startSolr(SyntheticCorpus corpus, String core, Map<String,String> options) throws IOException {
+    return new FakeSolrServer(corpus, core,
+        Integer.parseInt(options.getOrDefault("solrPort", "0")),
+        Integer.parseInt(options.getOrDefault("solrLatencyMs", "5")),
+        Integer.parseInt(options.getOrDefault("solrJitterMs", "5")));
+  }
+
+  private static int findFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static Process startService(String solrUrl, String core, int port) throws IOException {
+    ProcessBuilder builder = new ProcessBuilder(
+        System.getProperty("java.home") + "/bin/java",
+        "-cp", System.getProperty("java.class.path"),
+        Server.class.getName());
+    builder.environment().put("SOLR_URL", solrUrl);
+    builder.environment().put("SOLR_CORE", core);
+    builder.environment().put("SERVER_PORT", String.valueOf(port));
+    builder.inheritIO();
+    return builder.start();
+  }
+
+  // waits until the service has warmed up against the fake SOLR
+  private static void awaitService(String serviceUrl) throws InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request = HttpRequest.newBuilder(URI.create(serviceUrl + "/ready")).build();
+    long deadline = System.currentTimeMillis() + 180000;
+    while (System.currentTimeMillis() < deadline) {
+      try {
+        if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) return;
+      }
+      catch (IOException e) {
+        // not yet listening
+      }
+      Thread.sleep(500);
+    }
+    throw new IllegalStateException("Service at " + serviceUrl + " did not become ready within 180 seconds");
+  }
+
+  private static void drive(LoadDriver driver, Map<String,String> options) throws InterruptedException {
+    int warmupSecs = Integer.parseInt(options.getOrDefault("warmupSecs", "10"));
+    int durationSecs = Integer.parseInt(options.getOrDefault("durationSecs", "30"));
+    List<Result> results = new ArrayList<>();
+    for (String workload : options.getOrDefault("workloads", "search,suggest,stream").split(",")) {
+      for (String concurrency : options.getOrDefault("concurrency", "1,8,32").split(",")) {
+        Result result = driver.run(Workload.valueOf(workload.trim().toUpperCase()),
+            Integer.parseInt(concurrency.trim()), warmupSecs, durationSecs);
+        System.out.println(result);
+        results.add(result);
+      }
+    }
+    System.out.println();
+    System.out.println(Result.getHeader());
+    results.forEach(System.out::println);
+  }
+}
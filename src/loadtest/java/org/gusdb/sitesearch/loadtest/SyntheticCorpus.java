@@ -0,0 +1,218 @@
+package org.gusdb.sitesearch.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Deterministic synthetic site search corpus.  Metadata (document-categories
+ * and document-fields) is generated up front; documents are generated on
+ * demand from their index, so corpora of many millions of documents need no
+ * memory beyond the vocabulary.
+ */
+public class SyntheticCorpus {
+
+  private static final String[] DOC_TYPE_NAMES = {
+      "gene", "transcript", "pathway", "compound", "dataset", "organism",
+      "popsetSequence", "est", "search", "general" };
+
+  private static final String[] PROJECT_NAMES = {
+      "PlasmoDB", "ToxoDB", "CryptoDB", "TriTrypDB", "FungiDB", "VectorBase",
+      "AmoebaDB", "GiardiaDB", "HostDB", "MicrosporidiaDB", "PiroplasmaDB", "TrichDB" };
+
+  private static final String[] SYLLABLES = {
+      "ki", "na", "se", "pro", "te", "in", "phos", "pha", "ta", "trans", "por", "ter",
+      "ri", "bo", "so", "mal", "mem", "bra", "ne", "chap", "er", "one", "sur", "face",
+      "an", "ti", "gen", "hy", "dro", "lase", "syn", "thase", "re", "duc", "tase", "ox" };
+
+  private final long _seed;
+  private final long _numDocs;
+  private final List<String> _docTypes;
+  private final List<String> _organisms;
+  private final List<String> _projects;
+  private final int _fieldsPerType;
+  private final List<String> _vocabulary;
+
+  /**
+   * @param numDocs number of documents in the corpus
+   * @param numDocTypes number of document types (at most 10)
+   * @param numOrganisms number of distinct organisms
+   * @param numProjects number of projects (at most 12)
+   * @param fieldsPerType number of text fields of each document type
+   * @param vocabularySize number of distinct words used in document text
+   * @param seed seed making the corpus reproducible
+   */
+  public SyntheticCorpus(long numDocs, int numDocTypes, int numOrganisms, int numProjects,
+      int fieldsPerType, int vocabularySize, long seed) {
+    _seed = seed;
+    _numDocs = numDocs;
+    _docTypes = List.of(DOC_TYPE_NAMES).subList(0, Math.min(numDocTypes, DOC_TYPE_NAMES.length));
+    _projects = List.of(PROJECT_NAMES).subList(0, Math.min(numProjects, PROJECT_NAMES.length));
+    _fieldsPerType = fieldsPerType;
+    SplittableRandom random = new SplittableRandom(seed);
+    _organisms = new ArrayList<>();
+    for (int i = 0; i < numOrganisms; i++) {
+      _organisms.add(capitalize(word(random, 3)) + " " + word(random, 3) + " strain " + (i + 1));
+    }
+    _vocabulary = new ArrayList<>();
+    for (int i = 0; i < vocabularySize; i++) {
+      _vocabulary.add(word(random, 2 + random.nextInt(3)));
+    }
+  }
+
+  private static String word(SplittableRandom random, int numSyllables) {
+    StringBuilder word = new StringBuilder();
+    for (int i = 0; i < numSyllables; i++) {
+      word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+    }
+    return word.toString();
+  }
+
+  private static String capitalize(String word) {
+    return word.substring(0, 1).toUpperCase() + word.substring(1);
+  }
+
+  public long getNumDocs() {
+    return _numDocs;
+  }
+
+  public List<String> getDocTypes() {
+    return _docTypes;
+  }
+
+  public List<String> getOrganisms() {
+    return _organisms;
+  }
+
+  public List<String> getVocabulary() {
+    return _vocabulary;
+  }
+
+  public String getFieldName(String docType, int fieldIndex) {
+    return (isMultiText(fieldIndex) ? "MULTITEXT__" : "TEXT__") + docType + "_field" + fieldIndex;
+  }
+
+  private static boolean isMultiText(int fieldIndex) {
+    return fieldIndex % 3 == 2;
+  }
+
+  public List<String> getSearchFieldNames(String docType) {
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < _fieldsPerType; i++) {
+      names.add(getFieldName(docType, i));
+    }
+    return names;
+  }
+
+  /**
+   * @return json-blob value of the document-categories metadata document
+   */
+  public JSONArray getCategoriesJson() {
+    JSONArray categories = new JSONArray();
+    for (int i = 0; i < _docTypes.size(); i += 2) {
+      JSONArray docTypes = new JSONArray();
+      for (String docType : _docTypes.subList(i, Math.min(i + 2, _docTypes.size()))) {
+        docTypes.put(new JSONObject()
+          .put("id", docType)
+          .put("displayName", capitalize(docType))
+          .put("displayNamePlural", capitalize(docType) + "s")
+          .put("hasOrganismField", hasOrganism(docType))
+          .put("wdkSearchUrlName", capitalize(docType) + "sByText"));
+      }
+      categories.put(new JSONObject()
+        .put("name", "Category " + (i / 2 + 1))
+        .put("documentTypes", docTypes));
+    }
+    return categories;
+  }
+
+  /**
+   * @return json-blob value of the document-fields metadata document
+   */
+  public JSONArray getFieldsJson() {
+    JSONArray docTypes = new JSONArray();
+    for (String docType : _docTypes) {
+      JSONArray fields = new JSONArray();
+      for (int i = 0; i < _fieldsPerType; i++) {
+        fields.put(new JSONObject()
+          .put("name", getFieldName(docType, i))
+          .put("displayName", "Field " + i)
+          .put("isSummary", i < 4)
+          .put("isSubtitle", i == 0)
+          .put("boost", i == 0 ? 2 : 1));
+      }
+      docTypes.put(new JSONObject()
+        .put("document-type", docType)
+        .put("fields", fields));
+    }
+    return docTypes;
+  }
+
+  private boolean hasOrganism(String docType) {
+    return _docTypes.indexOf(docType) % 2 == 0;
+  }
+
+  public String getDocType(long index) {
+    return _docTypes.get((int)(index % _docTypes.size()));
+  }
+
+  public String getProject(long index) {
+    return _projects.get((int)((index / _docTypes.size()) % _projects.size()));
+  }
+
+  public String getSourceId(long index) {
+    return String.format("SYN_%010d", index);
+  }
+
+  public String getId(long index) {
+    return getDocType(index) + "__" + getSourceId(index) + "__" + getProject(index);
+  }
+
+  public String text(SplittableRandom random, int numWords) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < numWords; i++) {
+      if (i > 0) text.append(' ');
+      text.append(_vocabulary.get(random.nextInt(_vocabulary.size())));
+    }
+    return text.toString();
+  }
+
+  /**
+   * @param index index of the document in the corpus
+   * @param score score to assign the document
+   * @return the full SOLR document (all stored fields)
+   */
+  public JSONObject getDocument(long index, double score) {
+    SplittableRandom random = new SplittableRandom(_seed ^ (index * 0x9E3779B97F4A7C15L));
+    String docType = getDocType(index);
+    String sourceId = getSourceId(index);
+    String project = getProject(index);
+    JSONObject doc = new JSONObject()
+      .put("document-type", docType)
+      .put("id", getId(index))
+      .put("primaryKey", new JSONArray().put(sourceId).put(project))
+      .put("project", project)
+      .put("score", score)
+      .put("wdkPrimaryKeyString", sourceId)
+      .put("hyperlinkName", sourceId + " " + text(random, 2));
+    if (hasOrganism(docType)) {
+      doc.put("organismsForFilter", _organisms.get(random.nextInt(_organisms.size())));
+    }
+    for (int i = 0; i < _fieldsPerType; i++) {
+      if (isMultiText(i)) {
+        JSONArray values = new JSONArray();
+        for (int j = 1 + random.nextInt(4); j > 0; j--) {
+          values.put(text(random, 6));
+        }
+        doc.put(getFieldName(docType, i), values);
+      }
+      else {
+        doc.put(getFieldName(docType, i), text(random, 10));
+      }
+    }
+    return doc;
+  }
+}
@@ -1,8 +1,9 @@
 package org.gusdb.sitesearch.service;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
 import org.gusdb.fgputil.solr.Solr.Highlighting;
@@ -10,67 +11,180 @@ import org.gusdb.fgputil.solr.SolrResponse;
 import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
 import org.gusdb.sitesearch.service.metadata.DocumentField;
 import org.gusdb.sitesearch.service.metadata.DocumentType;
+import org.gusdb.sitesearch.service.metadata.FacetCounts;
 import org.gusdb.sitesearch.service.metadata.Metadata;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 public class ResultsFormatter {
 
   private static final Logger LOG = Logger.getLogger(ResultsFormatter.class);
 
-  public static JSONObject formatResults(Metadata meta, SolrResponse searchResults, Optional<String> restrictToProject) {
-    return new JSONObject()
-      .put("categories", meta.getCategoriesJson())
-      .put("documentTypes", meta.getDocumentTypesJson(restrictToProject))
-      .put("organismCounts", meta.getOrganismFacetCounts())
-      .put("fieldCounts", meta.getFieldCounts())
-      .put("searchResults", new JSONObject()
-        .put("totalCount", searchResults.getTotalCount())
-        .put("documents", getDocumentsJson(meta, searchResults.getDocuments(), searchResults.getHighlighting(), restrictToProject)));
+  /**
+   * Document of a search response whose type, primary key, score and matched
+   * fields have been looked up (see getResultDocuments())
+   */
+  public static class ResultDocument {
+
+    private final JSONObject _json;
+    private final DocumentType _docType;
+    private final JSONArray _primaryKey;
+    private final double _score;
+    private final Object _foundInFields;
+
+    private ResultDocument(JSONObject json, DocumentType docType, JSONArray primaryKey, double score, Object foundInFields) {
+      _json = json;
+      _docType = docType;
+      _primaryKey = primaryKey;
+      _score = score;
+      _foundInFields = foundInFields;
+    }
   }
 
-  private static JSONArray getDocumentsJson(Metadata meta, List<JSONObject> documents, Highlighting highlighting, Optional<String> restrictToProject) {
-    return new JSONArray(documents.stream()
+  /**
+   * Looks up everything about the documents of a search response which may be
+   * missing or invalid, so that this is done before any of the response is
+   * written; a malformed document then fails the request rather than
+   * truncating a response already under way.  Batch-meta documents are
+   * dropped.
+   *
+   * @param meta metadata of the searched core
+   * @param searchResults SOLR search response
+   * @return documents to write, in order
+   * @throws SiteSearchRuntimeException if a document is of an unknown type
+   * @throws JSONException if a document is missing a required field
+   */
+  public static List<ResultDocument> getResultDocuments(Metadata meta, SolrResponse searchResults) {
+    // highlighting is absent if the request disabled it
+    Highlighting highlighting = searchResults.getHighlighting();
+    List<ResultDocument> documents = new ArrayList<>();
+    for (JSONObject documentJson : searchResults.getDocuments()) {
       // filter out batch-meta documents
-      .filter(documentJson -> !(SolrCalls.BATCH_META_DOCTYPE.equals(documentJson.getString(SolrCalls.DOCUMENT_TYPE_FIELD))))
+      if (SolrCalls.BATCH_META_DOCTYPE.equals(documentJson.getString(SolrCalls.DOCUMENT_TYPE_FIELD))) {
+        continue;
+      }
+      DocumentType docType = meta.getDocumentType(documentJson.getString(SolrCalls.DOCUMENT_TYPE_FIELD))
+        .orElseThrow(() -> new SiteSearchRuntimeException("Unknown document type returned in document: " + documentJson.toString(2)));
+      documents.add(new ResultDocument(documentJson, docType,
+          documentJson.getJSONArray(SolrCalls.PRIMARY_KEY_FIELD),
+          documentJson.getDouble(SolrCalls.SCORE_FIELD),
+          highlighting == null ? null : highlighting.get(documentJson.getString(SolrCalls.ID_FIELD))));
+    }
+    return documents;
+  }
+
+  /**
+   * Writes the search response directly to the passed JSON writer; documents
+   * (see getResultDocuments()) are converted to summary JSON one at a time as
+   * they are written, and metadata is written from the metadata objects
+   * without building JSON objects first.  Values of multi-text summary fields
+   * longer than maxMultiTextLength (if > 0) are truncated.  If present,
+   * nextPageToken is the pagination.pageToken clients pass to request the
+   * following page.  Flags are written only when set: partialResults if SOLR
+   * ran out of time to find all matches, and facetsDegraded if field counts
+   * were dropped.
+   */
+  public static void writeResults(Metadata meta, FacetCounts facets, int totalCount, List<ResultDocument> documents,
+      boolean partialResults, Optional<String> restrictToProject, Optional<String> nextPageToken,
+      int maxMultiTextLength, StreamingJsonWriter out) throws IOException {
+    out.beginObject().key("categories");
+    meta.writeCategories(out);
+    out.key("documentTypes");
+    meta.writeDocumentTypes(restrictToProject, facets, out);
+    out.optField("organismCounts", facets.getOrganismFacetCounts())
+      .optField("fieldCounts", facets.getFieldCounts())
+      .optField("facetsDegraded", facets.isDegraded() ? true : null)
+      .key("searchResults").beginObject()
+        .key("totalCount").value(totalCount)
+        .optField("partialResults", partialResults ? true : null)
+        .key("documents");
+    writeDocuments(documents, restrictToProject, maxMultiTextLength, out);
+    out.optField("nextPageToken", nextPageToken.orElse(null))
+      .endObject().endObject();
+    out.flush();
+  }
+
+  /**
+   * Writes the total and facet counts of a search (see the /counts endpoint),
+   * flagged as by writeResults()
+   */
+  public static void writeCounts(FacetCounts facets, int totalCount, boolean partialResults,
+      StreamingJsonWriter out) throws IOException {
+    out.beginObject()
+      .key("totalCount").value(totalCount)
+      .optField("partialResults", partialResults ? true : null)
+      .key("documentTypeCounts").value(facets.getDocTypeCounts())
+      .optField("organismCounts", facets.getOrganismFacetCounts())
+      .optField("fieldCounts", facets.getFieldCounts())
+      .optField("facetsDegraded", facets.isDegraded() ? true : null)
+      .endObject();
+    out.flush();
+  }
+
+  private static void writeDocuments(List<ResultDocument> documents, Optional<String> restrictToProject,
+      int maxMultiTextLength, StreamingJsonWriter out) throws IOException {
+    out.beginArray();
+    for (ResultDocument document : documents) {
       // format raw document JSON to summary JSON
-      .map(documentJson -> {
-        //LOG.debug("Processing document: " + documentJson.toString(2));
-        DocumentType docType = meta.getDocumentType(documentJson.getString(SolrCalls.DOCUMENT_TYPE_FIELD))
-          .orElseThrow(() -> new SiteSearchRuntimeException("Unknown document type returned in document: " + documentJson.toString(2))); 
-        JSONArray primaryKey = documentJson.getJSONArray(SolrCalls.PRIMARY_KEY_FIELD);
-        JSONObject json = new JSONObject()
-          .put("documentType", docType.getId())
-          .put("primaryKey", primaryKey)
-          .put("project", documentJson.optString(SolrCalls.PROJECT_FIELD, null))
-          .put("organism", documentJson.optString(SolrCalls.ORGANISM_FIELD, null))
-          .put("score", documentJson.getDouble(SolrCalls.SCORE_FIELD))
-          .put("wdkPrimaryKeyString", documentJson.optString(SolrCalls.WDK_PRIMARY_KEY_FIELD, null))
-          .put("hyperlinkName", documentJson.optString(SolrCalls.HYPERLINK_NAME_FIELD, null))
-          .put("foundInFields", highlighting.get(documentJson.getString(SolrCalls.ID_FIELD)));
-        JSONObject summaryFields = new JSONObject();
-        String value;
-        JSONArray values;
-        for (DocumentField field : docType.getSummaryFields(restrictToProject)) {
-          if (field.isMultiText()) {
-            if ((values = documentJson.optJSONArray(field.getName())) != null) {
-              summaryFields.put(field.getName(), values);
-            }
-            else {
-              LOG.warn("Document of type '" + docType.getId() + "' with PK '" + primaryKey + "' does not contain multi-text summary field '" + field.getName());
-            }
+      JSONObject documentJson = document._json;
+      DocumentType docType = document._docType;
+      JSONArray primaryKey = document._primaryKey;
+      out.beginObject()
+        .key("documentType").value(docType.getId())
+        .optField("id", documentJson.optString(SolrCalls.ID_FIELD, null))
+        .key("primaryKey").value(primaryKey)
+        .optField("project", documentJson.optString(SolrCalls.PROJECT_FIELD, null))
+        .optField("organism", documentJson.optString(SolrCalls.ORGANISM_FIELD, null))
+        .key("score").value(document._score)
+        .optField("wdkPrimaryKeyString", documentJson.optString(SolrCalls.WDK_PRIMARY_KEY_FIELD, null))
+        .optField("hyperlinkName", documentJson.optString(SolrCalls.HYPERLINK_NAME_FIELD, null))
+        .optField("foundInFields", document._foundInFields)
+        .key("summaryFieldData").beginObject();
+      String value;
+      JSONArray values;
+      for (DocumentField field : docType.getSummaryFields(restrictToProject)) {
+        if (field.isMultiText()) {
+          if ((values = documentJson.optJSONArray(field.getName())) != null) {
+            out.key(field.getName()).value(maxMultiTextLength > 0 ? truncate(values, maxMultiTextLength) : values);
           }
           else {
-            if ((value = documentJson.optString(field.getName(), null)) != null) {
-              summaryFields.put(field.getName(), value);
-            }
-            else {
-              LOG.warn("Document of type '" + docType.getId() + "' with PK '" + primaryKey + "' does not contain summary field '" + field.getName());
-            }
+            LOG.warn("Document of type '" + docType.getId() + "' with PK '" + primaryKey + "' does not contain multi-text summary field '" + field.getName());
           }
         }
-        return json.put("summaryFieldData", summaryFields);
-      })
-      .collect(Collectors.toList()));
+        else {
+          if ((value = documentJson.optString(field.getName(), null)) != null) {
+            out.key(field.getName()).value(value);
+          }
+          else {
+            LOG.warn("Document of type '" + docType.getId() + "' with PK '" + primaryKey + "' does not contain summary field '" + field.getName());
+          }
+        }
+      }
+      out.endObject().endObject();
+    }
+    out.endArray();
+  }
+
+  /**
+   * Returns the passed values with any longer than maxLength truncated.  The
+   * documents may be shared by concurrent requests, so values are copied
+   * rather than modified in place (and only if a value must be truncated).
+   */
+  private static JSONArray truncate(JSONArray values, int maxLength) {
+    JSONArray result = values;
+    for (int i = 0; i < values.length(); i++) {
+      Object value = values.get(i);
+      if (value instanceof String && ((String)value).length() > maxLength) {
+        if (result == values) {
+          result = new JSONArray(values.toList());
+        }
+        String str = (String)value;
+        // do not split a surrogate pair
+        int end = Character.isHighSurrogate(str.charAt(maxLength - 1)) ? maxLength - 1 : maxLength;
+        result.put(i, str.substring(0, end) + "...");
+      }
+    }
+    return result;
   }
 }
@@ -1,13 +1,26 @@
 package org.gusdb.sitesearch.service;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLEncoder;
-import java.nio.charset.Charset;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
@@ -16,12 +29,33 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.gusdb.fgputil.runtime.BuildStatus;
 import org.gusdb.fgputil.server.RESTServer;
-import org.gusdb.fgputil.solr.Solr;
+import org.gusdb.fgputil.solr.Solr.Highlighting;
 import org.gusdb.fgputil.solr.SolrResponse;
 import org.gusdb.fgputil.web.MimeTypes;
+import org.gusdb.sitesearch.service.cache.SearchResultCache;
+import org.gusdb.sitesearch.service.cache.SingleFlight;
+import org.gusdb.sitesearch.service.exception.DeadlineExceededException;
+import org.gusdb.sitesearch.service.ResultsFormatter.ResultDocument;
+import org.gusdb.sitesearch.service.exception.InvalidRequestException;
+import org.gusdb.sitesearch.service.exception.ServiceOverloadedException;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+import org.gusdb.sitesearch.service.exception.SolrUnavailableException;
+import org.gusdb.sitesearch.service.metadata.FacetCounts;
 import org.gusdb.sitesearch.service.metadata.Metadata;
+import org.gusdb.sitesearch.service.metrics.Metrics;
+import org.gusdb.sitesearch.service.request.Deadline;
+import org.gusdb.sitesearch.service.request.HighlightRequest;
+import org.gusdb.sitesearch.service.request.Pagination;
 import org.gusdb.sitesearch.service.request.SearchRequest;
+import org.gusdb.sitesearch.service.server.CoreContext;
+import org.gusdb.sitesearch.service.server.RequestExecutor;
 import org.gusdb.sitesearch.service.server.Server.Context;
+import org.gusdb.sitesearch.service.solr.AdmissionLimiter;
+import org.gusdb.sitesearch.service.solr.SearchResponse;
+import org.gusdb.sitesearch.service.solr.SolrCallExecutor;
+import org.gusdb.sitesearch.service.solr.SolrCoreClient;
+import org.gusdb.sitesearch.service.solr.SolrTransport;
+import org.gusdb.sitesearch.service.suggest.Suggester;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -31,120 +65,316 @@ public class Service {
 
   private static final Logger LOG = LogManager.getLogger(Service.class);
 
-  private static Solr getSolr() {
-    var ctx = RESTServer.getApplicationContext();
-    return new Solr(joinUrl((String)ctx.get(Context.SOLR_URL), (String)ctx.get(Context.SOLR_CORE)));
+  // marks responses served from expired cached data while SOLR is unavailable
+  private static final String WARNING_HEADER = "Warning";
+  private static final String STALE_WARNING = "110 - \"Response is Stale\"";
+
+  // core whose requests this instance answers; empty at the root path if no core is served there
+  private final Optional<CoreContext> _core;
+
+  // whether this instance answers requests at the root path (and so routes prefixed paths to other cores)
+  private final boolean _root;
+
+  public Service() {
+    this(Optional.ofNullable(getCores().get("")), true);
+  }
+
+  private Service(Optional<CoreContext> core, boolean root) {
+    _core = core;
+    _root = root;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String,CoreContext> getCores() {
+    return (Map<String,CoreContext>)RESTServer.getApplicationContext().get(Context.CORES);
+  }
+
+  private static SolrTransport getSolrTransport() {
+    return (SolrTransport)RESTServer.getApplicationContext().get(Context.SOLR_TRANSPORT);
+  }
+
+  private static SolrCallExecutor getSolrCallExecutor() {
+    return (SolrCallExecutor)RESTServer.getApplicationContext().get(Context.SOLR_CALL_EXECUTOR);
+  }
+
+  private static RequestExecutor getRequestExecutor() {
+    return (RequestExecutor)RESTServer.getApplicationContext().get(Context.REQUEST_EXECUTOR);
+  }
+
+  private static RequestExecutor getExportRequestExecutor() {
+    return (RequestExecutor)RESTServer.getApplicationContext().get(Context.EXPORT_REQUEST_EXECUTOR);
+  }
+
+  private static int getContextInt(String key) {
+    return (Integer)RESTServer.getApplicationContext().get(key);
+  }
+
+  private static int getMultiTextMaxLength() {
+    return getContextInt(Context.MULTITEXT_MAX_LENGTH);
+  }
+
+  private static int getSearchMaxOffset() {
+    return getContextInt(Context.SEARCH_MAX_OFFSET);
+  }
+
+  // deadlines start when the request arrives, before it waits for a request thread
+  private static Deadline newDeadline(String deadlineKey) {
+    return new Deadline(getContextInt(deadlineKey));
+  }
+
+  /**
+   * Answers requests under /{prefix} with the core configured for that
+   * prefix.  Endpoint paths of the root take precedence over prefixes.
+   */
+  @Path("{corePrefix}")
+  public Service getCoreService(@PathParam("corePrefix") String corePrefix) {
+    CoreContext core = _root && !corePrefix.isEmpty() ? getCores().get(corePrefix) : null;
+    if (core == null) {
+      throw new NotFoundException("No SOLR core is served under /" + corePrefix);
+    }
+    return new Service(Optional.of(core), false);
+  }
+
+  private CoreContext getCore() {
+    return _core.orElseThrow(() -> new NotFoundException("No SOLR core is served at the root path"));
+  }
+
+  private SolrCoreClient getSolr() {
+    return getCore().getSolr();
+  }
+
+  private SearchResultCache getSearchResultCache() {
+    return getCore().getSearchResultCache();
+  }
+
+  private SingleFlight<String,SearchResponse> getSearchSingleFlight() {
+    return getCore().getSearchSingleFlight();
+  }
+
+  private SingleFlight<String,String> getCategoriesSingleFlight() {
+    return getCore().getCategoriesSingleFlight();
+  }
+
+  private AdmissionLimiter getSearchLimiter() {
+    return getCore().getSearchLimiter();
+  }
+
+  private AdmissionLimiter getExportLimiter() {
+    return getCore().getExportLimiter();
+  }
+
+  private Suggester getSuggester() {
+    return getCore().getSuggester();
+  }
+
+  private Metadata getMetadata() {
+    return getCore().getMetadataCache().getMetadata();
   }
 
   @GET
   @Produces(MediaType.APPLICATION_JSON)
-  public Response runSearch(
+  public void runSearch(@Suspended AsyncResponse asyncResponse,
       @QueryParam("searchText") @DefaultValue("*") String searchText,
       @QueryParam("offset") @DefaultValue("0") int offset,
       @QueryParam("numRecords") @DefaultValue("20") int numRecords,
       @QueryParam("projectId") String projectId,
-      @QueryParam("docType") String docType) {
-    return handleSearchRequest(getSolr(), new SearchRequest(searchText,
-        offset, numRecords, Optional.ofNullable(docType), Optional.ofNullable(projectId)));
+      @QueryParam("docType") String docType,
+      @QueryParam("highlight") @DefaultValue("true") boolean highlight,
+      @QueryParam("pretty") @DefaultValue("false") boolean pretty) {
+    Deadline deadline = newDeadline(Context.SEARCH_DEADLINE_MILLIS);
+    getRequestExecutor().submit(asyncResponse, () ->
+      handleSearchRequest(getSolr(), new SearchRequest(searchText,
+        offset, numRecords, Optional.ofNullable(docType), Optional.ofNullable(projectId), highlight), pretty, deadline));
   }
 
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
-  public Response runSearch(String body) {
-    return handleSearchRequest(getSolr(), new SearchRequest(new JSONObject(body), true, false, false));
+  public void runSearch(@Suspended AsyncResponse asyncResponse, String body,
+      @QueryParam("pretty") @DefaultValue("false") boolean pretty) {
+    Deadline deadline = newDeadline(Context.SEARCH_DEADLINE_MILLIS);
+    getRequestExecutor().submit(asyncResponse, () ->
+      handleSearchRequest(getSolr(), new SearchRequest(new JSONObject(body), true, false, false), pretty, deadline));
   }
 
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MimeTypes.ND_JSON)
-  public Response getStreamingResults(String body) {
-    return handleStreamRequest(getSolr(), new SearchRequest(new JSONObject(body), false, true, false));
+  public void getStreamingResults(@Suspended AsyncResponse asyncResponse, String body) {
+    // exports stream on their own pool so they cannot starve interactive requests
+    getExportRequestExecutor().submit(asyncResponse, () ->
+      handleStreamRequest(getSolr(), new SearchRequest(new JSONObject(body), false, true, false)));
   }
 
   /**
-   * SOLR Response:
-   *
-   * <pre>
-   * {
-   *   "suggest": {
-   *     "default": {
-   *       "<term>": {
-   *         "numFound": 10,
-   *         "suggestions": [
-   *           {
-   *             "term": "<match>",
-   *             "weight": 0,
-   *             "payload": ""
-   *           }
-   *         ]
-   *       }
-   *     }
-   *   }
-   * }
-   * </pre>
+   * Runs an array of searches (each a POST search body) and returns an array
+   * of their results in the same order.  Metadata is loaded once for the batch,
+   * and searches which fail or are invalid return an error object in place of
+   * results without failing the others.  All searches share one deadline.
    */
-  @GET
-  @Path("/suggest")
+  @POST
+  @Path("/batch")
+  @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
-  public Response getSuggestions(@QueryParam("searchText") String searchText) {
-    // Return an empty list for requests that contain no search text or a search
-    // term that is fewer than 3 characters.
-    if (searchText == null || searchText.isBlank() || searchText.trim().length() < 3)
-      return Response.ok("[]", MediaType.APPLICATION_JSON_TYPE).build();
-
-    // Build the SOLR request URL
-    var url = (String) RESTServer.getApplicationContext().get(Context.SOLR_URL);
-    var ep = joinUrl(url, "suggest");
-    var q = ep + "?suggest.q=" + URLEncoder.encode(searchText, Charset.defaultCharset());
+  public void runSearches(@Suspended AsyncResponse asyncResponse, String body) {
+    Deadline deadline = newDeadline(Context.SEARCH_DEADLINE_MILLIS);
+    getRequestExecutor().submit(asyncResponse, () -> handleBatchRequest(body, deadline));
+  }
 
-    // Open the connection to SOLR
-    try(var stream = new URL(q).openConnection().getInputStream()) {
-      // Parse the response
-      var node = new JSONObject(new String(stream.readAllBytes()));
+  private Response handleBatchRequest(String body, Deadline deadline) {
+    JSONArray requestsJson = new JSONArray(body);
+    int maxRequests = getContextInt(Context.BATCH_MAX_SEARCHES);
+    if (requestsJson.length() > maxRequests) {
+      throw new InvalidRequestException("A batch may contain at most " + maxRequests + " searches");
+    }
+    Metadata meta = getMetadata();
+    List<BatchItem> items = parseBatch(requestsJson, meta);
+    SolrCoreClient solr = getSolr();
+    int maxParallel = Math.max(1, getContextInt(Context.BATCH_MAX_PARALLEL));
+    return Response.ok((StreamingOutput) output ->
+      writeBatchResults(solr, items, meta, maxParallel, deadline, output)
+    ).build();
+  }
 
-      node = node.getJSONObject("suggest")
-        .getJSONObject("default");
+  /**
+   * Returns only the total, document type, organism and (if filtered by
+   * document type) field counts of a search; the body is a POST search body
+   * without pagination.  Much cheaper than a search since no documents are
+   * fetched or highlighted.
+   */
+  @POST
+  @Path("/counts")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public void getSearchCounts(@Suspended AsyncResponse asyncResponse, String body,
+      @QueryParam("pretty") @DefaultValue("false") boolean pretty) {
+    Deadline deadline = newDeadline(Context.SEARCH_DEADLINE_MILLIS);
+    getRequestExecutor().submit(asyncResponse, () -> handleCountsRequest(body, pretty, deadline));
+  }
 
-      if (node.length() > 1)
-        throw new InternalServerErrorException("unexpected response from SOLR: suggest.default object contained more than one suggestion set");
-      if (node.length() < 1)
-        throw new InternalServerErrorException("unexpected response from SOLR: suggest.default object contained no suggestion sets");
+  private Response handleCountsRequest(String body, boolean pretty, Deadline deadline) {
+    SolrCoreClient solr = getSolr();
+    SearchRequest request = new SearchRequest(new JSONObject(body), false, false, false);
+    Metadata meta = getMetadata();
+    meta.validateRequest(request);
 
-      node = node.getJSONObject(node.keys().next());
+    // cached apart from search pages; the key of a request without pagination never matches one
+    SearchResultCache cache = getSearchResultCache();
+    String countsKey = "counts:" + request.getNormalizedKey();
+    String cacheKey = countsKey + (pretty ? ":pretty" : "");
+    Optional<byte[]> cachedResponse = cache.get(cacheKey);
+    if (cachedResponse.isPresent()) {
+      Metrics.SEARCH_CACHE_HITS.inc();
+      return Response.ok(cachedResponse.get()).build();
+    }
 
-      if (node.getInt("numFound") < 1)
-        return Response.ok("[]", MediaType.APPLICATION_JSON_TYPE).build();
+    SearchResponse countsResults;
+    try {
+      countsResults = getSearchSingleFlight().execute(countsKey, deadline, () -> {
+        SearchResponse response = SolrCalls.getCountsResponse(solr, getSearchLimiter(), request, meta, deadline);
+        Metrics.SEARCH_SOLR_CALLS.inc("counts");
+        return response;
+      });
+    }
+    catch (SolrUnavailableException e) {
+      return getStaleResponse(cache, cacheKey, "counts", e);
+    }
+    FacetCounts facets = getFacetCounts(request, countsResults);
+
+    return Response.ok((StreamingOutput) output -> {
+      SearchResultCache.Recorder recorder = cache.record(cacheKey, output);
+      ResultsFormatter.writeCounts(facets, countsResults.getResponse().getTotalCount(), countsResults.isPartialResults(),
+        new StreamingJsonWriter(new BufferedWriter(new OutputStreamWriter(recorder, StandardCharsets.UTF_8)), pretty));
+      // incomplete counts are not cached
+      if (countsResults.isComplete()) {
+        recorder.commit();
+      }
+    }).build();
+  }
 
-      var suggestions = node.getJSONArray("suggestions");
-      var out = new JSONArray(suggestions.length());
+  /**
+   * Returns the foundInFields of documents in the response to a search made
+   * with highlighting disabled, keyed by document id
+   */
+  @POST
+  @Path("/found-in-fields")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public void getFoundInFields(@Suspended AsyncResponse asyncResponse, String body) {
+    Deadline deadline = newDeadline(Context.SEARCH_DEADLINE_MILLIS);
+    getRequestExecutor().submit(asyncResponse, () -> handleHighlightRequest(body, deadline));
+  }
 
-      for (var i = 0; i < suggestions.length(); i++) {
-        out.put(suggestions.getJSONObject(i).getString("term"));
+  private Response handleHighlightRequest(String body, Deadline deadline) {
+    HighlightRequest request = new HighlightRequest(new JSONObject(body));
+    Metadata meta = getMetadata();
+    meta.validateRequest(request.getSearchRequest());
+
+    SolrResponse response = SolrCalls.getHighlighting(getSolr(), getSearchLimiter(), request, meta, deadline);
+    Metrics.SEARCH_SOLR_CALLS.inc("highlight");
+
+    // documents which no longer match (or never did) are omitted
+    Highlighting highlighting = response.getHighlighting();
+    JSONObject foundInFields = new JSONObject();
+    for (String id : request.getDocumentIds()) {
+      Object fields = highlighting == null ? null : highlighting.get(id);
+      if (fields != null) {
+        foundInFields.put(id, fields);
       }
+    }
+    return Response.ok(foundInFields.toString(), MediaType.APPLICATION_JSON_TYPE).build();
+  }
 
-      return Response.ok(out.toString(), MediaType.APPLICATION_JSON_TYPE).build();
-    } catch (IOException e) {
-      LOG.error("failed to connect to SOLR: ", e);
-      throw new InternalServerErrorException("failed to connect to SOLR");
-    } catch (JSONException e) {
-      LOG.error("could not parse JSON response from SOLR", e);
-      throw new InternalServerErrorException("could not parse JSON response from SOLR: " + e.getMessage());
+  @GET
+  @Path("/suggest")
+  @Produces(MediaType.APPLICATION_JSON)
+  public void getSuggestions(@Suspended AsyncResponse asyncResponse, @QueryParam("searchText") String searchText) {
+    // Return an empty list for requests that contain no search text or a search
+    // term that is fewer than 3 characters.
+    if (searchText == null || searchText.isBlank() || searchText.trim().length() < 3) {
+      asyncResponse.resume(Response.ok("[]", MediaType.APPLICATION_JSON_TYPE).build());
+      return;
     }
+
+    // answered from the local suggestion index or cached SOLR suggest responses
+    Deadline deadline = newDeadline(Context.SUGGEST_DEADLINE_MILLIS);
+    getRequestExecutor().submit(asyncResponse, () -> {
+      try {
+        List<String> suggestions = getSuggester().getSuggestions(searchText, deadline);
+        return Response.ok(new JSONArray(suggestions).toString(), MediaType.APPLICATION_JSON_TYPE).build();
+      }
+      catch (SolrUnavailableException e) {
+        List<String> suggestions = getSuggester().getStaleSuggestions(searchText).orElseThrow(() -> e);
+        return markStale(Response.ok(new JSONArray(suggestions).toString(), MediaType.APPLICATION_JSON_TYPE), "suggest", e);
+      }
+    });
   }
 
   @GET
   @Path("/categories-metadata")
   @Produces(MediaType.APPLICATION_JSON)
-  public Response getCategoriesJson(@QueryParam("projectId") String projectId) {
+  public void getCategoriesJson(@Suspended AsyncResponse asyncResponse, @QueryParam("projectId") String projectId) {
     LOG.info("Request received for categories metadata");
-    Metadata meta = SolrCalls.initializeMetadata(getSolr());
-    return Response.ok(
-      new JSONObject()
-        .put("categories", meta.getCategoriesJson())
-        .put("documentTypes", meta.getDocumentTypesJson(Optional.ofNullable(projectId)))
-        .toString(2)
-    ).build();
+    Deadline deadline = newDeadline(Context.SEARCH_DEADLINE_MILLIS);
+    // identical concurrent requests share one build of the response
+    getRequestExecutor().submit(asyncResponse, () ->
+      Response.ok(getCategoriesSingleFlight().execute(String.valueOf(projectId), deadline, () -> {
+        Metadata meta = getMetadata();
+        StringWriter json = new StringWriter();
+        StreamingJsonWriter out = new StreamingJsonWriter(json, true);
+        try {
+          out.beginObject().key("categories");
+          meta.writeCategories(out);
+          out.key("documentTypes");
+          meta.writeDocumentTypes(Optional.ofNullable(projectId), new FacetCounts(), out);
+          out.endObject();
+        }
+        catch (IOException e) {
+          // writing to memory; not expected
+          throw new SiteSearchRuntimeException("Unable to write categories metadata", e);
+        }
+        return json.toString();
+      })).build());
   }
 
   @GET
@@ -154,73 +384,304 @@ public class Service {
     return Response.ok(BuildStatus.getLatestBuildStatus()).build();
   }
 
+  /**
+   * Returns 503 until the service has loaded metadata and warmed up (see
+   * Warmup), then 200; for load balancers to send traffic only to warm
+   * instances.  At the root path, the service is ready once every core it
+   * serves is; under a core's prefix, once that core is.
+   */
+  @GET
+  @Path("/ready")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response getReadiness() {
+    Collection<CoreContext> cores = _root ? getCores().values() : List.of(getCore());
+    return cores.stream().allMatch(core -> core.getWarmup().isComplete()) ?
+        Response.ok("ready").build() :
+        Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("warming up").build();
+  }
+
+  /**
+   * Returns statistics of the shared SOLR connection pool and request pools,
+   * along with those of the core served at this path (if any)
+   */
+  @GET
+  @Path("/statistics")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getStatistics() {
+    JSONObject stats = new JSONObject()
+      .put("solrTransport", getSolrTransport().getStatistics())
+      .put("requestPools", new JSONObject()
+        .put("interactive", getRequestExecutor().getStatistics())
+        .put("export", getExportRequestExecutor().getStatistics()));
+    _core.ifPresent(core -> stats
+      .put("core", core.getSolr().getCore())
+      .put("solrCircuitBreaker", core.getSolr().getCircuitBreaker().getStatistics())
+      .put("searchResultCache", core.getSearchResultCache().getStatistics())
+      .put("suggestions", core.getSuggester().getStatistics())
+      .put("coalescedRequests", new JSONObject()
+        .put("search", core.getSearchSingleFlight().getStatistics())
+        .put("categoriesMetadata", core.getCategoriesSingleFlight().getStatistics()))
+      .put("solrAdmission", new JSONObject()
+        .put("search", core.getSearchLimiter().getStatistics())
+        .put("suggest", core.getSuggestLimiter().getStatistics())
+        .put("export", core.getExportLimiter().getStatistics()))
+      .put("warmup", core.getWarmup().getStatistics()));
+    return Response.ok(stats.toString(2)).build();
+  }
+
   @GET
   @Path("/cores")
   @Produces(MediaType.APPLICATION_JSON)
-  public Response getCoresInfo() {
-    var url = (String) RESTServer.getApplicationContext().get(Context.SOLR_URL);
-    var ep = joinUrl(url, "admin/cores");
-    try(var stream = new URL(ep).openConnection().getInputStream()) {
-      return Response.ok(new String(stream.readAllBytes())).build();
-    } catch (IOException e) {
-      LOG.error("failed to connect to SOLR: ", e);
-      throw new InternalServerErrorException("failed to connect to SOLR");
+  public void getCoresInfo(@Suspended AsyncResponse asyncResponse) {
+    Deadline deadline = newDeadline(Context.CORES_DEADLINE_MILLIS);
+    getRequestExecutor().submit(asyncResponse, () ->
+      Response.ok(getSolrTransport().executeGet("admin/cores", deadline.allot(1),
+        response -> response.readEntity(String.class))).build());
+  }
+
+  private Response handleSearchRequest(SolrCoreClient solr, SearchRequest request, boolean pretty, Deadline deadline) {
+
+    // get cached metadata (loaded from SOLR only when stale)
+    Metadata meta = getMetadata();
+    validateSearchRequest(request, meta);
+
+    // serve repeated searches from the result cache
+    SearchResultCache cache = getSearchResultCache();
+    String cacheKey = request.getNormalizedKey() + (pretty ? ":pretty" : "");
+    Optional<byte[]> cachedResponse = cache.get(cacheKey);
+    if (cachedResponse.isPresent()) {
+      Metrics.SEARCH_CACHE_HITS.inc();
+      return Response.ok(cachedResponse.get()).build();
+    }
+
+    // the single SOLR call is made on this thread; its read timeout ends it by the deadline
+    SearchResponse searchResults;
+    try {
+      searchResults = getSearchResults(request, deadline, () ->
+          SolrCalls.getSearchResponse(solr, getSearchLimiter(), request, meta, deadline));
+    }
+    catch (SolrUnavailableException e) {
+      return getStaleResponse(cache, cacheKey, "search", e);
     }
+    // everything which may fail is done before the response starts, so it is never cut short
+    FacetCounts facets = getFacetCounts(request, searchResults);
+    List<ResultDocument> documents = ResultsFormatter.getResultDocuments(meta, searchResults.getResponse());
+
+    // stream formatted results to the client, caching them once complete
+    int maxMultiTextLength = getMultiTextMaxLength();
+    return Response.ok((StreamingOutput) output ->
+      writeSearchResults(request, meta, facets, searchResults, documents, maxMultiTextLength,
+          cache.record(cacheKey, output), pretty)
+    ).build();
+  }
+
+  /**
+   * Answers a request which SOLR could not with its last cached response, if
+   * that is not too old, marked as stale
+   *
+   * @throws SolrUnavailableException (the passed exception) if there is none
+   */
+  private static Response getStaleResponse(SearchResultCache cache, String cacheKey, String cacheName,
+      SolrUnavailableException e) {
+    byte[] staleResponse = cache.getStale(cacheKey).orElseThrow(() -> e);
+    return markStale(Response.ok(staleResponse), cacheName, e);
   }
 
-  private static Response handleSearchRequest(Solr solr, SearchRequest request) {
+  private static Response markStale(Response.ResponseBuilder response, String cacheName, SolrUnavailableException e) {
+    LOG.warn("Serving stale " + cacheName + " response; " + e.getMessage());
+    Metrics.STALE_RESPONSES.inc(cacheName);
+    return response.header(WARNING_HEADER, STALE_WARNING).build();
+  }
+
+  private static void validateSearchRequest(SearchRequest request, Metadata meta) {
+
+    // deep offsets make SOLR collect and sort every preceding document; page tokens do not
+    int maxOffset = getSearchMaxOffset();
+    if (maxOffset > 0 && request.getPagination().get().getOffset() > maxOffset) {
+      throw new InvalidRequestException("offset must be <= " + maxOffset +
+          "; page from offset 0 with pagination.usePageTokens to page further");
+    }
+
+    // a page token only pages through the search (and sort) it was issued for
+    Optional<String> pageTokenQueryHash = request.getPagination().get().getPageTokenQueryHash();
+    if (pageTokenQueryHash.isPresent() && !pageTokenQueryHash.get().equals(SolrCalls.getPagedQueryHash(request))) {
+      throw new InvalidRequestException("pageToken was not issued for this search");
+    }
 
-    // initialize metadata (2 SOLR calls for docTypes and fields)
-    Metadata meta = SolrCalls.initializeMetadata(solr);
     meta.validateRequest(request);
+  }
 
-    // get response with all filters in request applied (will produce results to deliver)
-    boolean fieldFacetsRequested = request.hasDocTypeFilter();
-    SolrResponse searchResults = SolrCalls.getSearchResponse(solr, request, meta, false, true, true, fieldFacetsRequested);
+  /**
+   * One SOLR call returns the page of results along with all facet counts.
+   * Identical searches arriving while it runs wait (until their own deadline)
+   * for and share its (read-only) response.
+   */
+  private SearchResponse getSearchResults(SearchRequest request, Deadline deadline, Supplier<SearchResponse> solrCall) {
+    return getSearchSingleFlight().execute(request.getNormalizedKey(), deadline, () -> {
+      SearchResponse response = solrCall.get();
+      Metrics.SEARCH_SOLR_CALLS.inc("main");
+      return response;
+    });
+  }
 
-    // apply facets
-    meta.applyDocTypeFacetCounts(searchResults.getFacetCounts());
-    meta.setOrganismFacetCounts(request.getRestrictMetadataToOrganisms(), searchResults.getFacetCounts());
-    if (fieldFacetsRequested) {
-      meta.setFieldFacetCounts(request.getDocTypeFilter(), searchResults.getFacetQueryResults());
+  static FacetCounts getFacetCounts(SearchRequest request, SearchResponse searchResponse) {
+    SolrResponse searchResults = searchResponse.getResponse();
+    FacetCounts facets = new FacetCounts();
+    facets.setDocTypeFacetCounts(searchResults.getFacetCounts());
+    facets.setOrganismFacetCounts(request.getRestrictMetadataToOrganisms(), searchResults.getFacetCounts());
+    if (searchResponse.isFieldFacetsOmitted()) {
+      facets.setDegraded();
+    }
+    else if (request.hasDocTypeFilter()) {
+      facets.setFieldFacetCounts(request.getDocTypeFilter(), searchResults.getFacetQueryResults());
     }
+    Metrics.SEARCH_FIELD_FACETS.observe(searchResults.getFacetQueryResults().size());
+    return facets;
+  }
 
-    // At this point:
-    //  - doc type facets are correct because: if doc type filter applied, we only need a count for that type
-    //  - organism facets are wrong if org filter present; recalculate with org filter off
-    //  - field facets are wrong if field filter present; recalculate with field filter off
+  private static void writeSearchResults(SearchRequest request, Metadata meta, FacetCounts facets,
+      SearchResponse searchResponse, List<ResultDocument> documents, int maxMultiTextLength,
+      SearchResultCache.Recorder output, boolean pretty) throws IOException {
+    SolrResponse searchResults = searchResponse.getResponse();
+
+    // a page fetched by cursor links to the next unless it was the last (SOLR returns the same mark)
+    Optional<String> nextPageToken = request.getPagination().get().getCursorMark()
+        .flatMap(mark -> searchResults.getNextCursorMark().filter(nextMark -> !nextMark.equals(mark)))
+        .map(nextMark -> Pagination.toPageToken(SolrCalls.getPagedQueryHash(request), nextMark));
+
+    ResultsFormatter.writeResults(meta, facets, searchResults.getTotalCount(), documents, searchResponse.isPartialResults(),
+      request.getRestrictToProject(), nextPageToken, maxMultiTextLength,
+      new StreamingJsonWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)), pretty));
+    // incomplete results are not cached
+    if (searchResponse.isComplete()) {
+      output.commit();
+    }
+  }
+
+  // search of a batch, or the reason it could not be parsed or validated
+  private static class BatchItem {
 
-    if (request.hasOrganismFilter()) {
-      // need another call; one without organism filter applied to get org facets
-      SolrResponse facetResponse = SolrCalls.getSearchResponse(solr, request, meta, true, false, true, false);
-      meta.setOrganismFacetCounts(request.getRestrictMetadataToOrganisms(), facetResponse.getFacetCounts());
+    private final SearchRequest _request;
+    private final RuntimeException _error;
+
+    public BatchItem(SearchRequest request, RuntimeException error) {
+      _request = request;
+      _error = error;
     }
+  }
 
-    if (request.hasDocTypeFilterAndFields()) {
-      // need another call; one without fields filtering applied to get field facets
-      SolrResponse facetResponse = SolrCalls.getSearchResponse(solr, request, meta, true, true, false, true);
-      meta.setFieldFacetCounts(request.getDocTypeFilter(), facetResponse.getFacetQueryResults());
+  private static List<BatchItem> parseBatch(JSONArray requestsJson, Metadata meta) {
+    List<BatchItem> items = new ArrayList<>();
+    for (int i = 0; i < requestsJson.length(); i++) {
+      try {
+        SearchRequest request = new SearchRequest(requestsJson.getJSONObject(i), true, false, false);
+        validateSearchRequest(request, meta);
+        items.add(new BatchItem(request, null));
+      }
+      catch (InvalidRequestException | JSONException e) {
+        items.add(new BatchItem(null, e));
+      }
+    }
+    return items;
+  }
+
+  /**
+   * Writes the results of a batch of searches in order as a JSON array.  Up to
+   * maxParallel SOLR calls run on the SOLR call executor ahead of the search
+   * being written; all must complete by the batch's deadline.  Only the SOLR
+   * calls are submitted, so pool threads never wait on other work queued to the
+   * pool; cache lookups and formatting happen on this (the request's) thread.
+   * Batch searches are not coalesced with identical in-flight searches since
+   * waiting for one would block a pool thread.
+   */
+  private void writeBatchResults(SolrCoreClient solr, List<BatchItem> items, Metadata meta,
+      int maxParallel, Deadline deadline, OutputStream output) throws IOException {
+    SolrCallExecutor executor = getSolrCallExecutor();
+    SearchResultCache cache = getSearchResultCache();
+    AdmissionLimiter limiter = getSearchLimiter();
+    int maxMultiTextLength = getMultiTextMaxLength();
+    List<Optional<byte[]>> cachedResponses = new ArrayList<>();
+    List<Future<SearchResponse>> calls = new ArrayList<>();
+    try {
+      output.write('[');
+      for (int i = 0; i < items.size(); i++) {
+        while (calls.size() < items.size() && calls.size() < i + maxParallel) {
+          SearchRequest request = items.get(calls.size())._request;
+          Optional<byte[]> cachedResponse = request == null ? Optional.empty() : cache.get(request.getNormalizedKey());
+          cachedResponses.add(cachedResponse);
+          // a call run on this thread when the pool is full is still bounded by its share of the deadline
+          calls.add(request == null || cachedResponse.isPresent() ? null : executor.submit(() ->
+              SolrCalls.getSearchResponse(solr, limiter, request, meta, deadline)));
+        }
+        if (i > 0) output.write(',');
+        output.write(getBatchResult(items.get(i), cachedResponses.get(i), calls.get(i),
+            executor, cache, meta, maxMultiTextLength, deadline));
+      }
+      output.write(']');
+      output.flush();
+    }
+    finally {
+      SolrCallExecutor.cancelAll(calls.stream().filter(Objects::nonNull).collect(Collectors.toList()));
     }
+  }
 
-    return Response.ok(ResultsFormatter.formatResults(meta, searchResults, request.getRestrictToProject()).toString(2)).build();
+  private static byte[] getBatchResult(BatchItem item, Optional<byte[]> cachedResponse, Future<SearchResponse> call,
+      SolrCallExecutor executor, SearchResultCache cache, Metadata meta, int maxMultiTextLength, Deadline deadline) {
+    if (cachedResponse.isPresent()) {
+      Metrics.SEARCH_CACHE_HITS.inc();
+      return cachedResponse.get();
+    }
+    RuntimeException error = item._error;
+    if (error == null) {
+      try {
+        SearchResponse searchResults = executor.await(call, deadline.getExpiry());
+        Metrics.SEARCH_SOLR_CALLS.inc("main");
+        SearchRequest request = item._request;
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        writeSearchResults(request, meta, getFacetCounts(request, searchResults), searchResults,
+            ResultsFormatter.getResultDocuments(meta, searchResults.getResponse()),
+            maxMultiTextLength, cache.record(request.getNormalizedKey(), response), false);
+        return response.toByteArray();
+      }
+      catch (RuntimeException e) {
+        error = e;
+      }
+      catch (IOException e) {
+        // writing to memory; not expected
+        error = new SiteSearchRuntimeException("Unable to write search results", e);
+      }
+    }
+    // a failed search does not fail the batch; its place holds the error
+    int status =
+        error instanceof InvalidRequestException || error instanceof JSONException ? 400 :
+        error instanceof ServiceOverloadedException || error instanceof SolrUnavailableException ? 503 :
+        error instanceof DeadlineExceededException ? 504 : 500;
+    if (status == 500) {
+      LOG.error("Search in batch request failed", error);
+    }
+    return new JSONObject()
+      .put("error", new JSONObject()
+        .put("status", status)
+        .put("message", status != 500 ? error.getMessage() : "Search could not be completed"))
+      .toString()
+      .getBytes(StandardCharsets.UTF_8);
   }
 
-  private static Response handleStreamRequest(Solr solr, SearchRequest request) {
+  private Response handleStreamRequest(SolrCoreClient solr, SearchRequest request) {
 
-    // initialize metadata (2 SOLR calls for docTypes and fields)
-    Metadata meta = SolrCalls.initializeMetadata(solr);
+    // get cached metadata (loaded from SOLR only when stale)
+    Metadata meta = getMetadata();
     meta.validateRequest(request);
 
     return Response.ok(new StreamingOutput() {
       @Override
       public void write(OutputStream output) throws IOException, WebApplicationException {
         // make the search request and stream primary keys to the client
-        SolrCalls.writeSearchResponse(solr, request, meta, output);
+        var ctx = RESTServer.getApplicationContext();
+        SolrCalls.writeSearchResponse(solr, getExportLimiter(), request, meta, output,
+            (ExecutorService)ctx.get(Context.EXPORT_EXECUTOR),
+            (Integer)ctx.get(Context.EXPORT_PREFETCH_PAGES));
       }
     }).build();
   }
-
-  private static String joinUrl(String seg1, String seg2) {
-    return (seg1.endsWith("/")) ? seg1 + seg2 : seg1 + "/" + seg2;
-  }
 }
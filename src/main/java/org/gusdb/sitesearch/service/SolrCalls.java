@@ -1,30 +1,56 @@
 package org.gusdb.sitesearch.service;
 
-import static org.gusdb.fgputil.FormatUtil.NL;
-import static org.gusdb.fgputil.FormatUtil.TAB;
 import static org.gusdb.fgputil.FormatUtil.urlEncodeUtf8;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.gusdb.fgputil.Tuples.TwoTuple;
 import org.gusdb.fgputil.solr.Solr;
 import org.gusdb.fgputil.solr.Solr.HttpMethod;
 import org.gusdb.fgputil.solr.SolrResponse;
-import org.gusdb.sitesearch.service.metadata.DocumentField;
+import org.gusdb.sitesearch.service.exception.DeadlineExceededException;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+import org.gusdb.sitesearch.service.metadata.FieldSet;
 import org.gusdb.sitesearch.service.metadata.Metadata;
+import org.gusdb.sitesearch.service.request.Deadline;
+import org.gusdb.sitesearch.service.request.HighlightRequest;
 import org.gusdb.sitesearch.service.request.Pagination;
 import org.gusdb.sitesearch.service.request.SearchRequest;
+import org.gusdb.sitesearch.service.solr.AdmissionLimiter;
+import org.gusdb.sitesearch.service.solr.CursorPrefetcher;
+import org.gusdb.sitesearch.service.solr.ExportRowParser;
+import org.gusdb.sitesearch.service.solr.ResponseHeader;
+import org.gusdb.sitesearch.service.solr.SearchResponse;
+import org.gusdb.sitesearch.service.solr.SolrCoreClient;
+import org.gusdb.sitesearch.service.solr.SolrTransport;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 public class SolrCalls {
 
+  private static final Logger LOG = LogManager.getLogger(SolrCalls.class);
+
   // hard-coded document fields
   public static final String DOCUMENT_TYPE_FIELD = "document-type";
   public static final String ORGANISM_FIELD = "organismsForFilter";
@@ -44,9 +70,32 @@ public class SolrCalls {
   // tuning constants
   private static final int FETCH_SIZE_FROM_SOLR = 10000;
 
+  // share of the remaining time given to a search with field facets; the rest is kept for a retry without them
+  private static final double FACETED_CALL_SHARE = 0.6;
+
+  // SOLR stops collecting matches after this share of a call's time, leaving the rest for facets and highlighting
+  private static final double TIME_ALLOWED_SHARE = 0.75;
+
+  // SOLR handler of suggest requests (relative to the core)
+  private static final String SUGGEST_HANDLER = "suggest";
+
   // search constants
   private static final String SORTING_FIELDS = SCORE_FIELD + " desc, " + ID_FIELD + " asc";
 
+  // fields read from every document by ResultsFormatter; summary fields are added per request
+  private static final String FIXED_RETURN_FIELDS = String.join(" ",
+      ID_FIELD, DOCUMENT_TYPE_FIELD, PRIMARY_KEY_FIELD, PROJECT_FIELD, ORGANISM_FIELD,
+      SCORE_FIELD, WDK_PRIMARY_KEY_FIELD, HYPERLINK_NAME_FIELD);
+
+  // tags used to exclude parts of the search from facet counts
+  private static final String SEARCH_QUERY_TAG = "searchQuery";
+  private static final String ORGANISM_FILTER_TAG = "organismFilter";
+
+  // edismax does not parse local params (such as a tag) inside q, so the search
+  // text is passed separately and q names the parser, tag and text in local params
+  private static final String USER_QUERY_PARAM = "userq";
+  private static final String SEARCH_QUERY = "{!edismax tag=" + SEARCH_QUERY_TAG + " v=$" + USER_QUERY_PARAM + "}";
+
   // template for metadata document requests
   private static final Function<String,String> METADOC_REQUEST = docType ->
     "q=*&fq=" + DOCUMENT_TYPE_FIELD + ":(" + docType + ")&fl=" + JSON_BLOB_FIELD + ":[json]&wt=json";
@@ -60,90 +109,368 @@ public class SolrCalls {
    * 1. a single categories/documentTypes JSON document, defining doc types and their categories
    * 2. a single documentType fields JSON document, defining fields for each doc type
    * 
-   * @return initial metadata object
+   * @return immutable metadata object
    */
-  public static Metadata initializeMetadata(Solr solr) {
-    // initialize metadata object with categories and document data
-    Metadata meta = solr.executeQuery(HttpMethod.GET, CATAGORIES_METADOC_REQUEST, true, response -> {
-      SolrResponse result = Solr.parseResponse(CATAGORIES_METADOC_REQUEST, response);
-      return new Metadata(result);
+  public static Metadata initializeMetadata(SolrCoreClient solr) {
+    SolrResponse categories = solr.executeQuery(HttpMethod.GET, CATAGORIES_METADOC_REQUEST, response -> {
+      return Solr.parseResponse(CATAGORIES_METADOC_REQUEST, response);
+    });
+    SolrResponse fields = solr.executeQuery(HttpMethod.GET, FIELDS_METADOC_REQUEST, response -> {
+      return Solr.parseResponse(FIELDS_METADOC_REQUEST, response);
+    });
+    return new Metadata(categories, fields);
+  }
+
+  /**
+   * Looks up the current index version of a core using the SOLR core admin API.
+   * The version changes on every commit, so it tells callers when data loaded
+   * from the index may be stale.
+   *
+   * @param solr client of the core to look up
+   * @param timeoutMillis time allowed for SOLR to answer
+   * @return index version of the core
+   */
+  public static String getIndexVersion(SolrCoreClient solr, long timeoutMillis) {
+    String core = solr.getCore();
+    String request = "admin/cores?action=STATUS&wt=json&core=" + urlEncodeUtf8(core);
+    return solr.executeGet(request, timeoutMillis, response -> {
+      try {
+        JSONObject coreStatus = new JSONObject(response.readEntity(String.class))
+            .getJSONObject("status").getJSONObject(core);
+        return String.valueOf(coreStatus.getJSONObject("index").get("version"));
+      }
+      catch (JSONException e) {
+        throw new SiteSearchRuntimeException("Unable to read index version of core '" + core + "'", e);
+      }
     });
-    // supplement doc types with the fields in those doc types
-    return solr.executeQuery(HttpMethod.GET, FIELDS_METADOC_REQUEST, true, response -> {
-      SolrResponse result = Solr.parseResponse(FIELDS_METADOC_REQUEST, response);
-      return meta.addFieldData(result);
+  }
+
+  /**
+   * Queries the SOLR suggest handler for completions of the passed text.
+   *
+   * SOLR Response:
+   *
+   * <pre>
+   * {
+   *   "suggest": {
+   *     "default": {
+   *       "<term>": {
+   *         "numFound": 10,
+   *         "suggestions": [
+   *           {
+   *             "term": "<match>",
+   *             "weight": 0,
+   *             "payload": ""
+   *           }
+   *         ]
+   *       }
+   *     }
+   *   }
+   * }
+   * </pre>
+   *
+   * @param solr client of the core whose suggestions are requested
+   * @param limiter limiter of concurrent suggest calls
+   * @param searchText text to complete
+   * @param maxResults maximum number of suggestions to request
+   * @param deadline deadline of the request
+   * @return suggested terms, and whether they are all of SOLR's matches
+   * (i.e. fewer than the maximum were returned)
+   */
+  public static TwoTuple<List<String>,Boolean> getSuggestions(SolrCoreClient solr, AdmissionLimiter limiter,
+      String searchText, int maxResults, Deadline deadline) {
+    String request = SUGGEST_HANDLER + "?suggest.q=" + URLEncoder.encode(searchText, Charset.defaultCharset()) +
+        "&suggest.count=" + maxResults;
+    String body = limiter.execute(deadline, () -> solr.executeGet(request, deadline.allot(1),
+        response -> response.readEntity(String.class)));
+    try {
+      JSONObject json = new JSONObject(body);
+      new ResponseHeader(json.optJSONObject(ResponseHeader.KEY)).observeQueryTime(SUGGEST_HANDLER);
+      JSONObject node = json
+        .getJSONObject("suggest")
+        .getJSONObject("default");
+
+      if (node.length() > 1)
+        throw new SiteSearchRuntimeException("unexpected response from SOLR: suggest.default object contained more than one suggestion set");
+      if (node.length() < 1)
+        throw new SiteSearchRuntimeException("unexpected response from SOLR: suggest.default object contained no suggestion sets");
+
+      node = node.getJSONObject(node.keys().next());
+
+      List<String> terms = new ArrayList<>();
+      if (node.getInt("numFound") > 0) {
+        JSONArray suggestions = node.getJSONArray("suggestions");
+        for (int i = 0; i < suggestions.length(); i++) {
+          terms.add(suggestions.getJSONObject(i).getString("term"));
+        }
+      }
+      return new TwoTuple<>(terms, terms.size() < maxResults);
+    }
+    catch (JSONException e) {
+      throw new SiteSearchRuntimeException("could not parse JSON response from SOLR: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Loads suggestion terms and weights by faceting on a (non-tokenized) field
+   * holding the suggestion dictionary; each term is weighted by the number of
+   * documents containing it.
+   *
+   * @param solr client of the SOLR core to query
+   * @param field name of the field containing suggestion terms
+   * @param maxTerms maximum number of terms to load (most frequent first)
+   * @return map from term to weight
+   */
+  public static Map<String,Integer> getSuggestionTerms(SolrCoreClient solr, String field, int maxTerms) {
+    String request = "q=*:*&rows=0&facet=true&facet.mincount=1&facet.sort=count" +
+        "&facet.limit=" + maxTerms + "&facet.field=" + urlEncodeUtf8(field) + "&wt=json";
+    SolrResponse response = solr.executeQuery(HttpMethod.GET, request, resp -> {
+      return Solr.parseResponse(request, resp);
     });
+    return Optional.ofNullable(response.getFacetCounts().get(field))
+      .orElseThrow(() -> new SiteSearchRuntimeException("SOLR response did not include facets for '" + field + "'."));
   }
 
   /**
    * Performs a SOLR search defined by the parameters of the request object and
-   * using fields defined by the metadata object
+   * using fields defined by the metadata object.  All facet counts needed by the
+   * response are computed by this single call: the organism filter and the
+   * search query are tagged, and the organism and field facets exclude those
+   * tags so their counts are not narrowed by the filters they drive.
+   *
+   * The call must complete by the request deadline.  SOLR is passed a
+   * timeAllowed so that a slow query returns the matches found in time
+   * (flagged as partial results) instead of running on; SOLR does not allow
+   * this for pages fetched by cursor (requested with page tokens), which are
+   * only cut off by the read timeout.  Field facet queries can be slow in
+   * themselves, so a search with them is given only part of the remaining
+   * time; if it misses that, the search is repeated without them and its other
+   * counts are returned.
    * 
-   * @param solr configured SOLR querying utility
+   * @param solr client of the SOLR core to query
+   * @param limiter limiter of concurrent search calls
    * @param request request specified by the service caller
    * @param meta metadata object populated by "static" calls to SOLR
-   * @param omitResults whether to override pagination and return zero documents
-   *           Highlighting will also be turned off since it is not needed.
-   * @param applyOrganismFilter whether to apply organism filter
-   * @param applyFieldsFilter whether to apply fields filter
-   * @param fieldFacetsRequested whether to include field facet counts in request
+   * @param deadline deadline of the request
    * @return SOLR search response
    */
-  public static SolrResponse getSearchResponse(Solr solr, SearchRequest request, Metadata meta,
-      boolean omitResults, boolean applyOrganismFilter, boolean applyFieldsFilter, boolean fieldFacetsRequested) {
+  public static SearchResponse getSearchResponse(SolrCoreClient solr, AdmissionLimiter limiter,
+      SearchRequest request, Metadata meta, Deadline deadline) {
+    return getFacetedResponse(solr, limiter, request, deadline,
+        withFieldFacets -> buildSearchQuery(request, meta, withFieldFacets));
+  }
+
+  /**
+   * @param request search request
+   * @return hash of the search and the sort of its results, which binds page
+   * tokens to the search whose pages they fetch
+   */
+  public static String getPagedQueryHash(SearchRequest request) {
+    return request.getPagedQueryHash(SORTING_FIELDS);
+  }
+
+  /**
+   * @return query string of the SOLR request made by getSearchResponse()
+   */
+  static String buildSearchQuery(SearchRequest request, Metadata meta) {
+    return buildSearchQuery(request, meta, true);
+  }
+
+  private static String buildSearchQuery(SearchRequest request, Metadata meta, boolean withFieldFacets) {
 
-    // don't need any documents in result if only collecting organism facets
-    Pagination pagination = omitResults ? new Pagination(0,0) :
-      request.getPagination().get(); // should always be present for this call; bug if not
+    Pagination pagination = request.getPagination().get(); // should always be present for this call; bug if not
 
     // select search fields that will be applied to this search
-    TwoTuple<List<DocumentField>,Boolean> searchFields = meta.getSearchFields(request, applyFieldsFilter);
-    String searchQueryString = getSearchQueryString(request.getSearchText(), searchFields);
-    String searchFieldsString = formatFieldsForRequest(searchFields.getFirst());
+    TwoTuple<FieldSet,Boolean> searchFields = meta.getSearchFields(request, true);
+    String fieldsToReturn = FIXED_RETURN_FIELDS + " " + meta.getSummaryFields(request).getReturnFields();
 
-    String searchFiltersParam = buildQueryFilterParams(request, applyOrganismFilter);
-    String fieldQueryFacets = buildFieldQueryFacets(request.getSearchText(), searchFields.getFirst(), fieldFacetsRequested);
-    
-    String filteredDocsRequest =
-        "q=" + urlEncodeUtf8(searchQueryString) +                      // search text
-        "&qf=" + urlEncodeUtf8(searchFieldsString) +                   // fields to search
+    return
+        buildFacetedQuery(request, meta, searchFields, withFieldFacets) + // search, facets and filters
         "&start=" + pagination.getOffset() +                           // first row to return
+        pagination.getCursorMark().map(mark ->
+          "&cursorMark=" + urlEncodeUtf8(mark)).orElse("") +           // or cursor of page (start is 0)
         "&rows=" + pagination.getNumRecords() +                        // number of documents to return
+        "&fl=" + urlEncodeUtf8(fieldsToReturn.trim()) +                // fields to return
+        "&sort=" + urlEncodeUtf8(SORTING_FIELDS) +                     // how to sort results
+        (request.isHighlight() ? buildHighlightParams(searchFields.getFirst()) : ""); // find fields matched
+  }
+
+  /**
+   * Performs the search defined by the request but returns only its total and
+   * facet counts (the same counts as getSearchResponse()); no documents are
+   * fetched, sorted or highlighted.
+   *
+   * @param solr client of the SOLR core to query
+   * @param limiter limiter of concurrent search calls
+   * @param request request specified by the service caller
+   * @param meta metadata object populated by "static" calls to SOLR
+   * @param deadline deadline of the request; met as by getSearchResponse()
+   * @return SOLR search response containing no documents
+   */
+  public static SearchResponse getCountsResponse(SolrCoreClient solr, AdmissionLimiter limiter,
+      SearchRequest request, Metadata meta, Deadline deadline) {
+    return getFacetedResponse(solr, limiter, request, deadline,
+        withFieldFacets -> buildCountsQuery(request, meta, withFieldFacets));
+  }
+
+  /**
+   * @return query string of the SOLR request made by getCountsResponse()
+   */
+  static String buildCountsQuery(SearchRequest request, Metadata meta) {
+    return buildCountsQuery(request, meta, true);
+  }
+
+  private static String buildCountsQuery(SearchRequest request, Metadata meta, boolean withFieldFacets) {
+    return
+        buildFacetedQuery(request, meta, meta.getSearchFields(request, true), withFieldFacets) + // search, facets and filters
+        "&rows=0";                                                     // counts only
+  }
+
+  // makes a search or counts call within the deadline, dropping field facets if they make it too slow
+  private static SearchResponse getFacetedResponse(SolrCoreClient solr, AdmissionLimiter limiter,
+      SearchRequest request, Deadline deadline, Function<Boolean,String> queryBuilder) {
+    // SOLR rejects cursorMark with timeAllowed, so the only searches made without a SOLR time budget
+    // are pages of clients which asked for page tokens (see Pagination) and streaming exports; these
+    // are bounded by the connection's read timeout alone.  All other searches and counts pass SOLR
+    // their share of the deadline as timeAllowed.
+    boolean timeAllowed = request.getPagination().flatMap(Pagination::getCursorMark).isEmpty();
+    if (!request.hasDocTypeFilter()) {
+      // no field facets to drop
+      return getTimedResponse(solr, limiter, queryBuilder.apply(true), deadline, 1, timeAllowed, false);
+    }
+    try {
+      return getTimedResponse(solr, limiter, queryBuilder.apply(true), deadline, FACETED_CALL_SHARE, timeAllowed, false);
+    }
+    catch (DeadlineExceededException e) {
+      LOG.warn("Search with field facets did not complete in its share of the deadline; repeating without them");
+      return getTimedResponse(solr, limiter, queryBuilder.apply(false), deadline, 1, timeAllowed, true);
+    }
+  }
+
+  // time is allotted once admitted, so waiting for admission is not counted twice
+  private static SearchResponse getTimedResponse(SolrCoreClient solr, AdmissionLimiter limiter,
+      String query, Deadline deadline, double share, boolean timeAllowed, boolean fieldFacetsOmitted) {
+    return limiter.execute(deadline, () -> {
+      long timeoutMillis = deadline.allot(share);
+      String timedQuery = !timeAllowed ? query :
+          query + "&timeAllowed=" + Math.max(1, (long)(timeoutMillis * TIME_ALLOWED_SHARE));
+      return solr.executeQuery(HttpMethod.POST, timedQuery, timeoutMillis, resp ->
+        SearchResponse.parse(timedQuery, resp, fieldFacetsOmitted));
+    });
+  }
+
+  // params shared by search and counts requests
+  private static String buildFacetedQuery(SearchRequest request, Metadata meta,
+      TwoTuple<FieldSet,Boolean> searchFields, boolean withFieldFacets) {
+    String searchQueryString = getSearchQueryString(request.getSearchText(), searchFields);
+    String searchFieldsString = searchFields.getFirst().getQueryFields();
+
+    String searchFiltersParam = buildQueryFilterParams(request);
+    String fieldQueryFacets = withFieldFacets ? buildFieldQueryFacets(request, meta) : "";
+
+    return
+        "q=" + urlEncodeUtf8(SEARCH_QUERY) +                            // tagged edismax query of userq
+        "&" + USER_QUERY_PARAM + "=" + urlEncodeUtf8(searchQueryString) + // search text
+        "&qf=" + urlEncodeUtf8(searchFieldsString) +                   // fields to search
         "&facet=true" +                                                // use facets
         "&facet.limit=-1" +                                            // turn off max # of facets returned
         "&facet.field=" + DOCUMENT_TYPE_FIELD +                        // declare document-type as facet field
-        "&facet.field=" + ORGANISM_FIELD +                             // declare organism as facet field
+        "&facet.field=" + urlEncodeUtf8(exclude(ORGANISM_FILTER_TAG) + ORGANISM_FIELD) + // organism facets ignore org filter
         fieldQueryFacets +                                             // special field facets
-        "&defType=edismax" +                                           // chosen query parser
-        "&fl=" + urlEncodeUtf8("* " + SCORE_FIELD) +                   // fields to return
-        "&sort=" + urlEncodeUtf8(SORTING_FIELDS) +                     // how to sort results
-        (omitResults ? "" : "&hl=true") +                              // turn on highlighting
-        (omitResults ? "" : "&hl.fl=*") +                              // highlight matches on all fields
-        (omitResults ? "" : "&hl.method=unified") +                    // chosen highlighting method
         searchFiltersParam;                                            // filters to apply to search
-    return solr.executeQuery(HttpMethod.POST, filteredDocsRequest, true, resp -> {
-      return Solr.parseResponse(filteredDocsRequest, resp);
+  }
+
+  /**
+   * Asks SOLR which of the searched fields matched the search text in each of
+   * the requested documents (the foundInFields of a search response), so that
+   * clients can request a page of results without highlighting and fetch it
+   * afterwards.
+   *
+   * @param solr client of the SOLR core to query
+   * @param limiter limiter of concurrent search calls
+   * @param request search and IDs of the documents to highlight
+   * @param meta metadata object populated by "static" calls to SOLR
+   * @param deadline deadline of the request
+   * @return SOLR response whose highlighting holds the matched fields of each document
+   */
+  public static SolrResponse getHighlighting(SolrCoreClient solr, AdmissionLimiter limiter,
+      HighlightRequest request, Metadata meta, Deadline deadline) {
+    String highlightRequest = buildHighlightQuery(request, meta);
+    return limiter.execute(deadline, () -> {
+      long timeoutMillis = deadline.allot(1);
+      String timedRequest = highlightRequest + "&timeAllowed=" + Math.max(1, (long)(timeoutMillis * TIME_ALLOWED_SHARE));
+      return solr.executeQuery(HttpMethod.POST, timedRequest, timeoutMillis, resp -> {
+        ResponseHeader.readBuffered(resp).observeQueryTime(SolrTransport.SELECT_HANDLER);
+        return Solr.parseResponse(timedRequest, resp);
+      });
     });
   }
 
-  private static String getSearchQueryString(String searchText, TwoTuple<List<DocumentField>,Boolean> searchFields) {
+  /**
+   * @return query string of the SOLR request made by getHighlighting()
+   */
+  static String buildHighlightQuery(HighlightRequest request, Metadata meta) {
+    SearchRequest searchRequest = request.getSearchRequest();
+    TwoTuple<FieldSet,Boolean> searchFields = meta.getSearchFields(searchRequest, true);
+    String searchQueryString = getSearchQueryString(searchRequest.getSearchText(), searchFields);
+    String documentIds = request.getDocumentIds().stream()
+        .map(id -> "\"" + id.replace("\\", "\\\\").replace("\"", "\\\"") + "\"")
+        .collect(Collectors.joining(" OR "));
+    return
+        "q=" + urlEncodeUtf8(searchQueryString) +                      // search text
+        "&qf=" + urlEncodeUtf8(searchFields.getFirst().getQueryFields()) + // fields to search
+        "&rows=" + request.getDocumentIds().size() +                   // number of documents to return
+        "&defType=edismax" +                                           // chosen query parser
+        "&fl=" + ID_FIELD +                                            // fields to return
+        buildHighlightParams(searchFields.getFirst()) +                // find fields matched
+        "&fq=" + urlEncodeUtf8(ID_FIELD + ":(" + documentIds + ")") +  // requested documents only
+        buildQueryFilterParams(searchRequest);                         // filters to apply to search
+  }
+
+  /**
+   * Highlighting is limited to the fields searched; matches in other fields
+   * cannot contribute to a document's score, and highlighting every stored
+   * field is the most expensive part of a search.
+   */
+  private static String buildHighlightParams(FieldSet searchFields) {
+    return searchFields.isEmpty() ? "" :
+        "&hl=true" +                                                   // turn on highlighting
+        "&hl.fl=" + urlEncodeUtf8(searchFields.getHighlightFields()) + // highlight matches on searched fields
+        "&hl.method=unified";                                          // chosen highlighting method
+  }
+
+  private static String tag(String tagName) {
+    return "{!tag=" + tagName + "}";
+  }
+
+  private static String exclude(String tagName) {
+    return "{!ex=" + tagName + "}";
+  }
+
+  private static String getSearchQueryString(String searchText, TwoTuple<FieldSet,Boolean> searchFields) {
     return !searchText.equals("*") ? searchText : searchFields.getSecond() ? "*:*" :
       // special case for raw wildcard; need to explicitly search fields if field filter present
-      searchFields.getFirst().stream().map(field -> field.getName() + ":*").collect(Collectors.joining(" "));
+      searchFields.getFirst().getFields().stream().map(field -> field.getName() + ":*").collect(Collectors.joining(" "));
   }
 
-  private static String buildFieldQueryFacets(String searchText, List<DocumentField> searchFields, boolean fieldQueryFacetsRequested) {
-    return !fieldQueryFacetsRequested || searchFields.isEmpty() ? "" : searchFields.stream()
-        .map(field -> "&facet.query=" + urlEncodeUtf8(field.getName() + ":(" + searchText + ")"))
+  /**
+   * Builds one facet query per searchable field of the filtered doc type,
+   * keyed by field name.  If a field filter is present, the (field-restricted)
+   * search query is excluded from the facet domain so that each count reflects
+   * matches in that field among documents passing the other filters, as if the
+   * field filter were off.
+   */
+  private static String buildFieldQueryFacets(SearchRequest request, Metadata meta) {
+    if (!request.hasDocTypeFilter()) return "";
+    String localParams = request.hasDocTypeFilterAndFields() ?
+        "{!ex=" + SEARCH_QUERY_TAG + " key=" : "{!key=";
+    return meta.getSearchFields(request, false).getFirst().getFields().stream()
+        .map(field -> "&facet.query=" + urlEncodeUtf8(localParams + field.getName() + "}" +
+            field.getName() + ":(" + request.getSearchText() + ")"))
         .collect(Collectors.joining());
   }
 
-  private static String buildQueryFilterParams(SearchRequest request, boolean applyOrganismFilter) {
-    // if applyOrganismFilter is false, then still filter on orgs this request cares about (i.e. metadata orgs)
-    Optional<List<String>> organisms = applyOrganismFilter ?
-        request.getRestrictSearchToOrganisms() :
-        request.getRestrictMetadataToOrganisms();
-
+  private static String buildQueryFilterParams(SearchRequest request) {
     return
       // add always-on filter to remove metadata and batch doc types from any search results
       "&fq=" + urlEncodeUtf8("-(" + DOCUMENT_TYPE_FIELD + ":(" + CATEGORIES_META_DOCTYPE + "))") +
@@ -162,10 +489,12 @@ public class SolrCalls {
          "&fq=" + urlEncodeUtf8(DOCUMENT_TYPE_FIELD + ":(" + filter.getDocType() + ")")
       ).orElse("") +
 
-      // apply organism filter only if asked
+      // apply organism filter; tagged so organism facets can exclude it.  Metadata
+      // organisms need no filter of their own: organism facets outside that list
+      // are discarded, and documents with a listed organism always pass it.
       // example: -(organism:[* TO *] AND -organism:("Plasmodium falciparum 3D7" OR "Plasmodium falciparum 7G8"))
-      organisms.map(orgs ->
-        "&fq=" + urlEncodeUtf8("-(" + ORGANISM_FIELD + ":[* TO *] AND -" + ORGANISM_FIELD + ":(" + getOrgFilterCondition(orgs) + "))")
+      request.getRestrictSearchToOrganisms().map(orgs ->
+        "&fq=" + urlEncodeUtf8(tag(ORGANISM_FILTER_TAG) + "-(" + ORGANISM_FIELD + ":[* TO *] AND -" + ORGANISM_FIELD + ":(" + getOrgFilterCondition(orgs) + "))")
       ).orElse("");
   }
 
@@ -175,47 +504,70 @@ public class SolrCalls {
         .collect(Collectors.joining(" OR "));
   }
 
-  private static String formatFieldsForRequest(List<DocumentField> fields) {
-    return fields.isEmpty() ? "" : fields.stream()
-        .map(field -> field.getName() + (field.getBoost() == 1 ? "" : ("^" + String.format("%.2f", field.getBoost()))))
-        .collect(Collectors.joining(" "));
+  /**
+   * Streams primary keys, scores and projects of all documents matching the
+   * request to the output stream, one tab-delimited row per document.  Results
+   * are paged from SOLR with cursorMark; each page is converted to rows as it is
+   * read (see ExportRowParser), and the next page is fetched in the background
+   * while the current one is written.  The export is admitted by the limiter
+   * before anything is written, and holds its place until all pages are read.
+   *
+   * @param solr client of the SOLR core to query
+   * @param limiter limiter of concurrent exports
+   * @param request request specified by the service caller
+   * @param meta metadata object populated by "static" calls to SOLR
+   * @param output stream to write rows to
+   * @param prefetchExecutor executor on which to fetch upcoming pages
+   * @param maxPagesAhead maximum number of pages to fetch ahead of the writer
+   */
+  public static void writeSearchResponse(SolrCoreClient solr, AdmissionLimiter limiter, SearchRequest request,
+      Metadata meta, OutputStream output, ExecutorService prefetchExecutor, int maxPagesAhead) throws IOException {
+    String staticPortionOfRequest = buildExportQuery(request, meta);
+    try (AdmissionLimiter.Permit permit = limiter.acquire();
+         CursorPrefetcher<byte[]> pages = new CursorPrefetcher<>(prefetchExecutor, maxPagesAhead, cursorMark -> {
+      String requestUrl = staticPortionOfRequest + "&cursorMark=" + urlEncodeUtf8(cursorMark);
+      // pages are large and may be slow, so do not count against SOLR's health as slow searches do
+      return permit.time(() -> solr.executeBulkQuery(HttpMethod.POST, requestUrl, response -> {
+        // rows are buffered in their (compact) output form until the writer is ready for them
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        try (Reader body = new InputStreamReader(response.readEntity(InputStream.class), StandardCharsets.UTF_8);
+             Writer rowWriter = new BufferedWriter(new OutputStreamWriter(rows))) {
+          String nextCursorMark = ExportRowParser.writeRows(body, rowWriter);
+          rowWriter.flush();
+          return new TwoTuple<>(rows.toByteArray(), nextCursorMark);
+        }
+        catch (IOException e) {
+          throw new SiteSearchRuntimeException("Unable to read SOLR response page", e);
+        }
+      }));
+    })) {
+      Optional<byte[]> page;
+      while ((page = pages.nextPage()).isPresent()) {
+        output.write(page.get());
+      }
+    }
+    output.flush();
   }
 
-  public static void writeSearchResponse(Solr solr, SearchRequest request, Metadata meta, OutputStream output) throws IOException {
-    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output));
-    String nextCursorMark = "*";
-    String lastCursorMark = null;
-    TwoTuple<List<DocumentField>,Boolean> searchFields = meta.getSearchFields(request, true);
+  /**
+   * @return query string (minus cursorMark) of the SOLR requests made by writeSearchResponse()
+   */
+  static String buildExportQuery(SearchRequest request, Metadata meta) {
+    TwoTuple<FieldSet,Boolean> searchFields = meta.getSearchFields(request, true);
     String searchQueryString = getSearchQueryString(request.getSearchText(), searchFields);
-    String searchFieldsString = formatFieldsForRequest(searchFields.getFirst());
-    String searchFiltersParam = buildQueryFilterParams(request, true);
+    String searchFieldsString = searchFields.getFirst().getQueryFields();
+    String searchFiltersParam = buildQueryFilterParams(request);
     String fieldsToReturn = PRIMARY_KEY_FIELD + " " + SCORE_FIELD + " " + PROJECT_FIELD;
-    String staticPortionOfRequest =
+    return
         "q=" + urlEncodeUtf8(searchQueryString) +          // search text
         "&qf=" + urlEncodeUtf8(searchFieldsString) +       // fields to search
         "&rows=" + FETCH_SIZE_FROM_SOLR +                  // number of documents to return
         "&defType=edismax" +                               // chosen query parser
         "&sort=" + urlEncodeUtf8(SORTING_FIELDS) +         // how to sort results
         "&fl=" + urlEncodeUtf8(fieldsToReturn) +           // fields to return
-        "&echoParams=none" +                               // do not echo param info
+        "&wt=json" +                                       // parsed as a stream of JSON tokens
+        "&omitHeader=true" +                               // response header not needed
         searchFiltersParam;                                // filters to apply to search
-    while (!nextCursorMark.equals(lastCursorMark)) {
-      String requestUrl = staticPortionOfRequest + "&cursorMark=" + urlEncodeUtf8(nextCursorMark);
-      SolrResponse response = solr.executeQuery(HttpMethod.POST, requestUrl, true, resp -> {
-        return Solr.parseResponse(requestUrl, resp);
-      });
-      for (JSONObject document : response.getDocuments()) {
-        writer.write(document.getJSONArray(PRIMARY_KEY_FIELD).toString());
-        writer.write(TAB);
-        writer.write(String.valueOf(document.getDouble(SCORE_FIELD)));
-        writer.write(TAB);
-        writer.write(document.optString(PROJECT_FIELD, ""));
-        writer.write(NL);
-      }
-      lastCursorMark = nextCursorMark;
-      nextCursorMark = response.getNextCursorMark().get();
-    }
-    writer.flush();
   }
 
 }
@@ -0,0 +1,137 @@
+package org.gusdb.sitesearch.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Incremental JSON generator which writes directly to an output writer rather
+ * than building an object graph first.  Output is compact unless pretty
+ * printing is requested, in which case it is indented like JSONObject.toString(2).
+ */
+public class StreamingJsonWriter {
+
+  private static final int INDENT_SPACES = 2;
+
+  private final Writer _out;
+  private final boolean _pretty;
+
+  // one entry per open object/array; true once it contains an element
+  private final Deque<Boolean> _hasElements = new ArrayDeque<>();
+  private boolean _afterKey = false;
+
+  public StreamingJsonWriter(Writer out, boolean pretty) {
+    _out = out;
+    _pretty = pretty;
+  }
+
+  public StreamingJsonWriter beginObject() throws IOException {
+    return begin('{');
+  }
+
+  public StreamingJsonWriter endObject() throws IOException {
+    return end('}');
+  }
+
+  public StreamingJsonWriter beginArray() throws IOException {
+    return begin('[');
+  }
+
+  public StreamingJsonWriter endArray() throws IOException {
+    return end(']');
+  }
+
+  public StreamingJsonWriter key(String key) throws IOException {
+    startElement();
+    _out.write(JSONObject.quote(key));
+    _out.write(_pretty ? ": " : ":");
+    _afterKey = true;
+    return this;
+  }
+
+  /**
+   * Writes a key and value; nothing is written if the value is null, matching
+   * JSONObject.put(key, null), which removes the key.
+   */
+  public StreamingJsonWriter optField(String key, Object value) throws IOException {
+    return value == null ? this : key(key).value(value);
+  }
+
+  /**
+   * Writes a value.  org.json objects and arrays, maps and collections are
+   * written element by element; other values are written as JSON primitives.
+   */
+  public StreamingJsonWriter value(Object value) throws IOException {
+    if (value instanceof JSONObject) {
+      JSONObject json = (JSONObject)value;
+      beginObject();
+      for (String key : json.keySet()) {
+        key(key).value(json.opt(key));
+      }
+      return endObject();
+    }
+    if (value instanceof JSONArray) {
+      beginArray();
+      for (Object element : (JSONArray)value) {
+        value(element);
+      }
+      return endArray();
+    }
+    if (value instanceof Map || value instanceof Collection) {
+      return value(JSONObject.wrap(value));
+    }
+    startElement();
+    _out.write(value == null || JSONObject.NULL.equals(value) ? "null" : JSONObject.valueToString(value));
+    return this;
+  }
+
+  public void flush() throws IOException {
+    _out.flush();
+  }
+
+  private StreamingJsonWriter begin(char bracket) throws IOException {
+    startElement();
+    _out.write(bracket);
+    _hasElements.push(false);
+    return this;
+  }
+
+  private StreamingJsonWriter end(char bracket) throws IOException {
+    if (_hasElements.pop()) {
+      newLine(_hasElements.size());
+    }
+    _out.write(bracket);
+    return this;
+  }
+
+  // writes any separator and indentation needed before the next element
+  private void startElement() throws IOException {
+    if (_afterKey) {
+      _afterKey = false;
+      return;
+    }
+    if (_hasElements.isEmpty()) return;
+    if (_hasElements.peek()) {
+      _out.write(',');
+    }
+    else {
+      _hasElements.pop();
+      _hasElements.push(true);
+    }
+    newLine(_hasElements.size());
+  }
+
+  private void newLine(int depth) throws IOException {
+    if (!_pretty) return;
+    _out.write('\n');
+    for (int i = 0; i < depth * INDENT_SPACES; i++) {
+      _out.write(' ');
+    }
+  }
+}
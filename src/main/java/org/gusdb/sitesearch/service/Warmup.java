@@ -0,0 +1,189 @@
+package org.gusdb.sitesearch.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gusdb.sitesearch.service.metadata.Metadata;
+import org.gusdb.sitesearch.service.metadata.MetadataCache;
+import org.gusdb.sitesearch.service.request.Deadline;
+import org.gusdb.sitesearch.service.request.SearchRequest;
+import org.gusdb.sitesearch.service.solr.AdmissionLimiter;
+import org.gusdb.sitesearch.service.solr.SearchResponse;
+import org.gusdb.sitesearch.service.solr.SolrCallExecutor;
+import org.gusdb.sitesearch.service.solr.SolrCoreClient;
+import org.json.JSONObject;
+
+/**
+ * Prepares a newly started service for traffic.  In the background, loads
+ * metadata (retrying until SOLR answers), then runs a set of synthetic
+ * searches, one per search text, project and document type (and each without
+ * a project or document type), through the same parsing, query building, SOLR
+ * call and formatting code as real searches.  This compiles the hot paths and
+ * fills SOLR's caches for the common filter queries.  The service reports
+ * itself ready (see the /ready endpoint) once this is done; synthetic searches
+ * stop early if they run past the time limit, and failed ones are only logged.
+ */
+public class Warmup {
+
+  private static final Logger LOG = LogManager.getLogger(Warmup.class);
+
+  // time between attempts to load metadata while SOLR is unavailable
+  private static final long METADATA_RETRY_MILLIS = 5000;
+
+  private static final int NUM_RECORDS = 20;
+
+  private final SolrCoreClient _solr;
+  private final MetadataCache _metadataCache;
+  private final AdmissionLimiter _limiter;
+  private final int _searchDeadlineMillis;
+  private final int _maxMultiTextLength;
+  private final List<String> _searchTexts;
+  private final Optional<List<String>> _projects;
+  private final int _rounds;
+  private final long _maxMillis;
+
+  private volatile boolean _complete = false;
+
+  // statistics
+  private volatile long _durationMillis;
+  private final LongAdder _numSearches = new LongAdder();
+  private final LongAdder _numFailures = new LongAdder();
+
+  /**
+   * @param solr client of the core to warm up
+   * @param metadataCache cache from which metadata is loaded
+   * @param limiter limiter of concurrent search calls
+   * @param searchDeadlineMillis time allowed for each synthetic search
+   * @param maxMultiTextLength maximum length of multi-text summary values, as for real searches
+   * @param searchTexts texts searched for
+   * @param projects projects searched within; if empty, those named in the field metadata
+   * @param rounds number of times each synthetic search is run; 0 runs none
+   * @param maxMillis time after which synthetic searches stop and the service is ready regardless
+   */
+  public Warmup(SolrCoreClient solr, MetadataCache metadataCache, AdmissionLimiter limiter,
+      int searchDeadlineMillis, int maxMultiTextLength, List<String> searchTexts,
+      Optional<List<String>> projects, int rounds, long maxMillis) {
+    _solr = solr;
+    _metadataCache = metadataCache;
+    _limiter = limiter;
+    _searchDeadlineMillis = searchDeadlineMillis;
+    _maxMultiTextLength = maxMultiTextLength;
+    _searchTexts = searchTexts;
+    _projects = projects;
+    _rounds = rounds;
+    _maxMillis = maxMillis;
+  }
+
+  /**
+   * Starts warming up on a background thread
+   */
+  public void start() {
+    SolrCallExecutor.newThreadFactory("warmup").newThread(this::run).start();
+  }
+
+  private void run() {
+    long start = System.currentTimeMillis();
+    try {
+      Metadata meta = loadMetadata();
+      List<SearchRequest> searches = getSearches(meta);
+      LOG.info("Loaded metadata of core " + _solr.getCore() + " in " + (System.currentTimeMillis() - start) +
+          "ms; running " + searches.size() + " warmup searches " + _rounds + " time(s)");
+      runSearches(meta, searches, start);
+      _durationMillis = System.currentTimeMillis() - start;
+      LOG.info("Warmup of core " + _solr.getCore() + " complete in " + _durationMillis + "ms; " + _numSearches.sum() +
+          " searches run, " + _numFailures.sum() + " failed");
+      _complete = true;
+    }
+    catch (InterruptedException e) {
+      LOG.warn("Warmup of core " + _solr.getCore() + " interrupted");
+    }
+  }
+
+  private Metadata loadMetadata() throws InterruptedException {
+    while (true) {
+      try {
+        return _metadataCache.getMetadata();
+      }
+      catch (RuntimeException e) {
+        LOG.warn("Unable to load metadata of core " + _solr.getCore() + "; will try again in " + METADATA_RETRY_MILLIS + "ms", e);
+        Thread.sleep(METADATA_RETRY_MILLIS);
+      }
+    }
+  }
+
+  private List<SearchRequest> getSearches(Metadata meta) {
+    List<Optional<String>> projects = new ArrayList<>();
+    projects.add(Optional.empty());
+    _projects.orElseGet(() -> new ArrayList<>(meta.getProjects())).forEach(project -> projects.add(Optional.of(project)));
+    List<Optional<String>> docTypes = new ArrayList<>();
+    docTypes.add(Optional.empty());
+    meta.getDocumentTypeIds().forEach(docType -> docTypes.add(Optional.of(docType)));
+
+    // built from JSON so request parsing is warmed too
+    List<SearchRequest> searches = new ArrayList<>();
+    for (String searchText : _searchTexts) {
+      for (Optional<String> project : projects) {
+        for (Optional<String> docType : docTypes) {
+          JSONObject json = new JSONObject()
+            .put("searchText", searchText)
+            .put("pagination", new JSONObject().put("offset", 0).put("numRecords", NUM_RECORDS));
+          project.ifPresent(p -> json.put("restrictToProject", p));
+          docType.ifPresent(d -> json.put("documentTypeFilter", new JSONObject().put("documentType", d)));
+          searches.add(new SearchRequest(json, true, false, false));
+        }
+      }
+    }
+    return searches;
+  }
+
+  private void runSearches(Metadata meta, List<SearchRequest> searches, long start) {
+    for (int round = 0; round < _rounds; round++) {
+      for (SearchRequest request : searches) {
+        if (System.currentTimeMillis() - start > _maxMillis) {
+          LOG.warn("Warmup of core " + _solr.getCore() + " stopped after " + _maxMillis + "ms with " +
+              _numSearches.sum() + " searches run");
+          return;
+        }
+        _numSearches.increment();
+        try {
+          meta.validateRequest(request);
+          request.getNormalizedKey();
+          SearchResponse response = SolrCalls.getSearchResponse(_solr, _limiter, request, meta,
+              new Deadline(_searchDeadlineMillis));
+          ResultsFormatter.writeResults(meta, Service.getFacetCounts(request, response),
+              response.getResponse().getTotalCount(), ResultsFormatter.getResultDocuments(meta, response.getResponse()),
+              response.isPartialResults(), request.getRestrictToProject(), Optional.empty(), _maxMultiTextLength,
+              new StreamingJsonWriter(Writer.nullWriter(), false));
+        }
+        catch (RuntimeException | IOException e) {
+          _numFailures.increment();
+          LOG.warn("Warmup search failed: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return whether warmup has finished and the service is ready for traffic
+   */
+  public boolean isComplete() {
+    return _complete;
+  }
+
+  /**
+   * @return snapshot of warmup progress
+   */
+  public JSONObject getStatistics() {
+    return new JSONObject()
+      .put("complete", _complete)
+      .put("durationMillis", _complete ? _durationMillis : null)
+      .put("searches", _numSearches.sum())
+      .put("failures", _numFailures.sum());
+  }
+}
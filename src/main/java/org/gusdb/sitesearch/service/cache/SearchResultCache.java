@@ -0,0 +1,211 @@
+package org.gusdb.sitesearch.service.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gusdb.sitesearch.service.solr.IndexVersionTracker;
+import org.json.JSONObject;
+
+/**
+ * In-process LRU cache of formatted search responses, keyed by normalized
+ * request.  Entries expire after a TTL, and the whole cache is dropped when
+ * the SOLR core's index version changes.  A max size of zero disables caching.
+ *
+ * Expired entries are kept for a further stale period, during which they are
+ * not served normally but may be fetched with getStale() when SOLR cannot
+ * answer the request.
+ */
+public class SearchResultCache {
+
+  private static final Logger LOG = LogManager.getLogger(SearchResultCache.class);
+
+  private static class Entry {
+
+    private final byte[] _response;
+    private final long _createdAt;
+
+    public Entry(byte[] response) {
+      _response = response;
+      _createdAt = System.currentTimeMillis();
+    }
+  }
+
+  private final IndexVersionTracker _indexVersion;
+  private final int _maxEntries;
+  private final long _ttlMillis;
+  private final long _staleMillis;
+  private final LinkedHashMap<String,Entry> _entries;
+  private Optional<String> _cachedVersion = Optional.empty();
+
+  // statistics
+  private final LongAdder _numHits = new LongAdder();
+  private final LongAdder _numMisses = new LongAdder();
+  private final LongAdder _numEvictions = new LongAdder();
+  private final LongAdder _numExpirations = new LongAdder();
+  private final LongAdder _numInvalidations = new LongAdder();
+  private final LongAdder _numStaleHits = new LongAdder();
+
+  /**
+   * @param indexVersion tracker of the current index version
+   * @param maxEntries maximum number of responses to retain; 0 disables the cache
+   * @param ttlMillis maximum age of a cached response
+   * @param staleMillis time past its TTL that a response is kept for use while SOLR is unavailable
+   */
+  public SearchResultCache(IndexVersionTracker indexVersion, int maxEntries, long ttlMillis, long staleMillis) {
+    _indexVersion = indexVersion;
+    _maxEntries = maxEntries;
+    _ttlMillis = ttlMillis;
+    _staleMillis = staleMillis;
+    _entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+        if (size() > _maxEntries) {
+          _numEvictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return _maxEntries > 0;
+  }
+
+  /**
+   * @param key normalized request key
+   * @return cached response, if present and still valid
+   */
+  public Optional<byte[]> get(String key) {
+    if (!isEnabled()) return Optional.empty();
+    Optional<String> currentVersion = _indexVersion.getVersion();
+    synchronized (this) {
+      invalidateIfVersionChanged(currentVersion);
+      Entry entry = _entries.get(key);
+      if (entry != null && System.currentTimeMillis() - entry._createdAt > _ttlMillis) {
+        // kept for getStale() until replaced or past the stale period
+        if (System.currentTimeMillis() - entry._createdAt > _ttlMillis + _staleMillis) {
+          _entries.remove(key);
+        }
+        _numExpirations.increment();
+        entry = null;
+      }
+      if (entry == null) {
+        _numMisses.increment();
+        return Optional.empty();
+      }
+      _numHits.increment();
+      return Optional.of(entry._response);
+    }
+  }
+
+  /**
+   * Looks up a response to serve when SOLR is unavailable, which may have
+   * expired (but not by more than the stale period)
+   *
+   * @param key normalized request key
+   * @return cached response, if present
+   */
+  public Optional<byte[]> getStale(String key) {
+    if (!isEnabled()) return Optional.empty();
+    Optional<String> currentVersion = _indexVersion.getVersion();
+    synchronized (this) {
+      invalidateIfVersionChanged(currentVersion);
+      Entry entry = _entries.get(key);
+      if (entry == null || System.currentTimeMillis() - entry._createdAt > _ttlMillis + _staleMillis) {
+        return Optional.empty();
+      }
+      _numStaleHits.increment();
+      return Optional.of(entry._response);
+    }
+  }
+
+  private void put(String key, byte[] response, Optional<String> indexVersion) {
+    Optional<String> currentVersion = _indexVersion.getVersion();
+    synchronized (this) {
+      invalidateIfVersionChanged(currentVersion);
+      // skip responses built from an index which has since changed
+      if (indexVersion.equals(_cachedVersion)) {
+        _entries.put(key, new Entry(response));
+      }
+    }
+  }
+
+  private void invalidateIfVersionChanged(Optional<String> currentVersion) {
+    if (!currentVersion.equals(_cachedVersion)) {
+      if (!_entries.isEmpty()) {
+        LOG.info("Index version changed; dropping " + _entries.size() + " cached search responses");
+        _numInvalidations.increment();
+        _entries.clear();
+      }
+      _cachedVersion = currentVersion;
+    }
+  }
+
+  /**
+   * Wraps an output stream so that the response written to it is also
+   * captured.  Once the response has been completely written, calling
+   * commit() adds it to the cache.
+   *
+   * @param key normalized request key
+   * @param out stream to which the response is written
+   * @return stream to write the response to
+   */
+  public Recorder record(String key, OutputStream out) {
+    return new Recorder(key, out, _indexVersion.getVersion());
+  }
+
+  public class Recorder extends FilterOutputStream {
+
+    private final String _key;
+    private final Optional<String> _version;
+    private final ByteArrayOutputStream _copy;
+
+    private Recorder(String key, OutputStream out, Optional<String> version) {
+      super(out);
+      _key = key;
+      _version = version;
+      _copy = isEnabled() ? new ByteArrayOutputStream() : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      if (_copy != null) _copy.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      if (_copy != null) _copy.write(b, off, len);
+    }
+
+    public void commit() {
+      if (_copy != null) put(_key, _copy.toByteArray(), _version);
+    }
+  }
+
+  /**
+   * @return snapshot of cache statistics since startup
+   */
+  public synchronized JSONObject getStatistics() {
+    return new JSONObject()
+      .put("enabled", isEnabled())
+      .put("size", _entries.size())
+      .put("maxSize", _maxEntries)
+      .put("hits", _numHits.sum())
+      .put("misses", _numMisses.sum())
+      .put("evictions", _numEvictions.sum())
+      .put("expirations", _numExpirations.sum())
+      .put("invalidations", _numInvalidations.sum())
+      .put("staleHits", _numStaleHits.sum());
+  }
+}
@@ -0,0 +1,132 @@
+package org.gusdb.sitesearch.service.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.gusdb.sitesearch.service.exception.DeadlineExceededException;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+import org.gusdb.sitesearch.service.metrics.Metrics;
+import org.gusdb.sitesearch.service.request.Deadline;
+import org.json.JSONObject;
+
+/**
+ * Coalesces concurrent computations of the same key.  The first caller for a
+ * key (the leader) runs the computation; callers arriving with the same key
+ * while it runs (followers) wait for and share its result, or its exception,
+ * until their own deadline passes.  The exception is not shared if the leader
+ * ran out of time (DeadlineExceededException) while a follower still has time
+ * left: the follower tries again, running its own computation unless another
+ * caller has started one meanwhile.
+ * Nothing is retained once the computation completes, so this protects the
+ * backend from bursts of identical requests even when caching is disabled.
+ *
+ * @param <K> type of key identifying a computation
+ * @param <V> type of computed value; must be safe to share between threads
+ */
+public class SingleFlight<K,V> {
+
+  private final String _name;
+  private final ConcurrentMap<K,CompletableFuture<V>> _inFlight = new ConcurrentHashMap<>();
+
+  // statistics
+  private final LongAdder _numLeaders = new LongAdder();
+  private final LongAdder _numFollowers = new LongAdder();
+  private final LongAdder _numRetries = new LongAdder();
+
+  /**
+   * @param name name of the coalesced operation, used in metrics
+   */
+  public SingleFlight(String name) {
+    _name = name;
+  }
+
+  /**
+   * Runs the computation, or waits for an identical one already running
+   *
+   * @param key key identifying the computation
+   * @param deadline deadline of the caller; bounds the wait for a running computation
+   * @param computation computation to run if none is running for the key
+   * @return computed value
+   * @throws DeadlineExceededException if the deadline passes while waiting for a running computation
+   */
+  public V execute(K key, Deadline deadline, Supplier<V> computation) {
+    while (true) {
+      CompletableFuture<V> future = new CompletableFuture<>();
+      CompletableFuture<V> existing = _inFlight.putIfAbsent(key, future);
+      if (existing == null) {
+        return lead(key, future, computation);
+      }
+      _numFollowers.increment();
+      Metrics.COALESCED_REQUESTS.inc(_name);
+      try {
+        return await(existing, deadline);
+      }
+      catch (ExecutionException e) {
+        // a leader with less time than this caller fails on its own deadline
+        if (!(e.getCause() instanceof DeadlineExceededException) || deadline.isExpired()) {
+          throw unwrap(e);
+        }
+        // its leader may not have removed the failed computation yet
+        _inFlight.remove(key, existing);
+        _numRetries.increment();
+      }
+    }
+  }
+
+  private V lead(K key, CompletableFuture<V> future, Supplier<V> computation) {
+    _numLeaders.increment();
+    try {
+      V value = computation.get();
+      future.complete(value);
+      return value;
+    }
+    catch (RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      throw e;
+    }
+    finally {
+      _inFlight.remove(key, future);
+    }
+  }
+
+  private V await(CompletableFuture<V> future, Deadline deadline) throws ExecutionException {
+    try {
+      return future.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException e) {
+      // the computation carries on for its leader
+      throw new DeadlineExceededException("Request deadline passed while waiting for coalesced " + _name + " request", e);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SiteSearchRuntimeException("Interrupted while waiting for coalesced " + _name + " request", e);
+    }
+  }
+
+  private RuntimeException unwrap(ExecutionException e) {
+    if (e.getCause() instanceof RuntimeException) {
+      return (RuntimeException)e.getCause();
+    }
+    if (e.getCause() instanceof Error) {
+      throw (Error)e.getCause();
+    }
+    return new SiteSearchRuntimeException("Coalesced " + _name + " request failed", e.getCause());
+  }
+
+  /**
+   * @return snapshot of coalescing statistics since startup
+   */
+  public JSONObject getStatistics() {
+    return new JSONObject()
+      .put("inFlight", _inFlight.size())
+      .put("leaders", _numLeaders.sum())
+      .put("followers", _numFollowers.sum())
+      .put("retries", _numRetries.sum());
+  }
+}
@@ -0,0 +1,16 @@
+package org.gusdb.sitesearch.service.exception;
+
+/**
+ * Thrown when a request's deadline passes before SOLR answers it; mapped to 504
+ */
+public class DeadlineExceededException extends SiteSearchRuntimeException {
+
+  public DeadlineExceededException(String message) {
+    super(message);
+  }
+
+  public DeadlineExceededException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+}
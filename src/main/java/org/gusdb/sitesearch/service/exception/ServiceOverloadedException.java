@@ -0,0 +1,20 @@
+package org.gusdb.sitesearch.service.exception;
+
+/**
+ * Thrown when a request is shed because SOLR (or the service) is saturated;
+ * mapped to 503 with a Retry-After header.
+ */
+public class ServiceOverloadedException extends RuntimeException {
+
+  private final long _retryAfterSeconds;
+
+  public ServiceOverloadedException(String message, long retryAfterSeconds) {
+    super(message);
+    _retryAfterSeconds = retryAfterSeconds;
+  }
+
+  public long getRetryAfterSeconds() {
+    return _retryAfterSeconds;
+  }
+
+}
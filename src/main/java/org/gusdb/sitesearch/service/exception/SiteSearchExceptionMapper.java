@@ -1,5 +1,8 @@
 package org.gusdb.sitesearch.service.exception;
 
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.ExceptionMapper;
 
@@ -15,11 +18,45 @@ public class SiteSearchExceptionMapper implements ExceptionMapper<Exception> {
   public Response toResponse(Exception exception) {
     try { throw exception; }
 
+    catch (InvalidRequestException e) {
+      // the client's fault; tell it why
+      return Response.status(Response.Status.BAD_REQUEST)
+          .type(MediaType.TEXT_PLAIN)
+          .entity(e.getMessage())
+          .build();
+    }
+
+    catch (ServiceOverloadedException e) {
+      // load shedding; tell the client when to try again
+      LOG.warn(e.getMessage());
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+          .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+          .build();
+    }
+
+    catch (SolrUnavailableException e) {
+      // SOLR is down or failing (or not being called while it recovers)
+      LOG.warn(e.getMessage(), e.getCause());
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+          .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+          .build();
+    }
+
+    catch (DeadlineExceededException e) {
+      LOG.warn(e.getMessage());
+      return Response.status(Response.Status.GATEWAY_TIMEOUT).build();
+    }
+
     catch (SolrRuntimeException | SiteSearchRuntimeException e) {
       LOG.error("Server runtime exception occurred while processing request", e);
       return Response.serverError().build();
     }
 
+    catch (WebApplicationException e) {
+      // carries its own response (e.g. 404 for a path serving no core)
+      return e.getResponse();
+    }
+
     catch (Exception e) {
       // all other exceptions
       LOG.error("Unknown exception occurred while processing request", e);
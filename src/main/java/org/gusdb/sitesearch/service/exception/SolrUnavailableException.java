@@ -0,0 +1,27 @@
+package org.gusdb.sitesearch.service.exception;
+
+/**
+ * Thrown when SOLR cannot be reached, fails with a server error, or is not
+ * being called because its circuit breaker is open; mapped to 503 with a
+ * Retry-After header.  Requests which have a recent cached response may serve
+ * that (marked stale) instead.
+ */
+public class SolrUnavailableException extends SiteSearchRuntimeException {
+
+  private final long _retryAfterSeconds;
+
+  public SolrUnavailableException(String message, long retryAfterSeconds) {
+    super(message);
+    _retryAfterSeconds = retryAfterSeconds;
+  }
+
+  public SolrUnavailableException(String message, long retryAfterSeconds, Throwable cause) {
+    super(message, cause);
+    _retryAfterSeconds = retryAfterSeconds;
+  }
+
+  public long getRetryAfterSeconds() {
+    return _retryAfterSeconds;
+  }
+
+}
@@ -1,11 +1,11 @@
 package org.gusdb.sitesearch.service.metadata;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
 
-import org.json.JSONObject;
+import org.gusdb.sitesearch.service.StreamingJsonWriter;
 
 public class Category implements Iterable<DocumentType> {
 
@@ -31,10 +31,14 @@ public class Category implements Iterable<DocumentType> {
     return _docTypes.iterator();
   }
 
-  public JSONObject toJson() {
-    return new JSONObject()
-      .put("name", _name)
-      .put("documentTypes", _docTypes.stream().map(t -> t.getId()).collect(Collectors.toList()));
+  public void writeJson(StreamingJsonWriter out) throws IOException {
+    out.beginObject()
+      .key("name").value(_name)
+      .key("documentTypes").beginArray();
+    for (DocumentType docType : _docTypes) {
+      out.value(docType.getId());
+    }
+    out.endArray().endObject();
   }
 
 }
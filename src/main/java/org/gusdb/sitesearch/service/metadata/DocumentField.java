@@ -1,11 +1,13 @@
 package org.gusdb.sitesearch.service.metadata;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
 import org.gusdb.fgputil.json.JsonUtil;
+import org.gusdb.sitesearch.service.StreamingJsonWriter;
 import org.json.JSONObject;
 
 public class DocumentField {
@@ -20,6 +22,7 @@ public class DocumentField {
   private final double _boost;
   private final Optional<List<String>> _includeProjects;
   private double _boostMultiplier = 1;
+  private String _queryField;
 
   public DocumentField(JSONObject fieldJson) {
     _name = fieldJson.getString("name");
@@ -32,7 +35,15 @@ public class DocumentField {
     _boost = fieldJson.optDouble("boost", 1);
     _includeProjects = Optional
       .ofNullable(fieldJson.optJSONArray("includeProjects"))
-      .map(json -> Arrays.asList(JsonUtil.toStringArray(json)));
+      .map(json -> List.of(JsonUtil.toStringArray(json)));
+    _queryField = formatQueryField();
+  }
+
+  // name and boost as passed in the qf param; formatted once since fields are
+  // shared by every request
+  private String formatQueryField() {
+    double boost = getBoost();
+    return _name + (boost == 1 ? "" : ("^" + String.format("%.2f", boost)));
   }
 
   private String getDisplay(String term) {
@@ -78,21 +89,31 @@ public class DocumentField {
     return _boost * _boostMultiplier;
   }
 
+  public String getQueryField() {
+    return _queryField;
+  }
+
+  public Optional<List<String>> getIncludeProjects() {
+    return _includeProjects;
+  }
+
   public boolean includeInProject(String projectId) {
     return _includeProjects
       .map(list -> list.contains(projectId))
       .orElse(true);
   }
 
-  public JSONObject toJson() {
-    return new JSONObject()
-      .put("name", _name)
-      .put("displayName", _displayName)
-      .put("term", _term)
-      .put("isSubtitle", _isSubtitle);
+  public void writeJson(StreamingJsonWriter out) throws IOException {
+    out.beginObject()
+      .key("name").value(_name)
+      .key("displayName").value(_displayName)
+      .key("term").value(_term)
+      .key("isSubtitle").value(_isSubtitle)
+      .endObject();
   }
 
   public void setBoostMultiplier(double d) {
     _boostMultiplier = d;
+    _queryField = formatQueryField();
   }
 }
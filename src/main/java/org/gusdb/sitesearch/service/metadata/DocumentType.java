@@ -1,5 +1,6 @@
 package org.gusdb.sitesearch.service.metadata;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -7,8 +8,7 @@ import java.util.Optional;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.gusdb.sitesearch.service.StreamingJsonWriter;
 
 public class DocumentType {
 
@@ -20,7 +20,9 @@ public class DocumentType {
   private final Optional<String> _wdkSearchUrlName;
   private final List<DocumentField> _fields;
 
-  private Optional<Integer> _count;
+  // precomputed per-project views of _fields, rebuilt when fields are added
+  private FieldIndex _summaryFields = FieldIndex.EMPTY;
+  private FieldIndex _searchFields = FieldIndex.EMPTY;
 
   public DocumentType(
       String id,
@@ -36,14 +38,15 @@ public class DocumentType {
     _boost = boost;
     _wdkSearchUrlName = Optional.ofNullable(wdkSearchUrlName);
     _fields = new ArrayList<>();
-    _count = Optional.empty();
   }
 
-  public void addFields(List<DocumentField> newFields) {
+  void addFields(List<DocumentField> newFields) {
     _fields.addAll(newFields);
     newFields.stream().forEach(f -> f.setBoostMultiplier(_boost));
     Collections.sort(_fields, (df1, df2) ->
       df1.getDisplayName().compareToIgnoreCase(df2.getDisplayName()));
+    _summaryFields = new FieldIndex(getFields(DocumentField::isSummary));
+    _searchFields = new FieldIndex(getFields(DocumentField::isSearchable));
   }
 
   public String getId() {
@@ -71,42 +74,48 @@ public class DocumentType {
   }
 
   public List<DocumentField>  getSummaryFields(Optional<String> projectId) {
-    return getFields(projectId, DocumentField::isSummary);
+    return getSummaryFieldSet(projectId).getFields();
+  }
+
+  public FieldSet getSummaryFieldSet(Optional<String> projectId) {
+    return _summaryFields.get(projectId);
   }
 
   public List<DocumentField>  getSearchFields(Optional<String> projectId) {
-    return getFields(projectId, DocumentField::isSearchable);
+    return getSearchFieldSet(projectId).getFields();
+  }
+
+  public FieldSet getSearchFieldSet(Optional<String> projectId) {
+    return _searchFields.get(projectId);
   }
 
-  private List<DocumentField> getFields(Optional<String> projectId, Predicate<DocumentField> pred) {
+  private List<DocumentField> getFields(Predicate<DocumentField> pred) {
     return _fields.stream()
-      .filter(field -> projectId.isEmpty() || field.includeInProject(projectId.get()))
       .filter(pred)
       .collect(Collectors.toList());
   }
 
-  private static JSONArray toJson(List<DocumentField> fields) {
-    JSONArray array = new JSONArray();
+  private static void writeJson(List<DocumentField> fields, StreamingJsonWriter out) throws IOException {
+    out.beginArray();
     for (DocumentField field : fields) {
-      array.put(field.toJson());
+      field.writeJson(out);
     }
-    return array;
-  }
-
-  public JSONObject toJson(Optional<String> projectId) {
-    return new JSONObject()
-      .put("id", _id)
-      .put("displayName", _displayName)
-      .put("displayNamePlural", _displayNamePlural)
-      .put("hasOrganismField", _hasOrganismField)
-      .put("count", _count.orElse(0))
-      .put("summaryFields", toJson(getSummaryFields(projectId)))
-      .put("searchFields", toJson(getSearchFields(projectId)))
-      .put("isWdkRecordType", _wdkSearchUrlName.isPresent())
-      .put("wdkSearchName", _wdkSearchUrlName.orElse(null));
+    out.endArray();
   }
 
-  public void setCount(int count) {
-    _count = Optional.of(count);
+  public void writeJson(Optional<String> projectId, int count, StreamingJsonWriter out) throws IOException {
+    out.beginObject()
+      .key("id").value(_id)
+      .key("displayName").value(_displayName)
+      .key("displayNamePlural").value(_displayNamePlural)
+      .key("hasOrganismField").value(_hasOrganismField)
+      .key("count").value(count)
+      .key("summaryFields");
+    writeJson(getSummaryFields(projectId), out);
+    out.key("searchFields");
+    writeJson(getSearchFields(projectId), out);
+    out.key("isWdkRecordType").value(_wdkSearchUrlName.isPresent())
+      .optField("wdkSearchName", _wdkSearchUrlName.orElse(null))
+      .endObject();
   }
 }
@@ -0,0 +1,88 @@
+package org.gusdb.sitesearch.service.metadata;
+
+import static org.gusdb.sitesearch.service.SolrCalls.DOCUMENT_TYPE_FIELD;
+import static org.gusdb.sitesearch.service.SolrCalls.ORGANISM_FIELD;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.gusdb.fgputil.solr.Solr.FacetQueryResults;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+import org.gusdb.sitesearch.service.request.DocTypeFilter;
+
+/**
+ * Facet counts collected for a single search request.  These are kept apart
+ * from Metadata so that the metadata snapshot can be shared across requests.
+ */
+public class FacetCounts {
+
+  private Map<String,Integer> _docTypeFacetCounts = Collections.emptyMap();
+  private Map<String,Integer> _organismFacetCounts;
+  private Map<String,Integer> _fieldFacetCounts;
+  private boolean _degraded = false;
+
+  public void setDocTypeFacetCounts(Map<String,Map<String, Integer>> allFacets) {
+    _docTypeFacetCounts = getFieldFacets(allFacets, DOCUMENT_TYPE_FIELD);
+  }
+
+  public int getDocTypeCount(String docTypeId) {
+    return _docTypeFacetCounts.getOrDefault(docTypeId, 0);
+  }
+
+  public Map<String,Integer> getDocTypeCounts() {
+    return _docTypeFacetCounts;
+  }
+
+  private static Map<String, Integer> getFieldFacets(Map<String, Map<String, Integer>> allFacets, String field) {
+    return Optional.ofNullable(allFacets.get(field))
+      .orElseThrow(() -> new SiteSearchRuntimeException("SOLR response did not include facets for '" + field + "'."));
+  }
+
+  public void setOrganismFacetCounts(
+      Optional<List<String>> restrictMetadataToOrganisms,
+      Map<String, Map<String, Integer>> allFacets) {
+    Map<String,Integer> orgFacets = getFieldFacets(allFacets, ORGANISM_FIELD);
+    _organismFacetCounts = new HashMap<>();
+    if (restrictMetadataToOrganisms.isEmpty()) {
+      _organismFacetCounts.putAll(orgFacets);
+    }
+    else {
+      for (String facetOrg : orgFacets.keySet()) {
+        if (restrictMetadataToOrganisms.get().contains(facetOrg)) {
+          _organismFacetCounts.put(facetOrg, orgFacets.get(facetOrg));
+        }
+      }
+    }
+  }
+
+  public Map<String, Integer> getOrganismFacetCounts() {
+    return _organismFacetCounts;
+  }
+
+  public void setFieldFacetCounts(Optional<DocTypeFilter> docTypeFilter, FacetQueryResults facetCounts) {
+    _fieldFacetCounts = new HashMap<>();
+    if (docTypeFilter.isEmpty()) return;
+    // field facet queries are keyed by field name
+    _fieldFacetCounts.putAll(facetCounts);
+  }
+
+  public Map<String,Integer> getFieldCounts() {
+    return _fieldFacetCounts;
+  }
+
+  /**
+   * Marks these counts as incomplete: field counts were dropped (and are
+   * absent) so that the search could complete by its deadline
+   */
+  public void setDegraded() {
+    _degraded = true;
+  }
+
+  public boolean isDegraded() {
+    return _degraded;
+  }
+
+}
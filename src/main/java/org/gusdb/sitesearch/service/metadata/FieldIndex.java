@@ -0,0 +1,46 @@
+package org.gusdb.sitesearch.service.metadata;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Precomputed views of a list of fields, one per project they may be
+ * restricted to.  Fields without an includeProjects list appear in every view;
+ * a project not named by any field sees only those fields.
+ */
+class FieldIndex {
+
+  static final FieldIndex EMPTY = new FieldIndex(List.of());
+
+  private final FieldSet _allProjects;
+  private final FieldSet _unlistedProjects;
+  private final Map<String,FieldSet> _byProject;
+
+  FieldIndex(List<DocumentField> fields) {
+    _allProjects = new FieldSet(fields);
+    _unlistedProjects = new FieldSet(fields.stream()
+        .filter(field -> field.getIncludeProjects().isEmpty())
+        .collect(Collectors.toList()));
+    Map<String,FieldSet> byProject = new HashMap<>();
+    for (DocumentField field : fields) {
+      for (String project : field.getIncludeProjects().orElse(List.of())) {
+        byProject.computeIfAbsent(project, p -> new FieldSet(fields.stream()
+            .filter(f -> f.includeInProject(p))
+            .collect(Collectors.toList())));
+      }
+    }
+    _byProject = Map.copyOf(byProject);
+  }
+
+  /**
+   * @param projectId project to which fields are restricted, or empty for all fields
+   * @return fields included in the project
+   */
+  FieldSet get(Optional<String> projectId) {
+    return projectId.isEmpty() ? _allProjects :
+      _byProject.getOrDefault(projectId.get(), _unlistedProjects);
+  }
+}
@@ -0,0 +1,67 @@
+package org.gusdb.sitesearch.service.metadata;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable, ordered set of document fields along with the lookups requests
+ * need from it: a hashed set of field names and the SOLR qf (query fields),
+ * hl.fl (highlight fields) and fl (returned fields) parameter values, formatted
+ * once when the set is built.
+ */
+public class FieldSet {
+
+  public static final FieldSet EMPTY = new FieldSet(List.of());
+
+  private final List<DocumentField> _fields;
+  private final Set<String> _names;
+  private final String _queryFields;
+  private final String _highlightFields;
+  private final String _returnFields;
+
+  public FieldSet(List<DocumentField> fields) {
+    _fields = List.copyOf(fields);
+    _names = _fields.stream().map(DocumentField::getName).collect(Collectors.toUnmodifiableSet());
+    _queryFields = _fields.stream().map(DocumentField::getQueryField).collect(Collectors.joining(" "));
+    _highlightFields = _fields.stream().map(DocumentField::getName).collect(Collectors.joining(","));
+    _returnFields = _fields.stream().map(DocumentField::getName).collect(Collectors.joining(" "));
+  }
+
+  public List<DocumentField> getFields() {
+    return _fields;
+  }
+
+  public Set<String> getNames() {
+    return _names;
+  }
+
+  public boolean contains(String fieldName) {
+    return _names.contains(fieldName);
+  }
+
+  public boolean isEmpty() {
+    return _fields.isEmpty();
+  }
+
+  /**
+   * @return space-delimited field names with boosts, as passed in the qf param
+   */
+  public String getQueryFields() {
+    return _queryFields;
+  }
+
+  /**
+   * @return comma-delimited field names, as passed in the hl.fl param
+   */
+  public String getHighlightFields() {
+    return _highlightFields;
+  }
+
+  /**
+   * @return space-delimited field names, as passed in the fl param
+   */
+  public String getReturnFields() {
+    return _returnFields;
+  }
+}
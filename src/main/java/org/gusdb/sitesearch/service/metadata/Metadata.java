@@ -9,27 +9,27 @@ import static org.gusdb.sitesearch.service.SolrCalls.CATEGORIES_META_DOCTYPE;
 import static org.gusdb.sitesearch.service.SolrCalls.DOCUMENT_TYPE_FIELD;
 import static org.gusdb.sitesearch.service.SolrCalls.FIELDS_META_DOCTYPE;
 import static org.gusdb.sitesearch.service.SolrCalls.JSON_BLOB_FIELD;
-import static org.gusdb.sitesearch.service.SolrCalls.ORGANISM_FIELD;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
 import org.gusdb.fgputil.FormatUtil;
 import org.gusdb.fgputil.MapBuilder;
 import org.gusdb.fgputil.Tuples.TwoTuple;
-import org.gusdb.fgputil.solr.Solr.FacetQueryResults;
 import org.gusdb.fgputil.solr.SolrResponse;
+import org.gusdb.sitesearch.service.StreamingJsonWriter;
 import org.gusdb.sitesearch.service.exception.InvalidRequestException;
 import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
 import org.gusdb.sitesearch.service.request.DocTypeFilter;
 import org.gusdb.sitesearch.service.request.SearchRequest;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 public class Metadata {
@@ -38,11 +38,23 @@ public class Metadata {
 
   private final List<Category> _categories;
   private final Map<String,DocumentType> _docTypes;
-  private Map<String,Integer> _organismFacetCounts;
-  private Map<String,Integer> _fieldFacetCounts;
 
-  public Metadata(SolrResponse result) {
-    JSONObject document = getSingular(result.getDocuments(), CATEGORIES_META_DOCTYPE);
+  // searchable and summary fields of all doc types, per project
+  private final FieldIndex _allSearchFields;
+  private final FieldIndex _allSummaryFields;
+
+  // projects to which any field is restricted
+  private final Set<String> _projects;
+
+  /**
+   * Builds an immutable metadata object from the two metadata documents stored
+   * in SOLR.  Once constructed, instances are safe to share across threads.
+   *
+   * @param categoriesResult response containing the document-categories document
+   * @param fieldsResult response containing the document-fields document
+   */
+  public Metadata(SolrResponse categoriesResult, SolrResponse fieldsResult) {
+    JSONObject document = getSingular(categoriesResult.getDocuments(), CATEGORIES_META_DOCTYPE);
     _categories = arrayStream(document.getJSONArray(JSON_BLOB_FIELD))
       .map(jsonType -> jsonType.getJSONObject())
       .map(catObj -> new Category(catObj.getString("name"))
@@ -56,10 +68,24 @@ public class Metadata {
               docTypeObj.optDouble("boost", 1),
               docTypeObj.optString("wdkSearchUrlName", null)))
           .collect(Collectors.toList())))
-      .collect(Collectors.toList());
-    _docTypes = reduce(_categories,
+      .collect(Collectors.toUnmodifiableList());
+    _docTypes = Collections.unmodifiableMap(reduce(_categories,
       (map, cat) -> map.putAll(getMapFromValues(cat, docType -> docType.getId())),
-      new MapBuilder<String,DocumentType>()).toMap();
+      new MapBuilder<String,DocumentType>()).toMap());
+    addFieldData(fieldsResult);
+
+    // precompute search and summary fields across all doc types (used when no docType filter is present)
+    List<DocumentField> allSearchFields = new ArrayList<>();
+    List<DocumentField> allSummaryFields = new ArrayList<>();
+    for (DocumentType docType : _docTypes.values()) {
+      allSearchFields.addAll(docType.getSearchFields(Optional.empty()));
+      allSummaryFields.addAll(docType.getSummaryFields(Optional.empty()));
+    }
+    _allSearchFields = new FieldIndex(allSearchFields);
+    _allSummaryFields = new FieldIndex(allSummaryFields);
+    Set<String> projects = new TreeSet<>();
+    allSearchFields.forEach(field -> field.getIncludeProjects().ifPresent(projects::addAll));
+    _projects = Collections.unmodifiableSet(projects);
   }
 
   private static JSONObject getSingular(List<JSONObject> documents, String docType) {
@@ -70,7 +96,7 @@ public class Metadata {
     return documents.get(0);
   }
 
-  public Metadata addFieldData(SolrResponse result) {
+  private void addFieldData(SolrResponse result) {
     JSONObject document = getSingular(result.getDocuments(), FIELDS_META_DOCTYPE);
 
     // put fields data in a map for easy access
@@ -106,112 +132,93 @@ public class Metadata {
             "type will ever be found; the type is not used.");
       }
     }
-
-    return this;
-  }
-
-  public void applyDocTypeFacetCounts(Map<String,Map<String, Integer>> allFacets) {
-    Map<String,Integer> map = getFieldFacets(allFacets, DOCUMENT_TYPE_FIELD);
-    for (DocumentType docType : _docTypes.values()) {
-      docType.setCount(map.containsKey(docType.getId()) ? map.get(docType.getId()) : 0);
-    }
   }
 
-  private static Map<String, Integer> getFieldFacets(Map<String, Map<String, Integer>> allFacets, String field) {
-    return Optional.ofNullable(allFacets.get(field))
-      .orElseThrow(() -> new SiteSearchRuntimeException("SOLR response did not include facets for '" + field + "'."));
-  }
-
-  public JSONArray getCategoriesJson() {
-    JSONArray catsJson = new JSONArray();
+  /**
+   * Writes the categories and the IDs of their doc types as a JSON array
+   */
+  public void writeCategories(StreamingJsonWriter out) throws IOException {
+    out.beginArray();
     for (Category category : _categories) {
-      catsJson.put(category.toJson());
+      category.writeJson(out);
     }
-    return catsJson;
+    out.endArray();
   }
 
-  public JSONArray getDocumentTypesJson(Optional<String> projectId) {
-    JSONArray json = new JSONArray();
+  /**
+   * Writes the doc types, with their fields in the project (if any) and their
+   * counts in the passed facets, as a JSON array
+   */
+  public void writeDocumentTypes(Optional<String> projectId, FacetCounts facets, StreamingJsonWriter out) throws IOException {
+    out.beginArray();
     for (DocumentType docType : _docTypes.values()) {
-      json.put(docType.toJson(projectId));
+      docType.writeJson(projectId, facets.getDocTypeCount(docType.getId()), out);
     }
-    return json;
+    out.endArray();
   }
 
-  public TwoTuple<List<DocumentField>,Boolean> getSearchFields(SearchRequest request, boolean applyFieldsFilter) {
-
-    // gather filtering options
-    Optional<String> docTypeFilter = request.getDocTypeFilter().map(filter -> filter.getDocType());
-    Optional<List<String>> fieldsFilter =
-      applyFieldsFilter && docTypeFilter.isPresent() ?
-        request.getDocTypeFilter().get().getFoundOnlyInFields() : Optional.empty();
+  /**
+   * Looks up the fields a request searches.  Field lists and qf strings are
+   * precomputed per project and doc type when metadata is loaded; only a
+   * request's own field filter (if applied) creates a new field set.
+   *
+   * @param request search request
+   * @param applyFieldsFilter whether to restrict fields to the request's field filter
+   * @return fields to search, and whether they are all fields of the searched doc types
+   */
+  public TwoTuple<FieldSet,Boolean> getSearchFields(SearchRequest request, boolean applyFieldsFilter) {
     Optional<String> projectFilter = request.getRestrictToProject();
 
-    // build out list of fields and mark if all fields included
-    List<DocumentField> fields = new ArrayList<>();
-    boolean allFieldsIncluded = true;
-    for (DocumentType type : _docTypes.values()) {
-      // if no docType filter, then add all fields for all types
-      if (docTypeFilter.isEmpty()) {
-        fields.addAll(type.getSearchFields(projectFilter));
-      }
-      // if docType filter present, add fields for only requested docType
-      else if (docTypeFilter.get().equals(type.getId())) {
-        // if no fields filter present, add all fields for this docType
-        if (fieldsFilter.isEmpty()) {
-          fields.addAll(type.getSearchFields(projectFilter));
-        }
-        // if fields filter present, only add fields for this docType which are also in the requested list
-        else {
-          allFieldsIncluded = false;
-          List<String> requestedSearchFields = fieldsFilter.get();
-          for (DocumentField field : type.getSearchFields(projectFilter)) {
-            if (requestedSearchFields.contains(field.getName())) {
-              fields.add(field);
-            }
-          }
-        }
-      }
+    // if no docType filter, then search all fields of all types
+    if (request.getDocTypeFilter().isEmpty()) {
+      return new TwoTuple<>(_allSearchFields.get(projectFilter), true);
     }
-    return new TwoTuple<>(fields, allFieldsIncluded);
-  }
-
-  public Optional<DocumentType> getDocumentType(String docTypeId) {
-    return Optional.ofNullable(_docTypes.get(docTypeId));
-  }
 
-  public void setOrganismFacetCounts(
-      Optional<List<String>> restrictMetadataToOrganisms,
-      Map<String, Map<String, Integer>> allFacets) {
-    Map<String,Integer> orgFacets = getFieldFacets(allFacets, ORGANISM_FIELD);
-    _organismFacetCounts = new HashMap<>();
-    if (restrictMetadataToOrganisms.isEmpty()) {
-      _organismFacetCounts.putAll(orgFacets);
+    // if docType filter present, search fields of only the requested docType
+    DocTypeFilter filter = request.getDocTypeFilter().get();
+    DocumentType type = _docTypes.get(filter.getDocType());
+    if (type == null) {
+      return new TwoTuple<>(FieldSet.EMPTY, true);
     }
-    else {
-      for (String facetOrg : orgFacets.keySet()) {
-        if (restrictMetadataToOrganisms.get().contains(facetOrg)) {
-          _organismFacetCounts.put(facetOrg, orgFacets.get(facetOrg));
-        }
-      }
+    FieldSet typeFields = type.getSearchFieldSet(projectFilter);
+    Optional<List<String>> fieldsFilter = applyFieldsFilter ? filter.getFoundOnlyInFields() : Optional.empty();
+    if (fieldsFilter.isEmpty()) {
+      return new TwoTuple<>(typeFields, true);
     }
+
+    // if fields filter present, only search fields for this docType which are also in the requested list
+    Set<String> requestedSearchFields = Set.copyOf(fieldsFilter.get());
+    return new TwoTuple<>(new FieldSet(typeFields.getFields().stream()
+        .filter(field -> requestedSearchFields.contains(field.getName()))
+        .collect(Collectors.toList())), false);
   }
 
-  public Map<String, Integer> getOrganismFacetCounts() {
-    return _organismFacetCounts;
+  /**
+   * @param request search request
+   * @return summary fields of the doc types whose documents the request may return
+   */
+  public FieldSet getSummaryFields(SearchRequest request) {
+    Optional<String> projectFilter = request.getRestrictToProject();
+    return request.getDocTypeFilter()
+        .map(filter -> Optional.ofNullable(_docTypes.get(filter.getDocType()))
+            .map(type -> type.getSummaryFieldSet(projectFilter))
+            .orElse(FieldSet.EMPTY))
+        .orElseGet(() -> _allSummaryFields.get(projectFilter));
   }
 
-  public void setFieldFacetCounts(Optional<DocTypeFilter> docTypeFilter, FacetQueryResults facetCounts) {
-    _fieldFacetCounts = new HashMap<>();
-    if (docTypeFilter.isEmpty()) return;
-    for (String queryString : facetCounts.keySet()) {
-      String fieldName = queryString.substring(0, queryString.indexOf(":"));
-      _fieldFacetCounts.put(fieldName, facetCounts.get(queryString));
-    }
+  public Optional<DocumentType> getDocumentType(String docTypeId) {
+    return Optional.ofNullable(_docTypes.get(docTypeId));
+  }
+
+  public Set<String> getDocumentTypeIds() {
+    return _docTypes.keySet();
   }
 
-  public Map<String,Integer> getFieldCounts() {
-    return _fieldFacetCounts;
+  /**
+   * @return projects named in the includeProjects lists of searchable fields
+   */
+  public Set<String> getProjects() {
+    return _projects;
   }
 
   public void validateRequest(SearchRequest request) {
@@ -228,13 +235,10 @@ public class Metadata {
     // validate fields in field filter if present
     if (filter.getFoundOnlyInFields().isEmpty()) return;
     List<String> requestedFieldNames = filter.getFoundOnlyInFields().get();
-    List<String> validFieldNames = _docTypes.get(docType)
-        .getSearchFields(request.getRestrictToProject())
-        .stream().map(DocumentField::getName)
-        .collect(Collectors.toList());
+    FieldSet validFields = _docTypes.get(docType).getSearchFieldSet(request.getRestrictToProject());
     List<String> invalidNames = new ArrayList<>();
     for (String filterField : requestedFieldNames) {
-      if (!validFieldNames.contains(filterField)) {
+      if (!validFields.contains(filterField)) {
         invalidNames.add(filterField);
       }
     }
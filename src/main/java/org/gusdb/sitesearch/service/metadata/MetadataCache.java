@@ -0,0 +1,136 @@
+package org.gusdb.sitesearch.service.metadata;
+
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gusdb.sitesearch.service.metrics.Metrics;
+import org.gusdb.sitesearch.service.solr.IndexVersionTracker;
+
+/**
+ * Holds a shared, read-only snapshot of the site search metadata (categories,
+ * document types and their fields).  The snapshot is reloaded from SOLR when it
+ * is older than the configured TTL or when the core's index version changes;
+ * otherwise requests are served from memory.  While one request reloads a
+ * stale snapshot, others continue to use it, and it is kept if the reload
+ * fails (e.g. while SOLR is unavailable).  After a failed load, no load is
+ * attempted for a few seconds: the stale snapshot is served, or if there is
+ * none, the load's failure is rethrown without calling SOLR again.
+ */
+public class MetadataCache {
+
+  private static final Logger LOG = LogManager.getLogger(MetadataCache.class);
+
+  // minimum time between attempts to (re)load metadata after a failure
+  private static final long RELOAD_RETRY_MILLIS = 5000;
+
+  private static class Snapshot {
+
+    private final Metadata _metadata;
+    private final Optional<String> _indexVersion;
+    private final long _loadTime;
+
+    public Snapshot(Metadata metadata, Optional<String> indexVersion, long loadTime) {
+      _metadata = metadata;
+      _indexVersion = indexVersion;
+      _loadTime = loadTime;
+    }
+  }
+
+  private final Supplier<Metadata> _loader;
+  private final IndexVersionTracker _indexVersion;
+  private final long _ttlMillis;
+
+  private final ReentrantLock _reloadLock = new ReentrantLock();
+  private volatile Snapshot _snapshot;
+
+  // failure of the last load (null if it succeeded) and when it failed
+  private volatile RuntimeException _lastFailure;
+  private volatile long _lastFailureTime;
+
+  /**
+   * @param loader function which loads a fresh metadata object from SOLR
+   * @param indexVersion tracker of the current index version
+   * @param ttlMillis maximum age of a snapshot, regardless of index version
+   */
+  public MetadataCache(Supplier<Metadata> loader, IndexVersionTracker indexVersion, long ttlMillis) {
+    _loader = loader;
+    _indexVersion = indexVersion;
+    _ttlMillis = ttlMillis;
+  }
+
+  /**
+   * @return current metadata snapshot, loading it first if absent; a stale
+   * snapshot is returned if another request is reloading it or it cannot be
+   * reloaded
+   * @throws RuntimeException if no metadata has been loaded yet and it cannot
+   * be loaded (or the last attempt failed too recently to try again)
+   */
+  public Metadata getMetadata() {
+    Snapshot snapshot = _snapshot;
+    if (snapshot == null) {
+      // nothing to serve yet, so wait for the load
+      _reloadLock.lock();
+    }
+    else if (!isStale(snapshot) || getRecentFailure().isPresent() || !_reloadLock.tryLock()) {
+      return snapshot._metadata;
+    }
+    try {
+      snapshot = _snapshot;
+      Optional<RuntimeException> recentFailure = getRecentFailure();
+      if (recentFailure.isPresent()) {
+        // a load failed moments ago (possibly while this request waited)
+        if (snapshot == null) throw recentFailure.get();
+        return snapshot._metadata;
+      }
+      if (snapshot == null || isStale(snapshot)) {
+        try {
+          snapshot = load();
+          _snapshot = snapshot;
+          _lastFailure = null;
+        }
+        catch (RuntimeException e) {
+          _lastFailureTime = System.currentTimeMillis();
+          _lastFailure = e;
+          if (snapshot == null) throw e;
+          LOG.warn("Unable to reload metadata; continuing to use metadata loaded " +
+              (System.currentTimeMillis() - snapshot._loadTime) / 1000 + "s ago: " + e.getMessage());
+          Metrics.STALE_RESPONSES.inc("metadata");
+        }
+      }
+      return snapshot._metadata;
+    }
+    finally {
+      _reloadLock.unlock();
+    }
+  }
+
+  private Optional<RuntimeException> getRecentFailure() {
+    RuntimeException failure = _lastFailure;
+    return failure != null && System.currentTimeMillis() - _lastFailureTime < RELOAD_RETRY_MILLIS ?
+        Optional.of(failure) : Optional.empty();
+  }
+
+  private boolean isStale(Snapshot snapshot) {
+    if (System.currentTimeMillis() - snapshot._loadTime > _ttlMillis) {
+      return true;
+    }
+    Optional<String> currentVersion = _indexVersion.getVersion();
+    return currentVersion.isPresent() && !currentVersion.equals(snapshot._indexVersion);
+  }
+
+  private Snapshot load() {
+    // read version first so a commit during the load triggers another load
+    Optional<String> version = _indexVersion.getVersion();
+    long start = System.currentTimeMillis();
+    Metadata metadata = _loader.get();
+    long duration = System.currentTimeMillis() - start;
+    Metrics.METADATA_LOAD_DURATION.observe(duration / 1000d);
+    LOG.info("Loaded metadata for index version " + version.orElse("<unknown>") +
+        " in " + duration + "ms");
+    return new Snapshot(metadata, version, start);
+  }
+
+}
@@ -0,0 +1,39 @@
+package org.gusdb.sitesearch.service.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonically increasing count
+ */
+public class Counter extends Metric<LongAdder> {
+
+  public Counter(String name, String help, String... labelNames) {
+    super(name, help, labelNames);
+  }
+
+  public void inc(String... labelValues) {
+    getChild(labelValues).increment();
+  }
+
+  public void inc(long amount, String... labelValues) {
+    getChild(labelValues).add(amount);
+  }
+
+  @Override
+  protected String getType() {
+    return "counter";
+  }
+
+  @Override
+  protected LongAdder newChild() {
+    return new LongAdder();
+  }
+
+  @Override
+  protected void writeChild(Writer out, String name, List<String> labelValues, LongAdder child) throws IOException {
+    writeSample(out, name, labelValues, null, null, child.sum());
+  }
+}
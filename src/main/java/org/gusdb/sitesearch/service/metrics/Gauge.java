@@ -0,0 +1,43 @@
+package org.gusdb.sitesearch.service.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Value which may go up and down (e.g. number of requests in flight)
+ */
+public class Gauge extends Metric<AtomicLong> {
+
+  public Gauge(String name, String help, String... labelNames) {
+    super(name, help, labelNames);
+  }
+
+  public void inc(String... labelValues) {
+    getChild(labelValues).incrementAndGet();
+  }
+
+  public void dec(String... labelValues) {
+    getChild(labelValues).decrementAndGet();
+  }
+
+  public void set(long value, String... labelValues) {
+    getChild(labelValues).set(value);
+  }
+
+  @Override
+  protected String getType() {
+    return "gauge";
+  }
+
+  @Override
+  protected AtomicLong newChild() {
+    return new AtomicLong();
+  }
+
+  @Override
+  protected void writeChild(Writer out, String name, List<String> labelValues, AtomicLong child) throws IOException {
+    writeSample(out, name, labelValues, null, null, child.get());
+  }
+}
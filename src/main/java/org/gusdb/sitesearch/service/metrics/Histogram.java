@@ -0,0 +1,82 @@
+package org.gusdb.sitesearch.service.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of observed values over fixed buckets.  Bucket counts are kept
+ * per bucket and made cumulative when written, as the exposition format expects.
+ */
+public class Histogram extends Metric<Histogram.Child> {
+
+  // seconds; covers fast cache hits through slow SOLR calls
+  public static final double[] LATENCY_BUCKETS = {
+      0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+  public static class Child {
+
+    private final LongAdder[] _bucketCounts;
+    private final DoubleAdder _sum = new DoubleAdder();
+    private final LongAdder _count = new LongAdder();
+
+    private Child(int numBuckets) {
+      _bucketCounts = new LongAdder[numBuckets];
+      for (int i = 0; i < numBuckets; i++) {
+        _bucketCounts[i] = new LongAdder();
+      }
+    }
+  }
+
+  private final double[] _buckets;
+
+  /**
+   * @param buckets upper bounds of buckets in increasing order (+Inf is implied)
+   */
+  public Histogram(String name, String help, double[] buckets, String... labelNames) {
+    super(name, help, labelNames);
+    _buckets = buckets;
+  }
+
+  public void observe(double value, String... labelValues) {
+    Child child = getChild(labelValues);
+    int bucket = 0;
+    while (bucket < _buckets.length && value > _buckets[bucket]) bucket++;
+    child._bucketCounts[bucket].increment();
+    child._sum.add(value);
+    child._count.increment();
+  }
+
+  /**
+   * Observes the time elapsed since the passed start time, in seconds
+   *
+   * @param startNanos start time from System.nanoTime()
+   */
+  public void observeSince(long startNanos, String... labelValues) {
+    observe((System.nanoTime() - startNanos) / 1e9, labelValues);
+  }
+
+  @Override
+  protected String getType() {
+    return "histogram";
+  }
+
+  @Override
+  protected Child newChild() {
+    return new Child(_buckets.length + 1);
+  }
+
+  @Override
+  protected void writeChild(Writer out, String name, List<String> labelValues, Child child) throws IOException {
+    long cumulative = 0;
+    for (int i = 0; i <= _buckets.length; i++) {
+      cumulative += child._bucketCounts[i].sum();
+      double upperBound = i < _buckets.length ? _buckets[i] : Double.POSITIVE_INFINITY;
+      writeSample(out, name + "_bucket", labelValues, "le", formatValue(upperBound), cumulative);
+    }
+    writeSample(out, name + "_sum", labelValues, null, null, child._sum.sum());
+    writeSample(out, name + "_count", labelValues, null, null, child._count.sum());
+  }
+}
@@ -0,0 +1,92 @@
+package org.gusdb.sitesearch.service.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Base class of a named metric with optional labels, written in the Prometheus
+ * text exposition format.  Each distinct combination of label values has its
+ * own child holding the values; children are created on first use.
+ *
+ * @param <C> type of child holding values for one set of label values
+ */
+public abstract class Metric<C> {
+
+  private final String _name;
+  private final String _help;
+  private final String[] _labelNames;
+  private final ConcurrentMap<List<String>,C> _children = new ConcurrentHashMap<>();
+
+  protected Metric(String name, String help, String... labelNames) {
+    _name = name;
+    _help = help;
+    _labelNames = labelNames;
+  }
+
+  protected abstract String getType();
+
+  protected abstract C newChild();
+
+  protected abstract void writeChild(Writer out, String name, List<String> labelValues, C child) throws IOException;
+
+  protected C getChild(String... labelValues) {
+    if (labelValues.length != _labelNames.length) {
+      throw new IllegalArgumentException("Metric " + _name + " requires labels " + Arrays.toString(_labelNames));
+    }
+    return _children.computeIfAbsent(List.of(labelValues), values -> newChild());
+  }
+
+  public void write(Writer out) throws IOException {
+    writeHeader(out, _name, _help, getType());
+    for (Map.Entry<List<String>,C> child : _children.entrySet()) {
+      writeChild(out, _name, child.getKey(), child.getValue());
+    }
+  }
+
+  /**
+   * Writes one sample line; the extra label (e.g. a histogram bucket bound) is
+   * written after this metric's labels if its name is non-null
+   */
+  protected void writeSample(Writer out, String name, List<String> labelValues,
+      String extraLabelName, String extraLabelValue, double value) throws IOException {
+    out.write(name);
+    if (!labelValues.isEmpty() || extraLabelName != null) {
+      out.write('{');
+      for (int i = 0; i < labelValues.size(); i++) {
+        if (i > 0) out.write(',');
+        writeLabel(out, _labelNames[i], labelValues.get(i));
+      }
+      if (extraLabelName != null) {
+        if (!labelValues.isEmpty()) out.write(',');
+        writeLabel(out, extraLabelName, extraLabelValue);
+      }
+      out.write('}');
+    }
+    out.write(' ');
+    out.write(formatValue(value));
+    out.write('\n');
+  }
+
+  static void writeHeader(Writer out, String name, String help, String type) throws IOException {
+    out.write("# HELP " + name + " " + help + "\n");
+    out.write("# TYPE " + name + " " + type + "\n");
+  }
+
+  static void writeLabel(Writer out, String name, String value) throws IOException {
+    out.write(name);
+    out.write("=\"");
+    out.write(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+    out.write('"');
+  }
+
+  static String formatValue(double value) {
+    if (value == Double.POSITIVE_INFINITY) return "+Inf";
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) return String.valueOf((long)value);
+    return String.valueOf(value);
+  }
+}
@@ -0,0 +1,120 @@
+package org.gusdb.sitesearch.service.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+
+/**
+ * All metrics exposed by the /metrics endpoint.  Instruments are static so
+ * that any class can record to them without access to the application context.
+ */
+public class Metrics {
+
+  private static final double[] SIZE_BUCKETS = { 0, 1, 2, 5, 10, 20, 50, 100 };
+
+  // service endpoints
+  public static final Histogram REQUEST_DURATION = new Histogram("sitesearch_request_duration_seconds",
+      "Time to handle a request, including writing any streamed response", Histogram.LATENCY_BUCKETS, "endpoint");
+  public static final Gauge REQUESTS_IN_FLIGHT = new Gauge("sitesearch_requests_in_flight",
+      "Requests currently being handled", "endpoint");
+  public static final Counter RESPONSES = new Counter("sitesearch_responses_total",
+      "Responses sent, by HTTP status", "endpoint", "status");
+  public static final Counter RESPONSE_BYTES = new Counter("sitesearch_response_bytes_total",
+      "Bytes of response bodies written", "endpoint");
+
+  public static final Counter COALESCED_REQUESTS = new Counter("sitesearch_coalesced_requests_total",
+      "Requests which shared the result of an identical request already in progress", "operation");
+
+  // search requests
+  public static final Counter SEARCH_SOLR_CALLS = new Counter("sitesearch_search_solr_calls_total",
+      "SOLR calls made for search requests; organism and field facets are computed by the main call", "call");
+  public static final Histogram SEARCH_FIELD_FACETS = new Histogram("sitesearch_search_field_facets",
+      "Field facet queries computed per search request", SIZE_BUCKETS);
+  public static final Counter SEARCH_CACHE_HITS = new Counter("sitesearch_search_cache_hits_total",
+      "Search requests answered from the result cache without calling SOLR");
+  public static final Counter STALE_RESPONSES = new Counter("sitesearch_stale_responses_total",
+      "Requests answered from expired cached data because SOLR was unavailable", "cache");
+
+  // SOLR calls
+  public static final Histogram SOLR_CALL_DURATION = new Histogram("sitesearch_solr_call_duration_seconds",
+      "Time to make a SOLR call, including reading the response", Histogram.LATENCY_BUCKETS, "handler");
+  public static final Histogram SOLR_QTIME = new Histogram("sitesearch_solr_qtime_seconds",
+      "Query time reported by SOLR in its response header", Histogram.LATENCY_BUCKETS, "handler");
+  public static final Gauge SOLR_CONCURRENCY_LIMIT = new Gauge("sitesearch_solr_concurrency_limit",
+      "Current adaptive limit on concurrent SOLR calls", "class");
+  public static final Counter SOLR_ADMISSION_REJECTIONS = new Counter("sitesearch_solr_admission_rejections_total",
+      "SOLR calls rejected (503) because the concurrency limit and wait queue were full", "class");
+  public static final Gauge SOLR_POOL_CONNECTIONS = new Gauge("sitesearch_solr_pool_connections",
+      "Pooled SOLR connections leased to calls or available for reuse, and calls waiting for one (pending)", "state");
+  public static final Counter SOLR_CONNECTION_LEASES = new Counter("sitesearch_solr_connection_leases_total",
+      "Pooled SOLR connections leased to calls, by whether the connection was newly opened or reused", "connection");
+  public static final Gauge SOLR_CIRCUIT_OPEN = new Gauge("sitesearch_solr_circuit_open",
+      "1 while the circuit breaker of a SOLR core is open (calls are not being made), otherwise 0", "core");
+
+  // metadata and exports
+  public static final Histogram METADATA_LOAD_DURATION = new Histogram("sitesearch_metadata_load_duration_seconds",
+      "Time to load categories and fields metadata from SOLR", Histogram.LATENCY_BUCKETS);
+  public static final Counter EXPORT_ROWS = new Counter("sitesearch_export_rows_total",
+      "Rows written by streaming exports");
+
+  private static final List<Metric<?>> ALL = List.of(
+      REQUEST_DURATION, REQUESTS_IN_FLIGHT, RESPONSES, RESPONSE_BYTES, COALESCED_REQUESTS,
+      SEARCH_SOLR_CALLS, SEARCH_FIELD_FACETS, SEARCH_CACHE_HITS, STALE_RESPONSES,
+      SOLR_CALL_DURATION, SOLR_QTIME, SOLR_CONCURRENCY_LIMIT, SOLR_ADMISSION_REJECTIONS,
+      SOLR_POOL_CONNECTIONS, SOLR_CONNECTION_LEASES, SOLR_CIRCUIT_OPEN,
+      METADATA_LOAD_DURATION, EXPORT_ROWS);
+
+  /**
+   * Writes all metrics, followed by JVM memory, GC and thread statistics, in
+   * the Prometheus text exposition format
+   */
+  public static void write(Writer out) throws IOException {
+    for (Metric<?> metric : ALL) {
+      metric.write(out);
+    }
+    writeJvmMetrics(out);
+    out.flush();
+  }
+
+  private static void writeJvmMetrics(Writer out) throws IOException {
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+    writeAreaGauge(out, "jvm_memory_bytes_used", "Used bytes of a memory area", heap.getUsed(), nonHeap.getUsed());
+    writeAreaGauge(out, "jvm_memory_bytes_committed", "Committed bytes of a memory area", heap.getCommitted(), nonHeap.getCommitted());
+    writeAreaGauge(out, "jvm_memory_bytes_max", "Max bytes of a memory area (-1 if undefined)", heap.getMax(), nonHeap.getMax());
+
+    Metric.writeHeader(out, "jvm_memory_pool_bytes_used", "Used bytes of a memory pool", "gauge");
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      writeLabeledValue(out, "jvm_memory_pool_bytes_used", "pool", pool.getName(), pool.getUsage().getUsed());
+    }
+
+    List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    Metric.writeHeader(out, "jvm_gc_collection_seconds_count", "Collections performed by a garbage collector", "counter");
+    for (GarbageCollectorMXBean gc : collectors) {
+      writeLabeledValue(out, "jvm_gc_collection_seconds_count", "gc", gc.getName(), gc.getCollectionCount());
+    }
+    Metric.writeHeader(out, "jvm_gc_collection_seconds_sum", "Time spent in a garbage collector", "counter");
+    for (GarbageCollectorMXBean gc : collectors) {
+      writeLabeledValue(out, "jvm_gc_collection_seconds_sum", "gc", gc.getName(), gc.getCollectionTime() / 1000d);
+    }
+
+    Metric.writeHeader(out, "jvm_threads_current", "Current thread count", "gauge");
+    out.write("jvm_threads_current " + ManagementFactory.getThreadMXBean().getThreadCount() + "\n");
+  }
+
+  private static void writeAreaGauge(Writer out, String name, String help, long heapValue, long nonHeapValue) throws IOException {
+    Metric.writeHeader(out, name, help, "gauge");
+    writeLabeledValue(out, name, "area", "heap", heapValue);
+    writeLabeledValue(out, name, "area", "nonheap", nonHeapValue);
+  }
+
+  private static void writeLabeledValue(Writer out, String name, String labelName, String labelValue, double value) throws IOException {
+    out.write(name + "{");
+    Metric.writeLabel(out, labelName, labelValue);
+    out.write("} " + Metric.formatValue(value) + "\n");
+  }
+}
@@ -0,0 +1,96 @@
+package org.gusdb.sitesearch.service.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+/**
+ * Records latency, in-flight count, status and response size of each request,
+ * labeled by the name of the resource method handling it.  Requests with a
+ * response body are timed until the body is fully written, so streamed
+ * responses include the time spent streaming.
+ */
+@Provider
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+  private static final String START_PROPERTY = MetricsFilter.class.getName() + ".start";
+  private static final String ENDPOINT_PROPERTY = MetricsFilter.class.getName() + ".endpoint";
+
+  @Context
+  private ResourceInfo _resourceInfo;
+
+  @Override
+  public void filter(ContainerRequestContext request) {
+    String endpoint = _resourceInfo.getResourceMethod() == null ? "unmatched" :
+        _resourceInfo.getResourceMethod().getName();
+    request.setProperty(ENDPOINT_PROPERTY, endpoint);
+    request.setProperty(START_PROPERTY, System.nanoTime());
+    Metrics.REQUESTS_IN_FLIGHT.inc(endpoint);
+  }
+
+  @Override
+  public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+    String endpoint = (String)request.getProperty(ENDPOINT_PROPERTY);
+    if (endpoint == null) return; // request filter not run (e.g. no matching resource)
+    Metrics.RESPONSES.inc(endpoint, String.valueOf(response.getStatus()));
+    if (!response.hasEntity()) {
+      finish(endpoint, (Long)request.getProperty(START_PROPERTY));
+      request.removeProperty(ENDPOINT_PROPERTY);
+    }
+  }
+
+  @Override
+  public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+    String endpoint = (String)context.getProperty(ENDPOINT_PROPERTY);
+    if (endpoint == null) {
+      context.proceed();
+      return;
+    }
+    context.removeProperty(ENDPOINT_PROPERTY);
+    CountingOutputStream out = new CountingOutputStream(context.getOutputStream());
+    context.setOutputStream(out);
+    try {
+      context.proceed();
+    }
+    finally {
+      Metrics.RESPONSE_BYTES.inc(out._count, endpoint);
+      finish(endpoint, (Long)context.getProperty(START_PROPERTY));
+    }
+  }
+
+  private static void finish(String endpoint, long startNanos) {
+    Metrics.REQUEST_DURATION.observeSince(startNanos, endpoint);
+    Metrics.REQUESTS_IN_FLIGHT.dec(endpoint);
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    private long _count;
+
+    public CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      _count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      _count += len;
+    }
+  }
+}
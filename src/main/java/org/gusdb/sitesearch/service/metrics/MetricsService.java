@@ -0,0 +1,28 @@
+package org.gusdb.sitesearch.service.metrics;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Exposes service metrics for scraping by Prometheus
+ */
+@Path("/metrics")
+public class MetricsService {
+
+  private static final String PROMETHEUS_TEXT_FORMAT = "text/plain; version=0.0.4; charset=utf-8";
+
+  @GET
+  @Produces(PROMETHEUS_TEXT_FORMAT)
+  public Response getMetrics() {
+    return Response.ok((StreamingOutput) output ->
+      Metrics.write(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)))
+    ).build();
+  }
+}
@@ -0,0 +1,54 @@
+package org.gusdb.sitesearch.service.request;
+
+import org.gusdb.sitesearch.service.exception.DeadlineExceededException;
+
+/**
+ * Time by which a request must be answered.  It is created when the request
+ * arrives, so time spent waiting for a request thread counts against it, and
+ * the time remaining is allotted to the SOLR calls the request still plans to
+ * make.
+ */
+public class Deadline {
+
+  private final long _budgetMillis;
+  private final long _expiry;
+
+  /**
+   * @param budgetMillis time allowed from now to answer the request
+   */
+  public Deadline(long budgetMillis) {
+    _budgetMillis = budgetMillis;
+    _expiry = System.currentTimeMillis() + budgetMillis;
+  }
+
+  /**
+   * @return time (in epoch millis) at which the deadline passes
+   */
+  public long getExpiry() {
+    return _expiry;
+  }
+
+  public long getRemainingMillis() {
+    return Math.max(0, _expiry - System.currentTimeMillis());
+  }
+
+  public boolean isExpired() {
+    return getRemainingMillis() == 0;
+  }
+
+  /**
+   * Allots part of the remaining time to the next SOLR call; e.g. the first of
+   * two planned calls might be allotted half.
+   *
+   * @param share fraction (0-1] of the remaining time to allot
+   * @return time allotted to the call in millis
+   * @throws DeadlineExceededException if no time remains
+   */
+  public long allot(double share) {
+    long remaining = getRemainingMillis();
+    if (remaining == 0) {
+      throw new DeadlineExceededException("Request deadline of " + _budgetMillis + "ms passed before SOLR was called");
+    }
+    return Math.max(1, (long)(remaining * share));
+  }
+}
@@ -0,0 +1,41 @@
+package org.gusdb.sitesearch.service.request;
+
+import java.util.List;
+
+import org.gusdb.sitesearch.service.exception.InvalidRequestException;
+import org.json.JSONObject;
+
+/**
+ * Request for the fields in which documents of an earlier search response
+ * matched its search text.  Lets clients request results without highlighting
+ * and fetch foundInFields afterwards for the documents they display.
+ *
+ * inputSchema = {
+ *   (search request properties, minus pagination; see SearchRequest),
+ *   documentIds: string[] (max 50; "id" values of the documents in search results)
+ * }
+ */
+public class HighlightRequest {
+
+  private static final int MAX_DOCUMENT_IDS = 50;
+
+  private final SearchRequest _searchRequest;
+  private final List<String> _documentIds;
+
+  public HighlightRequest(JSONObject requestJson) {
+    _searchRequest = new SearchRequest(requestJson, false, false, false);
+    _documentIds = SearchRequest.getArrayValues(requestJson, "documentIds");
+    if (_documentIds == null)
+      throw new InvalidRequestException("documentIds must contain at least one document ID");
+    if (_documentIds.size() > MAX_DOCUMENT_IDS)
+      throw new InvalidRequestException("documentIds must contain <= " + MAX_DOCUMENT_IDS + " document IDs");
+  }
+
+  public SearchRequest getSearchRequest() {
+    return _searchRequest;
+  }
+
+  public List<String> getDocumentIds() {
+    return _documentIds;
+  }
+}
@@ -1,31 +1,96 @@
 package org.gusdb.sitesearch.service.request;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Optional;
+
 import org.gusdb.sitesearch.service.exception.InvalidRequestException;
 import org.json.JSONObject;
 
 public class Pagination {
 
+  // SOLR cursor mark of the first page
+  private static final String FIRST_PAGE_CURSOR_MARK = "*";
+
+  // separates the query hash from the cursor mark in a (decoded) page token
+  private static final char PAGE_TOKEN_SEPARATOR = ':';
+
   private final int _offset;
   private final int _numRecords;
+  private final String _cursorMark;
+  private final String _pageTokenQueryHash;
 
   /**
+   * Pages are fetched with a SOLR cursor only if the client asks for page
+   * tokens: the first page by passing usePageTokens, and later pages by passing
+   * the token of the previous one.  Responses to these carry the token of the
+   * next page (see getCursorMark()).  SOLR cannot bound the time of a cursor
+   * page, so other pages are fetched at their offset.  A page token is opaque
+   * to clients: it holds the cursor mark along with a hash of the search it was
+   * issued for (see getPageTokenQueryHash()), so that it cannot be used to page
+   * through a different search.
+   *
    * {
-   *   offset: integer,
-   *   numRecords: integer
+   *   offset: integer (optional and must be 0 if pageToken is present),
+   *   numRecords: integer,
+   *   usePageTokens?: boolean (default false; if true, offset must be 0 and the
+   *     response carries the token of the next page),
+   *   pageToken?: string (nextPageToken of the previous page's response)
    * }
    */
   public Pagination(JSONObject json) {
-    _offset = json.getInt("offset");
+    String pageToken = json.optString("pageToken", null);
+    _offset = pageToken == null ? json.getInt("offset") : json.optInt("offset", 0);
     _numRecords = json.getInt("numRecords");
+    boolean usePageTokens = json.optBoolean("usePageTokens", false);
+    if (pageToken != null && _offset != 0)
+      throw new InvalidRequestException("offset must be 0 (or omitted) if pageToken is present");
+    if (usePageTokens && _offset != 0)
+      throw new InvalidRequestException("offset must be 0 if usePageTokens is true");
+    if (pageToken != null) {
+      String decodedToken = decodePageToken(pageToken);
+      int separator = decodedToken.indexOf(PAGE_TOKEN_SEPARATOR);
+      _pageTokenQueryHash = decodedToken.substring(0, separator);
+      _cursorMark = decodedToken.substring(separator + 1);
+    }
+    else {
+      _pageTokenQueryHash = null;
+      _cursorMark = usePageTokens ? FIRST_PAGE_CURSOR_MARK : null;
+    }
     validate();
   }
 
   public Pagination(int offset, int numRecords) {
     _offset = offset;
     _numRecords = numRecords;
+    _cursorMark = null;
+    _pageTokenQueryHash = null;
     validate();
   }
 
+  private static String decodePageToken(String pageToken) {
+    try {
+      String decodedToken = new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+      int separator = decodedToken.indexOf(PAGE_TOKEN_SEPARATOR);
+      if (separator < 1 || separator == decodedToken.length() - 1)
+        throw new InvalidRequestException("pageToken is not valid");
+      return decodedToken;
+    }
+    catch (IllegalArgumentException e) {
+      throw new InvalidRequestException("pageToken is not valid");
+    }
+  }
+
+  /**
+   * @param queryHash hash of the search whose pages are fetched (see SearchRequest.getPagedQueryHash())
+   * @param cursorMark SOLR cursor mark of the page
+   * @return opaque token of the page, to be passed back as pagination.pageToken
+   */
+  public static String toPageToken(String queryHash, String cursorMark) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(
+        (queryHash + PAGE_TOKEN_SEPARATOR + cursorMark).getBytes(StandardCharsets.UTF_8));
+  }
+
   private void validate() {
     if (_offset < 0)
       throw new InvalidRequestException("offset must be >= 0");
@@ -34,6 +99,22 @@ public class Pagination {
     }
   }
 
+  /**
+   * @return SOLR cursor mark of this page if paging by cursor, else empty
+   * (page is at offset)
+   */
+  public Optional<String> getCursorMark() {
+    return Optional.ofNullable(_cursorMark);
+  }
+
+  /**
+   * @return hash of the search for which the requested page token was issued,
+   * or empty if no page token was passed
+   */
+  public Optional<String> getPageTokenQueryHash() {
+    return Optional.ofNullable(_pageTokenQueryHash);
+  }
+
   public int getOffset() {
     return _offset;
   }
@@ -3,19 +3,29 @@ package org.gusdb.sitesearch.service.request;
 import static java.util.Arrays.asList;
 import static org.gusdb.fgputil.json.JsonUtil.toStringArray;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import org.gusdb.fgputil.FormatUtil;
 import org.gusdb.sitesearch.service.exception.InvalidRequestException;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
  * inputSchema = {
  *   searchText: string,
  *   pagination: {
- *     offset: integer,
- *     numRecords: integer (max 50)
+ *     offset: integer, (optional if pageToken present)
+ *     numRecords: integer (max 50),
+ *     usePageTokens?: boolean (default false; if true, offset must be 0 and results carry nextPageToken)
+ *     pageToken?: string (opaque searchResults.nextPageToken of the previous page of the same search)
  *   },
  *   restrictToProject?: string,
  *   restrictMetadataToOrganisms?: string[],
@@ -23,11 +33,15 @@ import org.json.JSONObject;
  *   documentTypeFilter?: {
  *     documentType: string,
  *     foundOnlyInFields?: string[]
- *   }
+ *   },
+ *   highlight?: boolean (default true; if false, foundInFields is omitted from results)
  * }
  */
 public class SearchRequest {
 
+  // length of the hash binding page tokens to their search; enough to make collisions negligible
+  private static final int PAGED_QUERY_HASH_BYTES = 12;
+
   private final String _searchText;
   private final Pagination _pagination;
   private final String _restrictToProject;
@@ -35,6 +49,7 @@ public class SearchRequest {
   private final List<String> _restrictSearchToOrganisms;
   private final boolean _orgFilterPresent;
   private final DocTypeFilter _filter;
+  private final boolean _highlight;
 
   public SearchRequest(JSONObject requestJson, boolean expectAndRequirePagination, boolean requireDocTypeFilter, boolean disallowFieldFilters) {
     _searchText = translateSearchText(requestJson.getString("searchText"));
@@ -65,6 +80,7 @@ public class SearchRequest {
     if (_filter != null && _filter.getFoundOnlyInFields().isPresent() && disallowFieldFilters) {
       throw new InvalidRequestException("Field filters ('foundOnlyInFields' property) are not allowed at this endpoint.");
     }
+    _highlight = requestJson.optBoolean("highlight", true);
   }
 
   private static boolean isSubset(
@@ -86,7 +102,7 @@ public class SearchRequest {
   }
 
   public SearchRequest(String searchText, int offset, int numRecords,
-      Optional<String> docTypeFilter, Optional<String> projectIdFilter) {
+      Optional<String> docTypeFilter, Optional<String> projectIdFilter, boolean highlight) {
     _searchText = translateSearchText(searchText);
     _pagination = new Pagination(offset, numRecords);
     _restrictToProject = projectIdFilter.orElse(null);
@@ -94,6 +110,7 @@ public class SearchRequest {
     _restrictMetadataToOrganisms = null;
     _restrictSearchToOrganisms = null;
     _orgFilterPresent = false;
+    _highlight = highlight;
   }
 
   /**
@@ -140,6 +157,67 @@ public class SearchRequest {
     return getDocTypeFilter().isPresent();
   }
 
+  /**
+   * @return whether to ask SOLR which searched fields each returned document matched
+   */
+  public boolean isHighlight() {
+    return _highlight;
+  }
+
+  /**
+   * Returns a key which is identical for requests that produce the same
+   * response: search text is already trimmed and escaped, and organism and
+   * field lists are sorted so their order does not matter.
+   *
+   * @return normalized string form of this request
+   */
+  public String getNormalizedKey() {
+    return new JSONArray()
+      .put(_searchText)
+      .put(getPagination().map(p -> p.getOffset() + "," + p.getNumRecords() + "," + p.getCursorMark().orElse("")).orElse(""))
+      .put(getRestrictToProject().orElse(""))
+      .put(sorted(_restrictMetadataToOrganisms))
+      .put(sorted(_restrictSearchToOrganisms))
+      .put(getDocTypeFilter().map(DocTypeFilter::getDocType).orElse(""))
+      .put(sorted(getDocTypeFilter().flatMap(DocTypeFilter::getFoundOnlyInFields).orElse(null)))
+      .put(_highlight)
+      .toString();
+  }
+
+  /**
+   * Returns a hash identifying the ordered results paged through by page
+   * tokens: the normalized search (as in getNormalizedKey(), without the page
+   * requested or highlighting, which do not change which documents match or
+   * their order) and the sort of its results.
+   *
+   * @param sort SOLR sort of the search's results
+   * @return URL-safe hash of the search and sort
+   */
+  public String getPagedQueryHash(String sort) {
+    String pagedQuery = new JSONArray()
+      .put(_searchText)
+      .put(getRestrictToProject().orElse(""))
+      .put(sorted(_restrictMetadataToOrganisms))
+      .put(sorted(_restrictSearchToOrganisms))
+      .put(getDocTypeFilter().map(DocTypeFilter::getDocType).orElse(""))
+      .put(sorted(getDocTypeFilter().flatMap(DocTypeFilter::getFoundOnlyInFields).orElse(null)))
+      .put(sort)
+      .toString();
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(pagedQuery.getBytes(StandardCharsets.UTF_8));
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, PAGED_QUERY_HASH_BYTES));
+    }
+    catch (NoSuchAlgorithmException e) {
+      // every JVM must support SHA-256
+      throw new SiteSearchRuntimeException("Unable to hash search", e);
+    }
+  }
+
+  private static JSONArray sorted(List<String> values) {
+    return values == null ? new JSONArray() :
+      new JSONArray(values.stream().sorted().distinct().collect(Collectors.toList()));
+  }
+
   public boolean hasDocTypeFilterAndFields() {
     return getDocTypeFilter().isPresent() &&
         getDocTypeFilter().get().getFoundOnlyInFields().isPresent();
@@ -0,0 +1,96 @@
+package org.gusdb.sitesearch.service.server;
+
+import org.gusdb.sitesearch.service.Warmup;
+import org.gusdb.sitesearch.service.cache.SearchResultCache;
+import org.gusdb.sitesearch.service.cache.SingleFlight;
+import org.gusdb.sitesearch.service.metadata.MetadataCache;
+import org.gusdb.sitesearch.service.solr.AdmissionLimiter;
+import org.gusdb.sitesearch.service.solr.SearchResponse;
+import org.gusdb.sitesearch.service.solr.SolrCoreClient;
+import org.gusdb.sitesearch.service.suggest.Suggester;
+
+/**
+ * Objects belonging to one SOLR core served by this process: its SOLR client
+ * (with the core's circuit breaker), metadata, caches, suggestion index,
+ * coalescing and SOLR call limits.  The SOLR connection pool and thread pools
+ * are shared by all cores and live in the application context.
+ */
+public class CoreContext {
+
+  private final String _prefix;
+  private final SolrCoreClient _solr;
+  private final MetadataCache _metadataCache;
+  private final SearchResultCache _searchResultCache;
+  private final Suggester _suggester;
+  private final SingleFlight<String,SearchResponse> _searchSingleFlight;
+  private final SingleFlight<String,String> _categoriesSingleFlight;
+  private final AdmissionLimiter _searchLimiter;
+  private final AdmissionLimiter _suggestLimiter;
+  private final AdmissionLimiter _exportLimiter;
+  private final Warmup _warmup;
+
+  public CoreContext(String prefix, SolrCoreClient solr, MetadataCache metadataCache,
+      SearchResultCache searchResultCache, Suggester suggester,
+      SingleFlight<String,SearchResponse> searchSingleFlight, SingleFlight<String,String> categoriesSingleFlight,
+      AdmissionLimiter searchLimiter, AdmissionLimiter suggestLimiter, AdmissionLimiter exportLimiter,
+      Warmup warmup) {
+    _prefix = prefix;
+    _solr = solr;
+    _metadataCache = metadataCache;
+    _searchResultCache = searchResultCache;
+    _suggester = suggester;
+    _searchSingleFlight = searchSingleFlight;
+    _categoriesSingleFlight = categoriesSingleFlight;
+    _searchLimiter = searchLimiter;
+    _suggestLimiter = suggestLimiter;
+    _exportLimiter = exportLimiter;
+    _warmup = warmup;
+  }
+
+  /**
+   * @return path segment under which the core is served; empty for the core served at the root
+   */
+  public String getPrefix() {
+    return _prefix;
+  }
+
+  public SolrCoreClient getSolr() {
+    return _solr;
+  }
+
+  public MetadataCache getMetadataCache() {
+    return _metadataCache;
+  }
+
+  public SearchResultCache getSearchResultCache() {
+    return _searchResultCache;
+  }
+
+  public Suggester getSuggester() {
+    return _suggester;
+  }
+
+  public SingleFlight<String,SearchResponse> getSearchSingleFlight() {
+    return _searchSingleFlight;
+  }
+
+  public SingleFlight<String,String> getCategoriesSingleFlight() {
+    return _categoriesSingleFlight;
+  }
+
+  public AdmissionLimiter getSearchLimiter() {
+    return _searchLimiter;
+  }
+
+  public AdmissionLimiter getSuggestLimiter() {
+    return _suggestLimiter;
+  }
+
+  public AdmissionLimiter getExportLimiter() {
+    return _exportLimiter;
+  }
+
+  public Warmup getWarmup() {
+    return _warmup;
+  }
+}
@@ -0,0 +1,91 @@
+package org.gusdb.sitesearch.service.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gusdb.sitesearch.service.solr.SolrCallExecutor;
+import org.json.JSONObject;
+
+/**
+ * Bounded pool on which suspended (async) requests are handled, so that slow
+ * SOLR calls and long-running streams occupy one of these threads rather than
+ * one of the HTTP server's workers.  The response, including any streamed
+ * body, is written on the pool thread.  Requests arriving when all threads are
+ * busy and the queue is full are answered immediately with 503.
+ */
+public class RequestExecutor implements AutoCloseable {
+
+  private static final Logger LOG = LogManager.getLogger(RequestExecutor.class);
+
+  private final String _name;
+  private final ThreadPoolExecutor _executor;
+
+  // statistics
+  private final LongAdder _numRejected = new LongAdder();
+
+  /**
+   * @param name prefix for names of the pool's threads
+   * @param numThreads maximum number of requests handled concurrently
+   * @param queueSize maximum number of requests waiting for a thread
+   */
+  public RequestExecutor(String name, int numThreads, int queueSize) {
+    _name = name;
+    _executor = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, queueSize)), SolrCallExecutor.newThreadFactory(name));
+    _executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Handles a request on the pool and resumes the suspended response with the
+   * result.  Exceptions thrown by the handler resume the response so they are
+   * mapped as if thrown by a synchronous resource method.
+   *
+   * @param asyncResponse suspended response of the request
+   * @param handler produces the response
+   */
+  public void submit(AsyncResponse asyncResponse, Supplier<Response> handler) {
+    try {
+      _executor.execute(() -> {
+        try {
+          asyncResponse.resume(handler.get());
+        }
+        catch (Throwable e) {
+          asyncResponse.resume(e);
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      _numRejected.increment();
+      LOG.warn("Rejected request; all " + _name + " threads are busy and the queue is full");
+      asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+          .header(HttpHeaders.RETRY_AFTER, 1).build());
+    }
+  }
+
+  /**
+   * @return snapshot of pool statistics
+   */
+  public JSONObject getStatistics() {
+    return new JSONObject()
+      .put("maxThreads", _executor.getMaximumPoolSize())
+      .put("activeThreads", _executor.getActiveCount())
+      .put("queued", _executor.getQueue().size())
+      .put("completed", _executor.getCompletedTaskCount())
+      .put("rejected", _numRejected.sum());
+  }
+
+  @Override
+  public void close() {
+    _executor.shutdownNow();
+  }
+}
@@ -1,6 +1,21 @@
 package org.gusdb.sitesearch.service.server;
 
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.glassfish.jersey.server.ResourceConfig;
 import org.gusdb.fgputil.runtime.Environment;
@@ -8,7 +23,22 @@ import org.gusdb.fgputil.server.BasicApplicationContext;
 import org.gusdb.fgputil.server.RESTServer;
 import org.gusdb.fgputil.web.ApplicationContext;
 import org.gusdb.sitesearch.service.Service;
+import org.gusdb.sitesearch.service.SolrCalls;
+import org.gusdb.sitesearch.service.Warmup;
+import org.gusdb.sitesearch.service.cache.SearchResultCache;
+import org.gusdb.sitesearch.service.cache.SingleFlight;
 import org.gusdb.sitesearch.service.exception.SiteSearchExceptionMapper;
+import org.gusdb.sitesearch.service.metadata.MetadataCache;
+import org.gusdb.sitesearch.service.metrics.MetricsFilter;
+import org.gusdb.sitesearch.service.metrics.MetricsService;
+import org.gusdb.sitesearch.service.solr.AdmissionLimiter;
+import org.gusdb.sitesearch.service.solr.CircuitBreaker;
+import org.gusdb.sitesearch.service.solr.IndexVersionTracker;
+import org.gusdb.sitesearch.service.solr.SearchResponse;
+import org.gusdb.sitesearch.service.solr.SolrCallExecutor;
+import org.gusdb.sitesearch.service.solr.SolrCoreClient;
+import org.gusdb.sitesearch.service.solr.SolrTransport;
+import org.gusdb.sitesearch.service.suggest.Suggester;
 import org.json.JSONObject;
 
 public class Server extends RESTServer {
@@ -34,6 +64,8 @@ public class Server extends RESTServer {
     // create a Jersey resource config containing our service and provider classes
     return new ResourceConfig().registerClasses(
         Service.class,
+        MetricsService.class,
+        MetricsFilter.class,
         SiteSearchExceptionMapper.class
     );
   }
@@ -48,17 +80,273 @@ public class Server extends RESTServer {
     public static final String SOLR_URL = "SOLR_URL";
     public static final String SOLR_CORE = "SOLR_CORE";
 
+    // comma-separated prefix=core entries; each core is served under /prefix
+    private static final String SOLR_CORES = "SOLR_CORES";
+
+    // optional tuning env vars
+    private static final String SOLR_MAX_CONNECTIONS = "SOLR_MAX_CONNECTIONS";
+    private static final String SOLR_MAX_CONNECTIONS_PER_ROUTE = "SOLR_MAX_CONNECTIONS_PER_ROUTE";
+    private static final String SOLR_IDLE_CONNECTION_SECS = "SOLR_IDLE_CONNECTION_SECS";
+    private static final String SOLR_CONNECT_TIMEOUT_SECS = "SOLR_CONNECT_TIMEOUT_SECS";
+    private static final String SOLR_READ_TIMEOUT_SECS = "SOLR_READ_TIMEOUT_SECS";
+    private static final String METADATA_TTL_SECS = "METADATA_TTL_SECS";
+    private static final String INDEX_VERSION_CHECK_SECS = "INDEX_VERSION_CHECK_SECS";
+    private static final String SEARCH_CACHE_MAX_ENTRIES = "SEARCH_CACHE_MAX_ENTRIES";
+    private static final String SEARCH_CACHE_TTL_SECS = "SEARCH_CACHE_TTL_SECS";
+    private static final String SEARCH_CACHE_STALE_SECS = "SEARCH_CACHE_STALE_SECS";
+    private static final String SUGGEST_INDEX_FIELD = "SUGGEST_INDEX_FIELD";
+    private static final String SUGGEST_INDEX_MAX_TERMS = "SUGGEST_INDEX_MAX_TERMS";
+    private static final String SUGGEST_MAX_RESULTS = "SUGGEST_MAX_RESULTS";
+    private static final String SUGGEST_CACHE_MAX_ENTRIES = "SUGGEST_CACHE_MAX_ENTRIES";
+    private static final String EXPORT_PREFETCH_THREADS = "EXPORT_PREFETCH_THREADS";
+    private static final String EXPORT_PREFETCH_PAGES_VAR = "EXPORT_PREFETCH_PAGES";
+    private static final String SOLR_CALL_THREADS = "SOLR_CALL_THREADS";
+    private static final String SOLR_CALL_QUEUE_SIZE = "SOLR_CALL_QUEUE_SIZE";
+    private static final String MULTITEXT_MAX_LENGTH_VAR = "MULTITEXT_MAX_LENGTH";
+    private static final String SEARCH_MAX_OFFSET_VAR = "SEARCH_MAX_OFFSET";
+    private static final String BATCH_MAX_SEARCHES_VAR = "BATCH_MAX_SEARCHES";
+    private static final String BATCH_MAX_PARALLEL_VAR = "BATCH_MAX_PARALLEL";
+    private static final String REQUEST_THREADS = "REQUEST_THREADS";
+    private static final String REQUEST_QUEUE_SIZE = "REQUEST_QUEUE_SIZE";
+    private static final String EXPORT_THREADS = "EXPORT_THREADS";
+    private static final String EXPORT_QUEUE_SIZE = "EXPORT_QUEUE_SIZE";
+    private static final String SOLR_SEARCH_LIMIT = "SOLR_SEARCH_LIMIT";
+    private static final String SOLR_SUGGEST_LIMIT = "SOLR_SUGGEST_LIMIT";
+    private static final String SOLR_EXPORT_LIMIT = "SOLR_EXPORT_LIMIT";
+    private static final String SOLR_WAIT_QUEUE_SIZE = "SOLR_WAIT_QUEUE_SIZE";
+    private static final String SOLR_MAX_WAIT_MILLIS = "SOLR_MAX_WAIT_MILLIS";
+    private static final String SEARCH_DEADLINE_MILLIS_VAR = "SEARCH_DEADLINE_MILLIS";
+    private static final String SUGGEST_DEADLINE_MILLIS_VAR = "SUGGEST_DEADLINE_MILLIS";
+    private static final String CORES_DEADLINE_MILLIS_VAR = "CORES_DEADLINE_MILLIS";
+    private static final String SOLR_BREAKER_WINDOW_SECS = "SOLR_BREAKER_WINDOW_SECS";
+    private static final String SOLR_BREAKER_MIN_CALLS = "SOLR_BREAKER_MIN_CALLS";
+    private static final String SOLR_BREAKER_FAILURE_PERCENT = "SOLR_BREAKER_FAILURE_PERCENT";
+    private static final String SOLR_BREAKER_SLOW_CALL_MILLIS = "SOLR_BREAKER_SLOW_CALL_MILLIS";
+    private static final String SOLR_BREAKER_OPEN_SECS = "SOLR_BREAKER_OPEN_SECS";
+    private static final String WARMUP_ROUNDS = "WARMUP_ROUNDS";
+    private static final String WARMUP_MAX_SECS = "WARMUP_MAX_SECS";
+    private static final String WARMUP_SEARCH_TEXT = "WARMUP_SEARCH_TEXT";
+    private static final String WARMUP_PROJECTS = "WARMUP_PROJECTS";
+
+    // shared objects
+    public static final String SOLR_TRANSPORT = "SOLR_TRANSPORT";
+    public static final String SOLR_CALL_EXECUTOR = "SOLR_CALL_EXECUTOR";
+    public static final String EXPORT_EXECUTOR = "EXPORT_EXECUTOR";
+    public static final String EXPORT_PREFETCH_PAGES = "EXPORT_PREFETCH_PAGES";
+    public static final String MULTITEXT_MAX_LENGTH = "MULTITEXT_MAX_LENGTH";
+    public static final String SEARCH_MAX_OFFSET = "SEARCH_MAX_OFFSET";
+    public static final String BATCH_MAX_SEARCHES = "BATCH_MAX_SEARCHES";
+    public static final String BATCH_MAX_PARALLEL = "BATCH_MAX_PARALLEL";
+    public static final String REQUEST_EXECUTOR = "REQUEST_EXECUTOR";
+    public static final String EXPORT_REQUEST_EXECUTOR = "EXPORT_REQUEST_EXECUTOR";
+    public static final String SEARCH_DEADLINE_MILLIS = "SEARCH_DEADLINE_MILLIS";
+    public static final String SUGGEST_DEADLINE_MILLIS = "SUGGEST_DEADLINE_MILLIS";
+    public static final String CORES_DEADLINE_MILLIS = "CORES_DEADLINE_MILLIS";
+    public static final String INDEX_VERSION_EXECUTOR = "INDEX_VERSION_EXECUTOR";
+
+    // map from path prefix to CoreContext of each core served; the core served at the root has prefix ""
+    public static final String CORES = "CORES";
+
+    // time allowed for a background index version lookup
+    private static final int INDEX_VERSION_TIMEOUT_MILLIS = 5000;
+
+    // field from which the SOLR suggest handler builds its dictionary
+    private static final String DEFAULT_SUGGEST_INDEX_FIELD = "autocomplete";
+
+    private static final Pattern PREFIX_PATTERN = Pattern.compile("[A-Za-z0-9_.-]+");
+
     /**
      * @param config unused config; now performed by env vars
      */
     public Context(JSONObject config) {
-      put(SOLR_URL, Environment.getRequiredVar(SOLR_URL));
-      put(SOLR_CORE, Environment.getRequiredVar(SOLR_CORE));
+      String solrUrl = Environment.getRequiredVar(SOLR_URL);
+      put(SOLR_URL, solrUrl);
+      Map<String,String> coreNames = getCoreNames();
+
+      // one connection pool for all cores
+      int maxConnections = getIntVar(SOLR_MAX_CONNECTIONS, 32);
+      SolrTransport transport = new SolrTransport(solrUrl,
+          maxConnections,
+          getIntVar(SOLR_MAX_CONNECTIONS_PER_ROUTE, maxConnections),
+          (int)getMillisVar(SOLR_CONNECT_TIMEOUT_SECS, 5),
+          (int)getMillisVar(SOLR_READ_TIMEOUT_SECS, 120),
+          getMillisVar(SOLR_IDLE_CONNECTION_SECS, 30));
+      put(SOLR_TRANSPORT, transport);
+
+      // requests are handled off the HTTP server's worker threads; exports get their own pool
+      put(REQUEST_EXECUTOR, new RequestExecutor("request",
+          getIntVar(REQUEST_THREADS, 64),
+          getIntVar(REQUEST_QUEUE_SIZE, 256)));
+      put(EXPORT_REQUEST_EXECUTOR, new RequestExecutor("export",
+          getIntVar(EXPORT_THREADS, 8),
+          getIntVar(EXPORT_QUEUE_SIZE, 16)));
+
+      SolrCallExecutor executor = new SolrCallExecutor("solr-call",
+          getIntVar(SOLR_CALL_THREADS, 16),
+          getIntVar(SOLR_CALL_QUEUE_SIZE, 64));
+      put(SOLR_CALL_EXECUTOR, executor);
+
+      // one prefetch thread per concurrent export; exports without one fetch inline
+      put(EXPORT_EXECUTOR, new ThreadPoolExecutor(0, getIntVar(EXPORT_PREFETCH_THREADS, 8),
+          60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+          SolrCallExecutor.newThreadFactory("export-prefetch")));
+      put(EXPORT_PREFETCH_PAGES, getIntVar(EXPORT_PREFETCH_PAGES_VAR, 2));
+
+      // index versions of all cores are checked in the background, off request threads
+      put(INDEX_VERSION_EXECUTOR, Executors.newSingleThreadScheduledExecutor(
+          SolrCallExecutor.newThreadFactory("index-version")));
+
+      // 0 returns multi-text summary values in full
+      put(MULTITEXT_MAX_LENGTH, getIntVar(MULTITEXT_MAX_LENGTH_VAR, 0));
+
+      // 0 allows any offset; deeper pages can always be reached with page tokens
+      put(SEARCH_MAX_OFFSET, getIntVar(SEARCH_MAX_OFFSET_VAR, 0));
+
+      // time allowed to answer each request (from its arrival), divided among its SOLR calls
+      put(SEARCH_DEADLINE_MILLIS, getIntVar(SEARCH_DEADLINE_MILLIS_VAR, 30000));
+      put(SUGGEST_DEADLINE_MILLIS, getIntVar(SUGGEST_DEADLINE_MILLIS_VAR, 5000));
+      put(CORES_DEADLINE_MILLIS, getIntVar(CORES_DEADLINE_MILLIS_VAR, 10000));
+
+      put(BATCH_MAX_SEARCHES, getIntVar(BATCH_MAX_SEARCHES_VAR, 20));
+      put(BATCH_MAX_PARALLEL, getIntVar(BATCH_MAX_PARALLEL_VAR, 4));
+
+      // one circuit breaker per SOLR core, shared by the prefixes serving it
+      Map<String,CircuitBreaker> breakers = new HashMap<>();
+      Map<String,CoreContext> cores = new LinkedHashMap<>();
+      coreNames.forEach((prefix, coreName) ->
+          cores.put(prefix, createCore(prefix, coreName, transport,
+              breakers.computeIfAbsent(coreName, this::createCircuitBreaker), executor)));
+      put(CORES, Collections.unmodifiableMap(cores));
+
+      // each core reports itself ready once its metadata is loaded and SOLR and the JIT are warm
+      cores.values().forEach(core -> core.getWarmup().start());
+    }
+
+    /**
+     * Reads the cores to serve: SOLR_CORE at the root path (as a single-core
+     * service always has) and each prefix=core entry of SOLR_CORES under
+     * /prefix.  An entry without a prefix is served under its core name.
+     *
+     * @return map from path prefix ("" for the root) to core name
+     */
+    private Map<String,String> getCoreNames() {
+      Map<String,String> coreNames = new LinkedHashMap<>();
+      Optional.ofNullable(Environment.getOptionalVar(SOLR_CORE, null)).ifPresent(core -> {
+        put(SOLR_CORE, core);
+        coreNames.put("", core);
+      });
+      for (String entry : getListVar(SOLR_CORES).orElse(List.of())) {
+        int equals = entry.indexOf('=');
+        String prefix = equals == -1 ? entry : entry.substring(0, equals).trim();
+        String core = equals == -1 ? entry : entry.substring(equals + 1).trim();
+        if (!PREFIX_PATTERN.matcher(prefix).matches() || core.isEmpty()) {
+          throw new IllegalArgumentException("Invalid " + SOLR_CORES + " entry '" + entry + "'; must be prefix=core");
+        }
+        if (coreNames.put(prefix, core) != null) {
+          throw new IllegalArgumentException("Path prefix '" + prefix + "' appears more than once in " + SOLR_CORES);
+        }
+      }
+      if (coreNames.isEmpty()) {
+        throw new IllegalArgumentException("At least one of " + SOLR_CORE + " or " + SOLR_CORES + " must be set");
+      }
+      return coreNames;
+    }
+
+    // stops calls to a SOLR core while it is failing, then probes it until it recovers
+    private CircuitBreaker createCircuitBreaker(String coreName) {
+      return new CircuitBreaker(coreName,
+          getIntVar(SOLR_BREAKER_WINDOW_SECS, 10),
+          getIntVar(SOLR_BREAKER_MIN_CALLS, 10),
+          getIntVar(SOLR_BREAKER_FAILURE_PERCENT, 50),
+          getIntVar(SOLR_BREAKER_SLOW_CALL_MILLIS, 10000),
+          getMillisVar(SOLR_BREAKER_OPEN_SECS, 5));
+    }
+
+    // metadata, caches, suggestions, coalescing and call limits are kept per core
+    private CoreContext createCore(String prefix, String coreName, SolrTransport transport,
+        CircuitBreaker breaker, SolrCallExecutor executor) {
+
+      // names in metrics and logs are qualified by prefix, except the root core's
+      String qualifier = prefix.isEmpty() ? "" : prefix + "/";
+
+      SolrCoreClient solr = new SolrCoreClient(transport, coreName, breaker);
+
+      IndexVersionTracker indexVersion = new IndexVersionTracker(
+          () -> SolrCalls.getIndexVersion(solr, INDEX_VERSION_TIMEOUT_MILLIS),
+          (ScheduledExecutorService)get(INDEX_VERSION_EXECUTOR),
+          getMillisVar(INDEX_VERSION_CHECK_SECS, 30));
+
+      MetadataCache metadataCache = new MetadataCache(
+          () -> SolrCalls.initializeMetadata(solr),
+          indexVersion,
+          getMillisVar(METADATA_TTL_SECS, 3600));
+
+      SearchResultCache searchResultCache = new SearchResultCache(
+          indexVersion,
+          getIntVar(SEARCH_CACHE_MAX_ENTRIES, 1000),
+          getMillisVar(SEARCH_CACHE_TTL_SECS, 600),
+          getMillisVar(SEARCH_CACHE_STALE_SECS, 3600));
+
+      // identical concurrent requests share one SOLR call / response build
+      SingleFlight<String,SearchResponse> searchSingleFlight = new SingleFlight<>(qualifier + "search");
+      SingleFlight<String,String> categoriesSingleFlight = new SingleFlight<>(qualifier + "categories-metadata");
+
+      // adaptive limits on concurrent SOLR calls, by class; calls over them wait briefly, then get 503
+      int admissionQueueSize = getIntVar(SOLR_WAIT_QUEUE_SIZE, 32);
+      long admissionWaitMillis = getIntVar(SOLR_MAX_WAIT_MILLIS, 2000);
+      AdmissionLimiter searchLimiter = new AdmissionLimiter(qualifier + "search",
+          getIntVar(SOLR_SEARCH_LIMIT, 16), admissionQueueSize, admissionWaitMillis);
+      AdmissionLimiter suggestLimiter = new AdmissionLimiter(qualifier + "suggest",
+          getIntVar(SOLR_SUGGEST_LIMIT, 8), admissionQueueSize, admissionWaitMillis);
+      AdmissionLimiter exportLimiter = new AdmissionLimiter(qualifier + "export",
+          getIntVar(SOLR_EXPORT_LIMIT, 8), admissionQueueSize, admissionWaitMillis);
+
+      Suggester suggester = new Suggester(solr, indexVersion, executor, suggestLimiter,
+          // an empty field disables the local index
+          Optional.of(Environment.getOptionalVar(SUGGEST_INDEX_FIELD, DEFAULT_SUGGEST_INDEX_FIELD))
+            .filter(field -> !field.isBlank()),
+          getIntVar(SUGGEST_INDEX_MAX_TERMS, 1000000),
+          getIntVar(SUGGEST_MAX_RESULTS, 10),
+          getIntVar(SUGGEST_CACHE_MAX_ENTRIES, 10000));
+
+      Warmup warmup = new Warmup(solr, metadataCache, searchLimiter,
+          (Integer)get(SEARCH_DEADLINE_MILLIS),
+          (Integer)get(MULTITEXT_MAX_LENGTH),
+          getListVar(WARMUP_SEARCH_TEXT).orElse(List.of("*")),
+          getListVar(WARMUP_PROJECTS),
+          getIntVar(WARMUP_ROUNDS, 3),
+          getMillisVar(WARMUP_MAX_SECS, 120));
+
+      return new CoreContext(prefix, solr, metadataCache, searchResultCache, suggester,
+          searchSingleFlight, categoriesSingleFlight, searchLimiter, suggestLimiter, exportLimiter, warmup);
+    }
+
+    // comma-separated values
+    private static Optional<List<String>> getListVar(String name) {
+      return Optional.ofNullable(Environment.getOptionalVar(name, null))
+          .map(value -> Arrays.stream(value.split(","))
+              .map(String::trim)
+              .filter(item -> !item.isEmpty())
+              .collect(Collectors.toList()));
+    }
+
+    private static int getIntVar(String name, int defaultValue) {
+      return Integer.parseInt(Environment.getOptionalVar(name, String.valueOf(defaultValue)));
+    }
+
+    private static long getMillisVar(String name, int defaultSeconds) {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(
+          Environment.getOptionalVar(name, String.valueOf(defaultSeconds))));
     }
 
     @Override
     public void close() {
-      // nothing to do here
+      ((RequestExecutor)get(REQUEST_EXECUTOR)).close();
+      ((RequestExecutor)get(EXPORT_REQUEST_EXECUTOR)).close();
+      ((SolrCallExecutor)get(SOLR_CALL_EXECUTOR)).close();
+      ((ExecutorService)get(EXPORT_EXECUTOR)).shutdownNow();
+      ((ExecutorService)get(INDEX_VERSION_EXECUTOR)).shutdownNow();
+      ((SolrTransport)get(SOLR_TRANSPORT)).close();
     }
   }
 }
@@ -0,0 +1,333 @@
+package org.gusdb.sitesearch.service.solr;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gusdb.sitesearch.service.exception.DeadlineExceededException;
+import org.gusdb.sitesearch.service.exception.ServiceOverloadedException;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+import org.gusdb.sitesearch.service.exception.SolrUnavailableException;
+import org.gusdb.sitesearch.service.metrics.Metrics;
+import org.gusdb.sitesearch.service.request.Deadline;
+import org.json.JSONObject;
+
+/**
+ * Adaptive limit on the number of concurrent SOLR calls of one class (e.g.
+ * interactive search).  The limit starts at its maximum and is adjusted by
+ * AIMD from observed SOLR latency: it shrinks by a fixed ratio when recent
+ * latency rises well above its baseline or SOLR fails a call, and grows by
+ * about one per limit's worth of successful calls while in use.  Only failures
+ * of SOLR count (as for the circuit breaker): server errors, unreachable SOLR
+ * and timeouts of calls which ran well beyond the baseline; queries SOLR
+ * rejects and timeouts of calls given too little time to complete at SOLR's
+ * usual speed do not.  The baseline
+ * follows falls in latency at once but rises only over about a minute, so a
+ * lasting change in SOLR's speed is eventually accepted; the limit never falls
+ * below a quarter of its maximum.  Calls over the limit wait in a bounded FIFO
+ * queue for a limited time; calls which find the queue full or wait too long
+ * are rejected with a ServiceOverloadedException (503) rather than adding to
+ * SOLR's backlog.  A call made for a request never waits past the request's
+ * deadline: it fails with a DeadlineExceededException (504) once the deadline
+ * has passed.
+ */
+public class AdmissionLimiter {
+
+  private static final Logger LOG = LogManager.getLogger(AdmissionLimiter.class);
+
+  // recent latency above this multiple of the baseline is taken as a sign of overload
+  private static final double LATENCY_TOLERANCE = 2.0;
+  // factor applied to the limit on overload
+  private static final double BACKOFF_RATIO = 0.9;
+  // weight of each sample in the recent latency average
+  private static final double RECENT_WEIGHT = 0.2;
+  // time constant with which the baseline rises toward recent latency
+  private static final long BASELINE_RISE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+  /**
+   * Admission of a call (or of a sequence of calls, e.g. the pages of an
+   * export); must be closed to free its place
+   */
+  public class Permit implements AutoCloseable {
+
+    private boolean _closed = false;
+
+    /**
+     * Makes a SOLR call under this permit, recording its latency
+     *
+     * @param call SOLR call
+     * @return result of the call
+     */
+    public <T> T time(Supplier<T> call) {
+      long start = System.nanoTime();
+      RuntimeException error = null;
+      try {
+        return call.get();
+      }
+      catch (RuntimeException e) {
+        error = e;
+        throw e;
+      }
+      finally {
+        onSample(System.nanoTime() - start, error);
+      }
+    }
+
+    @Override
+    public void close() {
+      if (!_closed) {
+        _closed = true;
+        release();
+      }
+    }
+  }
+
+  private final String _name;
+  private final int _maxLimit;
+  private final int _minLimit;
+  private final int _maxQueued;
+  private final long _maxWaitNanos;
+
+  private final ReentrantLock _lock = new ReentrantLock(true);
+  private final Condition _slotAvailable = _lock.newCondition();
+
+  // guarded by _lock
+  private double _limit;
+  private int _inFlight = 0;
+  private int _queued = 0;
+  private double _recentLatency = 0; // nanos; 0 until the first sample
+  private double _baselineLatency = 0;
+  private long _lastSample = System.nanoTime();
+  private long _nextBackoffAllowed = _lastSample;
+
+  // statistics
+  private final LongAdder _numAdmitted = new LongAdder();
+  private final LongAdder _numWaited = new LongAdder();
+  private final LongAdder _numRejected = new LongAdder();
+  private final LongAdder _numBackoffs = new LongAdder();
+
+  /**
+   * @param name name of the class of calls limited (used in messages and metrics)
+   * @param maxLimit maximum (and initial) number of concurrent calls
+   * @param maxQueued maximum number of calls waiting to be admitted
+   * @param maxWaitMillis time a call may wait to be admitted before it is rejected
+   */
+  public AdmissionLimiter(String name, int maxLimit, int maxQueued, long maxWaitMillis) {
+    _name = name;
+    _maxLimit = Math.max(1, maxLimit);
+    _minLimit = Math.max(1, _maxLimit / 4);
+    _maxQueued = maxQueued;
+    _maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    _limit = _maxLimit;
+    Metrics.SOLR_CONCURRENCY_LIMIT.set(_maxLimit, _name);
+  }
+
+  /**
+   * Makes a single SOLR call once admitted
+   *
+   * @param deadline deadline of the request making the call
+   * @param call SOLR call
+   * @return result of the call
+   * @throws ServiceOverloadedException if the call is not admitted in time
+   * @throws DeadlineExceededException if the deadline passes before the call is admitted
+   */
+  public <T> T execute(Deadline deadline, Supplier<T> call) {
+    try (Permit permit = acquire(deadline)) {
+      return permit.time(call);
+    }
+  }
+
+  /**
+   * Waits (up to the configured time) for a place under the limit, for calls
+   * not bound by a request deadline (e.g. the pages of an export)
+   *
+   * @return permit which must be closed when its calls are complete
+   * @throws ServiceOverloadedException if the queue is full or the wait times out
+   */
+  public Permit acquire() {
+    return acquire(_maxWaitNanos, false);
+  }
+
+  /**
+   * Waits (up to the configured time, but not past the deadline) for a place
+   * under the limit
+   *
+   * @param deadline deadline of the request making the calls
+   * @return permit which must be closed when its calls are complete
+   * @throws ServiceOverloadedException if the queue is full or the wait times out
+   * @throws DeadlineExceededException if the deadline passes before the call is admitted
+   */
+  public Permit acquire(Deadline deadline) {
+    long remainingNanos = TimeUnit.MILLISECONDS.toNanos(deadline.getRemainingMillis());
+    if (remainingNanos <= 0) {
+      throw new DeadlineExceededException("Request deadline passed before " + _name + " call to SOLR was admitted");
+    }
+    return acquire(Math.min(_maxWaitNanos, remainingNanos), remainingNanos < _maxWaitNanos);
+  }
+
+  private Permit acquire(long maxWaitNanos, boolean waitEndsAtDeadline) {
+    _lock.lock();
+    try {
+      // calls already waiting go first
+      if (_queued == 0 && _inFlight < getLimit()) {
+        return admit();
+      }
+      if (_queued >= _maxQueued) {
+        throw reject(_queued + " calls already waiting");
+      }
+      _queued++;
+      _numWaited.increment();
+      try {
+        long remainingNanos = maxWaitNanos;
+        while (_inFlight >= getLimit()) {
+          if (remainingNanos <= 0) {
+            if (waitEndsAtDeadline) {
+              throw new DeadlineExceededException("Request deadline passed while " + _name +
+                  " call waited to be admitted to SOLR");
+            }
+            throw reject("waited " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + "ms");
+          }
+          remainingNanos = _slotAvailable.awaitNanos(remainingNanos);
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SiteSearchRuntimeException("Interrupted while waiting to call SOLR", e);
+      }
+      finally {
+        _queued--;
+      }
+      Permit permit = admit();
+      // the limit may have grown by more than one place
+      if (_queued > 0 && _inFlight < getLimit()) {
+        _slotAvailable.signal();
+      }
+      return permit;
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  private Permit admit() {
+    _inFlight++;
+    _numAdmitted.increment();
+    return new Permit();
+  }
+
+  private ServiceOverloadedException reject(String reason) {
+    _numRejected.increment();
+    Metrics.SOLR_ADMISSION_REJECTIONS.inc(_name);
+    // by then the calls ahead of it should have completed
+    long retryAfterSeconds = Math.max(1, (long)Math.ceil(_recentLatency / TimeUnit.SECONDS.toNanos(1)));
+    return new ServiceOverloadedException("Rejected " + _name + " call to SOLR; " +
+        _inFlight + " in progress (limit " + getLimit() + ") and " + reason, retryAfterSeconds);
+  }
+
+  private void release() {
+    _lock.lock();
+    try {
+      _inFlight--;
+      if (_queued > 0 && _inFlight < getLimit()) {
+        _slotAvailable.signal();
+      }
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  private void onSample(long latencyNanos, RuntimeException error) {
+    _lock.lock();
+    try {
+      long now = System.nanoTime();
+      boolean failed = error != null && isSolrFailure(error, latencyNanos);
+      if (_recentLatency == 0) {
+        _recentLatency = _baselineLatency = latencyNanos;
+      }
+      else {
+        _recentLatency += RECENT_WEIGHT * (latencyNanos - _recentLatency);
+        // rises by time rather than by sample, so a burst of slow calls cannot quickly become the norm
+        double riseWeight = 1 - Math.exp(-(double)(now - _lastSample) / BASELINE_RISE_NANOS);
+        _baselineLatency = Math.min(_recentLatency,
+            _baselineLatency + riseWeight * (_recentLatency - _baselineLatency));
+      }
+      _lastSample = now;
+      if (failed || _recentLatency > LATENCY_TOLERANCE * _baselineLatency) {
+        // back off at most once per recent latency so calls already in flight do not compound it
+        if (now - _nextBackoffAllowed >= 0 && _limit > _minLimit) {
+          int oldLimit = getLimit();
+          _limit = Math.max(_minLimit, _limit * BACKOFF_RATIO);
+          _nextBackoffAllowed = now + (long)_recentLatency;
+          _numBackoffs.increment();
+          if (getLimit() != oldLimit) {
+            LOG.info("Reduced " + _name + " SOLR call limit to " + getLimit() + " (recent latency " +
+                toMillis(_recentLatency) + "ms, baseline " + toMillis(_baselineLatency) + "ms" +
+                (failed ? ", call failed" : "") + ")");
+          }
+        }
+      }
+      else if (_inFlight * 2 >= _limit && _limit < _maxLimit) {
+        // only grow a limit that is being used
+        _limit = Math.min(_maxLimit, _limit + 1 / _limit);
+        if (_queued > 0 && _inFlight < getLimit()) {
+          _slotAvailable.signal();
+        }
+      }
+      Metrics.SOLR_CONCURRENCY_LIMIT.set(getLimit(), _name);
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  // called with _lock held, before the sample is added to the latency averages
+  private boolean isSolrFailure(RuntimeException error, long latencyNanos) {
+    // server error, SOLR unreachable or its circuit breaker open
+    if (error instanceof SolrUnavailableException) {
+      return true;
+    }
+    // a timeout of the connection (thrown by SolrTransport with the timeout as its cause, unlike the
+    // request deadline passing before the call) is only SOLR's fault if the call ran well beyond its
+    // usual latency, not if it was given too little time
+    return error instanceof DeadlineExceededException && error.getCause() != null &&
+        (_baselineLatency == 0 || latencyNanos > LATENCY_TOLERANCE * _baselineLatency);
+  }
+
+  // called with _lock held
+  private int getLimit() {
+    return (int)_limit;
+  }
+
+  private static long toMillis(double nanos) {
+    return TimeUnit.NANOSECONDS.toMillis((long)nanos);
+  }
+
+  /**
+   * @return snapshot of limiter state and statistics
+   */
+  public JSONObject getStatistics() {
+    _lock.lock();
+    try {
+      return new JSONObject()
+        .put("limit", getLimit())
+        .put("minLimit", _minLimit)
+        .put("maxLimit", _maxLimit)
+        .put("inFlight", _inFlight)
+        .put("queued", _queued)
+        .put("recentLatencyMillis", toMillis(_recentLatency))
+        .put("baselineLatencyMillis", toMillis(_baselineLatency))
+        .put("admitted", _numAdmitted.sum())
+        .put("waited", _numWaited.sum())
+        .put("rejected", _numRejected.sum())
+        .put("backoffs", _numBackoffs.sum());
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package org.gusdb.sitesearch.service.solr;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gusdb.sitesearch.service.exception.SolrUnavailableException;
+import org.gusdb.sitesearch.service.metrics.Metrics;
+import org.json.JSONObject;
+
+/**
+ * Circuit breaker around the calls made for one SOLR core.  The outcomes of calls are counted
+ * in a sliding window of one-second buckets; a call is unhealthy if it fails
+ * (cannot connect, times out or gets a server error) or SOLR takes longer than
+ * the slow call threshold to answer it.  Bulk calls (e.g. the pages of an
+ * export), which are expected to be slow, are only unhealthy if they fail.  Once the window holds enough calls
+ * and the unhealthy share of them reaches the threshold, the breaker opens and
+ * calls fail at once with SolrUnavailableException.  When the open interval
+ * has passed, one call is let through to probe SOLR: if it is healthy the
+ * breaker closes; if not, it stays open for twice as long (up to a limit).
+ * Intervals are jittered so that several instances of the service do not probe
+ * a recovering SOLR in step.  Each core has its own breaker so that one failing
+ * core does not stop calls to the others.
+ */
+public class CircuitBreaker {
+
+  private static final Logger LOG = LogManager.getLogger(CircuitBreaker.class);
+
+  // longest open interval, as a multiple of the initial one, reached by repeated failed probes
+  private static final int MAX_OPEN_MULTIPLE = 16;
+  // open intervals are varied randomly by up to this fraction
+  private static final double JITTER = 0.2;
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  /**
+   * Call let through the breaker; exactly one of its methods must be called
+   * once the call is over
+   */
+  public class Call {
+
+    private final boolean _probe;
+    private final boolean _bulk;
+
+    private Call(boolean probe, boolean bulk) {
+      _probe = probe;
+      _bulk = bulk;
+    }
+
+    /**
+     * @param latencyNanos time SOLR took to answer the call
+     */
+    public void succeeded(long latencyNanos) {
+      boolean healthy = _bulk || latencyNanos < _slowCallNanos;
+      onOutcome(this, healthy, healthy ? null :
+          "took " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + "ms");
+    }
+
+    public void failed() {
+      onOutcome(this, false, "failed");
+    }
+
+    /**
+     * Records that the call was never sent (e.g. no connection was available)
+     */
+    public void cancel() {
+      onCancel(this);
+    }
+  }
+
+  private final String _core;
+  private final int _windowSecs;
+  private final int _minCalls;
+  private final int _failurePercent;
+  private final long _slowCallNanos;
+  private final long _initialOpenMillis;
+
+  // guarded by this
+  private final long[] _bucketSecond;
+  private final int[] _bucketCalls;
+  private final int[] _bucketUnhealthy;
+  private State _state = State.CLOSED;
+  private long _openMillis;
+  private long _nextProbeAt;
+
+  // statistics
+  private final LongAdder _numOpened = new LongAdder();
+  private final LongAdder _numProbes = new LongAdder();
+  private final LongAdder _numRejected = new LongAdder();
+
+  /**
+   * @param core name of the SOLR core whose calls pass through the breaker, used in metrics and logs
+   * @param windowSecs length of the window over which call outcomes are counted
+   * @param minCalls minimum number of calls in the window before the breaker may open
+   * @param failurePercent percentage of unhealthy calls in the window at which the breaker opens; 0 never opens it
+   * @param slowCallMillis time to answer a call beyond which it is unhealthy
+   * @param openMillis time the breaker stays open before the first probe
+   */
+  public CircuitBreaker(String core, int windowSecs, int minCalls, int failurePercent, long slowCallMillis, long openMillis) {
+    _core = core;
+    _windowSecs = Math.max(1, windowSecs);
+    _minCalls = Math.max(1, minCalls);
+    _failurePercent = failurePercent;
+    _slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+    _initialOpenMillis = openMillis;
+    _openMillis = openMillis;
+    _bucketSecond = new long[_windowSecs];
+    _bucketCalls = new int[_windowSecs];
+    _bucketUnhealthy = new int[_windowSecs];
+    Metrics.SOLR_CIRCUIT_OPEN.set(0, _core);
+  }
+
+  /**
+   * Lets a call through, unless the breaker is open
+   *
+   * @param bulk whether the call is expected to be slow (e.g. an export page),
+   * so is not judged by the slow call threshold
+   * @return call whose outcome must be recorded
+   * @throws SolrUnavailableException if the breaker is open
+   */
+  public synchronized Call begin(boolean bulk) {
+    if (_state == State.CLOSED) {
+      return new Call(false, bulk);
+    }
+    long now = System.currentTimeMillis();
+    if (now >= _nextProbeAt) {
+      // a probe which does not finish within the interval is replaced by another
+      _state = State.HALF_OPEN;
+      _nextProbeAt = now + jitter(_openMillis);
+      _numProbes.increment();
+      return new Call(true, bulk);
+    }
+    _numRejected.increment();
+    throw new SolrUnavailableException("SOLR circuit breaker of core '" + _core + "' is open; next attempt to call SOLR in " +
+        (_nextProbeAt - now) + "ms", getRetryAfterSeconds(now));
+  }
+
+  private synchronized void onOutcome(Call call, boolean healthy, String problem) {
+    long now = System.currentTimeMillis();
+    if (call._probe && _state != State.CLOSED) {
+      if (healthy) {
+        LOG.info("SOLR probe call to core '" + _core + "' succeeded; closing circuit breaker");
+        close();
+      }
+      else {
+        _openMillis = Math.min(_openMillis * 2, _initialOpenMillis * MAX_OPEN_MULTIPLE);
+        _state = State.OPEN;
+        _nextProbeAt = now + jitter(_openMillis);
+        LOG.warn("SOLR probe call to core '" + _core + "' " + problem + "; circuit breaker stays open for " + (_nextProbeAt - now) + "ms");
+      }
+      return;
+    }
+    if (_state != State.CLOSED) {
+      // outcome of a call made before the breaker opened
+      return;
+    }
+    long second = TimeUnit.MILLISECONDS.toSeconds(now);
+    int i = (int)(second % _windowSecs);
+    if (_bucketSecond[i] != second) {
+      _bucketSecond[i] = second;
+      _bucketCalls[i] = 0;
+      _bucketUnhealthy[i] = 0;
+    }
+    _bucketCalls[i]++;
+    if (healthy) return;
+    _bucketUnhealthy[i]++;
+    int calls = 0, unhealthy = 0;
+    for (int j = 0; j < _windowSecs; j++) {
+      if (second - _bucketSecond[j] < _windowSecs) {
+        calls += _bucketCalls[j];
+        unhealthy += _bucketUnhealthy[j];
+      }
+    }
+    if (_failurePercent > 0 && calls >= _minCalls && unhealthy * 100L >= (long)_failurePercent * calls) {
+      _state = State.OPEN;
+      _openMillis = _initialOpenMillis;
+      _nextProbeAt = now + jitter(_openMillis);
+      _numOpened.increment();
+      Metrics.SOLR_CIRCUIT_OPEN.set(1, _core);
+      LOG.warn("Opening SOLR circuit breaker of core '" + _core + "'; " + unhealthy + " of " + calls + " calls in the last " +
+          _windowSecs + "s failed or were slow (last " + problem + "); next attempt in " +
+          (_nextProbeAt - now) + "ms");
+    }
+  }
+
+  private synchronized void onCancel(Call call) {
+    if (call._probe && _state == State.HALF_OPEN) {
+      // let the next call probe instead
+      _nextProbeAt = System.currentTimeMillis();
+    }
+  }
+
+  // called with lock held
+  private void close() {
+    _state = State.CLOSED;
+    _openMillis = _initialOpenMillis;
+    for (int j = 0; j < _windowSecs; j++) {
+      _bucketCalls[j] = 0;
+      _bucketUnhealthy[j] = 0;
+    }
+    Metrics.SOLR_CIRCUIT_OPEN.set(0, _core);
+  }
+
+  private static long jitter(long millis) {
+    return (long)(millis * (1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1)));
+  }
+
+  // called with lock held
+  private long getRetryAfterSeconds(long now) {
+    return _state == State.CLOSED ? 1 : Math.max(1, (long)Math.ceil((_nextProbeAt - now) / 1000d));
+  }
+
+  /**
+   * @return seconds after which a client should retry a call which SOLR failed
+   */
+  public synchronized long getRetryAfterSeconds() {
+    return getRetryAfterSeconds(System.currentTimeMillis());
+  }
+
+  /**
+   * @return snapshot of breaker state and statistics
+   */
+  public synchronized JSONObject getStatistics() {
+    return new JSONObject()
+      .put("state", _state.name())
+      .put("openIntervalMillis", _openMillis)
+      .put("opened", _numOpened.sum())
+      .put("probes", _numProbes.sum())
+      .put("rejected", _numRejected.sum());
+  }
+}
@@ -0,0 +1,156 @@
+package org.gusdb.sitesearch.service.solr;
+
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gusdb.fgputil.Tuples.TwoTuple;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+
+/**
+ * Walks a SOLR cursorMark result set, fetching the next page in the background
+ * while the caller consumes the current one.  At most a fixed number of pages
+ * are held ahead of the caller so memory stays bounded.  If no prefetch thread
+ * is available, pages are fetched on the caller's thread instead.
+ *
+ * @param <T> type of page produced by the fetcher
+ */
+public class CursorPrefetcher<T> implements AutoCloseable {
+
+  private static final Logger LOG = LogManager.getLogger(CursorPrefetcher.class);
+
+  private static final String FIRST_CURSOR_MARK = "*";
+  private static final long POLL_MILLIS = 100;
+
+  /**
+   * Fetches one page of results
+   */
+  @FunctionalInterface
+  public interface PageFetcher<T> {
+    /**
+     * @param cursorMark cursor mark of the page to fetch
+     * @return the page and the cursor mark of the following page
+     */
+    TwoTuple<T,String> fetchPage(String cursorMark);
+  }
+
+  // queue item: a page, a failure, or the end of results
+  private static class Item<T> {
+
+    private final T _page;
+    private final RuntimeException _failure;
+
+    public Item(T page, RuntimeException failure) {
+      _page = page;
+      _failure = failure;
+    }
+  }
+
+  private final PageFetcher<T> _fetcher;
+  private final BlockingQueue<Item<T>> _queue;
+  private final Future<?> _producer;
+  private volatile boolean _closed = false;
+
+  // state used when fetching on the caller's thread
+  private String _cursorMark = FIRST_CURSOR_MARK;
+  private boolean _done = false;
+
+  /**
+   * @param executor executor on which to run the background fetch
+   * @param maxPagesAhead maximum number of fetched pages not yet consumed
+   * @param fetcher function which fetches a page
+   */
+  public CursorPrefetcher(ExecutorService executor, int maxPagesAhead, PageFetcher<T> fetcher) {
+    _fetcher = fetcher;
+    _queue = new ArrayBlockingQueue<>(Math.max(1, maxPagesAhead));
+    Future<?> producer;
+    try {
+      producer = executor.submit(this::produce);
+    }
+    catch (RejectedExecutionException e) {
+      LOG.warn("No prefetch thread available; fetching pages without prefetch");
+      producer = null;
+    }
+    _producer = producer;
+  }
+
+  /**
+   * @return the next page, or empty if all pages have been consumed
+   */
+  public Optional<T> nextPage() {
+    if (_producer == null) {
+      return fetchDirectly();
+    }
+    Item<T> item;
+    try {
+      item = _queue.take();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SiteSearchRuntimeException("Interrupted while waiting for next page from SOLR", e);
+    }
+    if (item._failure != null) {
+      throw item._failure;
+    }
+    return Optional.ofNullable(item._page);
+  }
+
+  private Optional<T> fetchDirectly() {
+    if (_done) return Optional.empty();
+    TwoTuple<T,String> page = _fetcher.fetchPage(_cursorMark);
+    _done = page.getSecond().equals(_cursorMark);
+    _cursorMark = page.getSecond();
+    return Optional.of(page.getFirst());
+  }
+
+  private void produce() {
+    String cursorMark = FIRST_CURSOR_MARK;
+    try {
+      while (!_closed) {
+        TwoTuple<T,String> page = _fetcher.fetchPage(cursorMark);
+        if (!enqueue(new Item<>(page.getFirst(), null))) return;
+        // SOLR returns the same cursor mark once results are exhausted
+        if (page.getSecond().equals(cursorMark)) break;
+        cursorMark = page.getSecond();
+      }
+      enqueue(new Item<>(null, null));
+    }
+    catch (RuntimeException e) {
+      enqueue(new Item<>(null, e));
+    }
+  }
+
+  // blocks until there is room in the queue; returns false if closed first
+  private boolean enqueue(Item<T> item) {
+    try {
+      while (!_closed) {
+        if (_queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  /**
+   * Stops any background fetching (e.g. if the client disconnects) and drops
+   * pages not yet consumed
+   */
+  @Override
+  public void close() {
+    _closed = true;
+    _queue.clear();
+    if (_producer != null) {
+      _producer.cancel(true);
+    }
+  }
+}
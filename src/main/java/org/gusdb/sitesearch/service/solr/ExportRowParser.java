@@ -0,0 +1,162 @@
+package org.gusdb.sitesearch.service.solr;
+
+import static org.gusdb.fgputil.FormatUtil.NL;
+import static org.gusdb.fgputil.FormatUtil.TAB;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.gusdb.sitesearch.service.SolrCalls;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+import org.gusdb.sitesearch.service.metrics.Metrics;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Converts one page of a SOLR cursorMark JSON response into export rows
+ * (primary key, score and project, tab-delimited) while reading it, so a page
+ * never exists in memory as a list of document objects.  Only the primary key
+ * array of the current document is parsed into an object; all other values are
+ * read as single tokens or skipped.
+ */
+public class ExportRowParser {
+
+  private static final String RESPONSE_KEY = "response";
+  private static final String DOCS_KEY = "docs";
+  private static final String NEXT_CURSOR_MARK_KEY = "nextCursorMark";
+
+  /**
+   * Reads a SOLR JSON response and writes a row for each document it contains
+   *
+   * @param solrResponse reader over the body of a SOLR select response
+   * @param out writer to which rows are written
+   * @return cursor mark of the next page
+   * @throws IOException if unable to write rows
+   */
+  public static String writeRows(Reader solrResponse, Writer out) throws IOException {
+    try {
+      JSONTokener tokens = new JSONTokener(solrResponse);
+      String nextCursorMark = null;
+      expect(tokens, '{');
+      for (String key = firstKey(tokens); key != null; key = nextKey(tokens)) {
+        if (key.equals(RESPONSE_KEY)) {
+          expect(tokens, '{');
+          for (String responseKey = firstKey(tokens); responseKey != null; responseKey = nextKey(tokens)) {
+            if (responseKey.equals(DOCS_KEY)) {
+              Metrics.EXPORT_ROWS.inc(writeDocuments(tokens, out));
+            }
+            else {
+              tokens.nextValue();
+            }
+          }
+        }
+        else if (key.equals(ResponseHeader.KEY)) {
+          Object header = tokens.nextValue();
+          new ResponseHeader(header instanceof JSONObject ? (JSONObject)header : null)
+            .observeQueryTime(SolrTransport.SELECT_HANDLER);
+        }
+        else if (key.equals(NEXT_CURSOR_MARK_KEY)) {
+          nextCursorMark = tokens.nextValue().toString();
+        }
+        else {
+          tokens.nextValue();
+        }
+      }
+      if (nextCursorMark == null) {
+        throw new SiteSearchRuntimeException("SOLR response did not contain " + NEXT_CURSOR_MARK_KEY);
+      }
+      return nextCursorMark;
+    }
+    catch (JSONException e) {
+      throw new SiteSearchRuntimeException("could not parse JSON response from SOLR: " + e.getMessage(), e);
+    }
+  }
+
+  // returns the number of rows written
+  private static int writeDocuments(JSONTokener tokens, Writer out) throws IOException {
+    expect(tokens, '[');
+    if (tokens.nextClean() == ']') return 0;
+    tokens.back();
+    int numRows = 0;
+    do {
+      writeDocument(tokens, out);
+      numRows++;
+    }
+    while (expectOneOf(tokens, ',', ']') == ',');
+    return numRows;
+  }
+
+  private static void writeDocument(JSONTokener tokens, Writer out) throws IOException {
+    JSONArray primaryKey = null;
+    Double score = null;
+    String project = "";
+    expect(tokens, '{');
+    for (String key = firstKey(tokens); key != null; key = nextKey(tokens)) {
+      Object value = tokens.nextValue();
+      switch (key) {
+        case SolrCalls.PRIMARY_KEY_FIELD:
+          if (!(value instanceof JSONArray))
+            throw new SiteSearchRuntimeException("SOLR document field " + key + " is not an array");
+          primaryKey = (JSONArray)value;
+          break;
+        case SolrCalls.SCORE_FIELD:
+          if (!(value instanceof Number))
+            throw new SiteSearchRuntimeException("SOLR document field " + key + " is not a number");
+          score = ((Number)value).doubleValue();
+          break;
+        case SolrCalls.PROJECT_FIELD:
+          project = JSONObject.NULL.equals(value) ? "" : value.toString();
+          break;
+        default:
+          // ignore unrequested fields
+      }
+    }
+    if (primaryKey == null || score == null) {
+      throw new SiteSearchRuntimeException("SOLR document is missing " +
+          SolrCalls.PRIMARY_KEY_FIELD + " or " + SolrCalls.SCORE_FIELD);
+    }
+    out.write(primaryKey.toString());
+    out.write(TAB);
+    out.write(String.valueOf(score.doubleValue()));
+    out.write(TAB);
+    out.write(project);
+    out.write(NL);
+  }
+
+  // reads the first key of an object whose opening brace has been consumed; null if empty
+  private static String firstKey(JSONTokener tokens) {
+    if (tokens.nextClean() == '}') return null;
+    tokens.back();
+    return readKey(tokens);
+  }
+
+  // reads the next key of an object after a value; null at the end of the object
+  private static String nextKey(JSONTokener tokens) {
+    return expectOneOf(tokens, ',', '}') == ',' ? readKey(tokens) : null;
+  }
+
+  private static String readKey(JSONTokener tokens) {
+    expect(tokens, '"');
+    String key = tokens.nextString('"');
+    expect(tokens, ':');
+    return key;
+  }
+
+  private static void expect(JSONTokener tokens, char expected) {
+    char c = tokens.nextClean();
+    if (c != expected) {
+      throw tokens.syntaxError("Expected '" + expected + "' but found '" + c + "'");
+    }
+  }
+
+  private static char expectOneOf(JSONTokener tokens, char option1, char option2) {
+    char c = tokens.nextClean();
+    if (c != option1 && c != option2) {
+      throw tokens.syntaxError("Expected '" + option1 + "' or '" + option2 + "' but found '" + c + "'");
+    }
+    return c;
+  }
+}
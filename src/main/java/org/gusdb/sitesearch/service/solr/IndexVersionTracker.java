@@ -0,0 +1,62 @@
+package org.gusdb.sitesearch.service.solr;
+
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tracks the index version of the SOLR core backing this service.  Looking up
+ * the version costs a SOLR call, so it is looked up in the background once per
+ * check interval and requests only read the last value seen; a slow or failing
+ * lookup never holds up a request.  Holders of data derived from the index
+ * compare the version they loaded against the current one to find out when
+ * that data is stale.
+ */
+public class IndexVersionTracker {
+
+  private static final Logger LOG = LogManager.getLogger(IndexVersionTracker.class);
+
+  private final Supplier<String> _versionLookup;
+
+  private volatile String _version;
+
+  /**
+   * Looks up the version at once, then repeatedly after each check interval
+   *
+   * @param versionLookup function which fetches the current index version from SOLR
+   * @param scheduler executor on which lookups are run
+   * @param checkIntervalMillis time between the end of one lookup and the start of the next
+   */
+  public IndexVersionTracker(Supplier<String> versionLookup, ScheduledExecutorService scheduler,
+      long checkIntervalMillis) {
+    _versionLookup = versionLookup;
+    scheduler.scheduleWithFixedDelay(this::checkVersion, 0, Math.max(1, checkIntervalMillis), TimeUnit.MILLISECONDS);
+  }
+
+  // an exception would cancel further checks, so none may escape
+  private void checkVersion() {
+    try {
+      String version = _versionLookup.get();
+      if (_version != null && !_version.equals(version)) {
+        LOG.info("SOLR index version changed from " + _version + " to " + version);
+      }
+      _version = version;
+    }
+    catch (RuntimeException e) {
+      LOG.warn("Unable to look up SOLR index version; will continue to use last known version", e);
+    }
+  }
+
+  /**
+   * @return last index version looked up, or empty if it has never been
+   * successfully looked up (e.g. the core admin API is not reachable)
+   */
+  public Optional<String> getVersion() {
+    return Optional.ofNullable(_version);
+  }
+
+}
@@ -0,0 +1,84 @@
+package org.gusdb.sitesearch.service.solr;
+
+import javax.ws.rs.core.Response;
+
+import org.gusdb.sitesearch.service.metrics.Metrics;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * The responseHeader object of a SOLR JSON response, which holds the query
+ * time SOLR reports and whether its results are partial (i.e. it stopped
+ * collecting matches when the query's timeAllowed ran out)
+ */
+public class ResponseHeader {
+
+  public static final String KEY = "responseHeader";
+
+  private static final String QTIME_KEY = "QTime";
+  private static final String PARTIAL_RESULTS_KEY = "partialResults";
+
+  private final JSONObject _json;
+
+  /**
+   * @param json responseHeader object of a parsed response, or null if it has none
+   */
+  public ResponseHeader(JSONObject json) {
+    _json = json == null ? new JSONObject() : json;
+  }
+
+  /**
+   * Reads the header of a response to be parsed again by its handler; the
+   * response's entity is buffered so it can be read twice
+   *
+   * @param response response passed to a call's handler
+   * @return header of the response
+   */
+  public static ResponseHeader readBuffered(Response response) {
+    response.bufferEntity();
+    return read(response.readEntity(String.class));
+  }
+
+  /**
+   * Parses the top-level values of a response body only as far as its header,
+   * which SOLR writes first
+   *
+   * @param responseBody body of a SOLR JSON response
+   * @return header of the response (empty if it has none)
+   */
+  public static ResponseHeader read(String responseBody) {
+    JSONTokener tokens = new JSONTokener(responseBody);
+    if (tokens.nextClean() != '{') {
+      throw tokens.syntaxError("SOLR response is not a JSON object");
+    }
+    while (tokens.nextClean() == '"') {
+      String key = tokens.nextString('"');
+      if (tokens.nextClean() != ':') {
+        throw tokens.syntaxError("Expected ':' after key '" + key + "'");
+      }
+      Object value = tokens.nextValue();
+      if (key.equals(KEY)) {
+        return new ResponseHeader(value instanceof JSONObject ? (JSONObject)value : null);
+      }
+      if (tokens.nextClean() != ',') {
+        break;
+      }
+    }
+    return new ResponseHeader(null);
+  }
+
+  public boolean isPartialResults() {
+    return _json.optBoolean(PARTIAL_RESULTS_KEY, false);
+  }
+
+  /**
+   * Records the query time SOLR reported, if any
+   *
+   * @param handlerName name of the SOLR handler called (metric label)
+   */
+  public void observeQueryTime(String handlerName) {
+    if (_json.has(QTIME_KEY)) {
+      Metrics.SOLR_QTIME.observe(_json.getLong(QTIME_KEY) / 1000d, handlerName);
+    }
+  }
+}
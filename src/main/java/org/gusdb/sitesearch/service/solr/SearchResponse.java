@@ -0,0 +1,59 @@
+package org.gusdb.sitesearch.service.solr;
+
+import javax.ws.rs.core.Response;
+
+import org.gusdb.fgputil.solr.Solr;
+import org.gusdb.fgputil.solr.SolrResponse;
+
+/**
+ * Response to a search (or counts) call, along with whether it is complete.
+ * Incomplete responses are returned to clients, flagged, but not cached.
+ */
+public class SearchResponse {
+
+  private final SolrResponse _response;
+  private final boolean _partialResults;
+  private final boolean _fieldFacetsOmitted;
+
+  /**
+   * @param response parsed SOLR response
+   * @param partialResults whether SOLR stopped collecting matches at timeAllowed
+   * @param fieldFacetsOmitted whether field facet queries were dropped to meet the deadline
+   */
+  public SearchResponse(SolrResponse response, boolean partialResults, boolean fieldFacetsOmitted) {
+    _response = response;
+    _partialResults = partialResults;
+    _fieldFacetsOmitted = fieldFacetsOmitted;
+  }
+
+  /**
+   * Parses the response to a search (or counts) call, reading whether its
+   * results are partial, and the query time SOLR reports, from its header
+   *
+   * @param query query string of the call
+   * @param response response passed to the call's handler
+   * @param fieldFacetsOmitted whether field facet queries were dropped to meet the deadline
+   * @return parsed response
+   */
+  public static SearchResponse parse(String query, Response response, boolean fieldFacetsOmitted) {
+    ResponseHeader header = ResponseHeader.readBuffered(response);
+    header.observeQueryTime(SolrTransport.SELECT_HANDLER);
+    return new SearchResponse(Solr.parseResponse(query, response), header.isPartialResults(), fieldFacetsOmitted);
+  }
+
+  public SolrResponse getResponse() {
+    return _response;
+  }
+
+  public boolean isPartialResults() {
+    return _partialResults;
+  }
+
+  public boolean isFieldFacetsOmitted() {
+    return _fieldFacetsOmitted;
+  }
+
+  public boolean isComplete() {
+    return !_partialResults && !_fieldFacetsOmitted;
+  }
+}
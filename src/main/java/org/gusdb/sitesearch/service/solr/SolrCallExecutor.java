@@ -0,0 +1,96 @@
+package org.gusdb.sitesearch.service.solr;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gusdb.sitesearch.service.exception.DeadlineExceededException;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+
+/**
+ * Bounded thread pool used to send independent SOLR calls in parallel (the
+ * searches of a batch).  Requests making a single call make it on their own
+ * thread instead.  If the pool and its queue are both full, calls are run on
+ * the submitting thread instead of being rejected.
+ */
+public class SolrCallExecutor implements AutoCloseable {
+
+  private final ExecutorService _executor;
+
+  /**
+   * @param name prefix for names of the pool's threads
+   * @param numThreads maximum number of concurrent calls
+   * @param queueSize maximum number of calls waiting for a thread
+   */
+  public SolrCallExecutor(String name, int numThreads, int queueSize) {
+    _executor = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queueSize), newThreadFactory(name),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  public static ThreadFactory newThreadFactory(String name) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  public <T> Future<T> submit(Callable<T> call) {
+    return _executor.submit(call);
+  }
+
+  /**
+   * Waits for the result of a submitted call.  Runtime exceptions thrown by
+   * the call are rethrown as-is so callers see the same errors they would if
+   * the call were made directly.
+   *
+   * @param future submitted call
+   * @param deadline time (in epoch millis) after which to give up on the call
+   * @return result of the call
+   */
+  public <T> T await(Future<T> future, long deadline) {
+    try {
+      return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)e.getCause();
+      }
+      throw new SiteSearchRuntimeException("SOLR call failed", e.getCause());
+    }
+    catch (TimeoutException e) {
+      future.cancel(true);
+      throw new DeadlineExceededException("SOLR call did not complete by the request deadline", e);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      throw new SiteSearchRuntimeException("Interrupted while waiting for SOLR call", e);
+    }
+  }
+
+  /**
+   * Cancels any of the passed calls that have not yet completed
+   *
+   * @param futures submitted calls
+   */
+  public static void cancelAll(Iterable<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  @Override
+  public void close() {
+    _executor.shutdownNow();
+  }
+}
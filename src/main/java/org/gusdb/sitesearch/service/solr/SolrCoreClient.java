@@ -0,0 +1,89 @@
+package org.gusdb.sitesearch.service.solr;
+
+import java.util.function.Function;
+
+import javax.ws.rs.core.Response;
+
+import org.gusdb.fgputil.solr.Solr.HttpMethod;
+
+/**
+ * Queries a single SOLR core over the shared transport, through the core's
+ * own circuit breaker
+ */
+public class SolrCoreClient {
+
+  private final SolrTransport _transport;
+  private final String _core;
+  private final CircuitBreaker _breaker;
+
+  public SolrCoreClient(SolrTransport transport, String core, CircuitBreaker breaker) {
+    _transport = transport;
+    _core = core;
+    _breaker = breaker;
+  }
+
+  public SolrTransport getTransport() {
+    return _transport;
+  }
+
+  public String getCore() {
+    return _core;
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return _breaker;
+  }
+
+  /**
+   * Sends a query to the select handler of this core
+   *
+   * @param method HTTP method; for POST, the query is sent as a form body
+   * @param query URL-encoded query string
+   * @param handler function to convert the (successful) response
+   * @return value produced by the handler
+   */
+  public <T> T executeQuery(HttpMethod method, String query, Function<Response,T> handler) {
+    return _transport.executeQuery(_core, _breaker, method, query, handler);
+  }
+
+  /**
+   * Sends a query to the select handler of this core
+   *
+   * @param method HTTP method; for POST, the query is sent as a form body
+   * @param query URL-encoded query string
+   * @param readTimeoutMillis read timeout of this call; 0 for the transport's default
+   * @param handler function to convert the (successful) response
+   * @return value produced by the handler
+   */
+  public <T> T executeQuery(HttpMethod method, String query, long readTimeoutMillis, Function<Response,T> handler) {
+    return _transport.executeQuery(_core, _breaker, method, query, readTimeoutMillis, handler);
+  }
+
+  /**
+   * Sends a bulk query (e.g. an export page) to the select handler of this
+   * core; its circuit breaker counts it as unhealthy only if it fails, not if
+   * it is slow
+   *
+   * @param method HTTP method; for POST, the query is sent as a form body
+   * @param query URL-encoded query string
+   * @param handler function to convert the (successful) response
+   * @return value produced by the handler
+   */
+  public <T> T executeBulkQuery(HttpMethod method, String query, Function<Response,T> handler) {
+    return _transport.executeBulkQuery(_core, _breaker, method, query, handler);
+  }
+
+  /**
+   * Sends a GET request made for this core (e.g. admin/cores?core=name) to a
+   * path below the SOLR base URL
+   *
+   * @param pathAndQuery path relative to SOLR base URL, including any query string
+   * @param readTimeoutMillis read timeout of this call; 0 for the transport's default
+   * @param handler function to convert the (successful) response
+   * @return value produced by the handler
+   */
+  public <T> T executeGet(String pathAndQuery, long readTimeoutMillis, Function<Response,T> handler) {
+    return _transport.executeGet(pathAndQuery, _breaker, readTimeoutMillis, handler);
+  }
+
+}
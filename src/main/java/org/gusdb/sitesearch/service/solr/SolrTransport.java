@@ -0,0 +1,408 @@
+package org.gusdb.sitesearch.service.solr;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status.Family;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.apache.connector.ApacheHttpClientBuilderConfigurator;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.gusdb.fgputil.solr.Solr.HttpMethod;
+import org.gusdb.sitesearch.service.exception.DeadlineExceededException;
+import org.gusdb.sitesearch.service.exception.ServiceOverloadedException;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+import org.gusdb.sitesearch.service.exception.SolrUnavailableException;
+import org.gusdb.sitesearch.service.metrics.Metrics;
+import org.json.JSONObject;
+
+/**
+ * Shared HTTP transport for all traffic to SOLR.  A single client is created
+ * per process, backed by a pool of kept-alive connections which caps the
+ * connections to SOLR (in total and per route) and closes those left idle;
+ * responses are requested gzip-compressed and transparently decoded.  Calls may set their own read
+ * timeout (e.g. from a request deadline); those that time out throw
+ * DeadlineExceededException.  Calls made for a core pass through that core's
+ * circuit breaker; calls which cannot reach SOLR, get a server error or are
+ * refused by an open breaker throw SolrUnavailableException.
+ *
+ * Leases of pooled connections (new or reused) and the pool's leased,
+ * available and pending counts are exposed as metrics.
+ */
+public class SolrTransport implements AutoCloseable {
+
+  private static final Logger LOG = LogManager.getLogger(SolrTransport.class);
+
+  private static final String GZIP = "gzip";
+  public static final String SELECT_HANDLER = "select";
+
+  // pooled connections unused for this long are checked before reuse, in case SOLR has closed them
+  private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+  // how often idle and expired connections are closed
+  private static final long EVICTION_INTERVAL_MILLIS = 5000;
+
+  private final String _solrUrl;
+  private final Client _client;
+  private final PoolingHttpClientConnectionManager _pool;
+  private final ScheduledExecutorService _evictor;
+  private final long _acquireTimeoutMillis;
+
+  // set when the pool opens a new connection for the calling thread's lease
+  private final ThreadLocal<Boolean> _openedConnection = ThreadLocal.withInitial(() -> false);
+
+  // statistics
+  private final LongAdder _numRequests = new LongAdder();
+  private final LongAdder _numFailures = new LongAdder();
+  private final LongAdder _numConnectionsOpened = new LongAdder();
+  private final LongAdder _numPoolTimeouts = new LongAdder();
+  private final LongAdder _numCompressedResponses = new LongAdder();
+  private final LongAdder _bytesReceived = new LongAdder();
+  private final AtomicInteger _inFlight = new AtomicInteger();
+  private final AtomicInteger _peakInFlight = new AtomicInteger();
+
+  /**
+   * @param solrUrl base URL of the SOLR instance (not including core)
+   * @param maxConnections maximum number of concurrent (and kept-alive) connections to SOLR
+   * @param maxConnectionsPerRoute maximum number of those to any one host
+   * @param connectTimeoutMillis time allowed to obtain and establish a connection
+   * @param readTimeoutMillis time allowed between reads of the response
+   * @param idleTimeoutMillis time after which an unused pooled connection is closed
+   */
+  public SolrTransport(String solrUrl, int maxConnections, int maxConnectionsPerRoute, int connectTimeoutMillis,
+      int readTimeoutMillis, long idleTimeoutMillis) {
+    _solrUrl = solrUrl;
+    _acquireTimeoutMillis = connectTimeoutMillis;
+
+    // new connections are counted so that leases can be told apart from reuses
+    _pool = new PoolingHttpClientConnectionManager(
+        RegistryBuilder.<ConnectionSocketFactory>create()
+          .register("http", PlainConnectionSocketFactory.getSocketFactory())
+          .register("https", SSLConnectionSocketFactory.getSocketFactory())
+          .build(),
+        (route, config) -> {
+          _openedConnection.set(true);
+          _numConnectionsOpened.increment();
+          return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        });
+    _pool.setMaxTotal(maxConnections);
+    _pool.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    _pool.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+    _evictor = Executors.newSingleThreadScheduledExecutor(SolrCallExecutor.newThreadFactory("solr-pool-evictor"));
+    _evictor.scheduleWithFixedDelay(() -> {
+      _pool.closeExpiredConnections();
+      _pool.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+      updatePoolMetrics();
+    }, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+    _client = ClientBuilder.newClient(new ClientConfig()
+        .connectorProvider(new ApacheConnectorProvider())
+        .property(ApacheClientProperties.CONNECTION_MANAGER, _pool)
+        .property(ApacheClientProperties.REQUEST_CONFIG, RequestConfig.custom()
+          .setConnectionRequestTimeout(connectTimeoutMillis)
+          .build())
+        .property(ClientProperties.CONNECT_TIMEOUT, connectTimeoutMillis)
+        .property(ClientProperties.READ_TIMEOUT, readTimeoutMillis)
+        // GzipFilter decodes (and counts) compressed responses itself
+        .register((ApacheHttpClientBuilderConfigurator)HttpClientBuilder::disableContentCompression)
+        .register(new GzipFilter()));
+  }
+
+  public String getSolrUrl() {
+    return _solrUrl;
+  }
+
+  /**
+   * Sends a query to the select handler of a core
+   *
+   * @param core name of the core to query
+   * @param breaker circuit breaker of the core
+   * @param method HTTP method; for POST, the query is sent as a form body
+   * @param query URL-encoded query string
+   * @param handler function to convert the (successful) response
+   * @return value produced by the handler
+   */
+  public <T> T executeQuery(String core, CircuitBreaker breaker, HttpMethod method, String query, Function<Response,T> handler) {
+    return executeQuery(core, breaker, method, query, 0, handler);
+  }
+
+  /**
+   * Sends a query to the select handler of a core
+   *
+   * @param core name of the core to query
+   * @param breaker circuit breaker of the core
+   * @param method HTTP method; for POST, the query is sent as a form body
+   * @param query URL-encoded query string
+   * @param readTimeoutMillis read timeout of this call; 0 for the transport's default
+   * @param handler function to convert the (successful) response
+   * @return value produced by the handler
+   */
+  public <T> T executeQuery(String core, CircuitBreaker breaker, HttpMethod method, String query,
+      long readTimeoutMillis, Function<Response,T> handler) {
+    return executeQuery(core, breaker, false, method, query, readTimeoutMillis, handler);
+  }
+
+  /**
+   * Sends a bulk query (e.g. an export page) to the select handler of a core.
+   * Such queries are expected to be slow, so the circuit breaker counts them as
+   * unhealthy only if they fail.
+   *
+   * @param core name of the core to query
+   * @param breaker circuit breaker of the core
+   * @param method HTTP method; for POST, the query is sent as a form body
+   * @param query URL-encoded query string
+   * @param handler function to convert the (successful) response
+   * @return value produced by the handler
+   */
+  public <T> T executeBulkQuery(String core, CircuitBreaker breaker, HttpMethod method, String query, Function<Response,T> handler) {
+    return executeQuery(core, breaker, true, method, query, 0, handler);
+  }
+
+  private <T> T executeQuery(String core, CircuitBreaker breaker, boolean bulk, HttpMethod method, String query,
+      long readTimeoutMillis, Function<Response,T> handler) {
+    String selectUrl = joinUrl(joinUrl(_solrUrl, core), "select");
+    return execute(selectUrl, SELECT_HANDLER, query, Optional.of(breaker), bulk, readTimeoutMillis, () -> method == HttpMethod.GET ?
+        _client.target(selectUrl + "?" + query).request(MediaType.APPLICATION_JSON).buildGet() :
+        _client.target(selectUrl).request(MediaType.APPLICATION_JSON)
+          .buildPost(Entity.entity(query, MediaType.APPLICATION_FORM_URLENCODED)), handler);
+  }
+
+  /**
+   * Sends a GET request to a path below the SOLR base URL (e.g. admin/cores).
+   * The call is not made for any one core, so passes through no circuit breaker.
+   *
+   * @param pathAndQuery path relative to SOLR base URL, including any query string
+   * @param readTimeoutMillis read timeout of this call; 0 for the transport's default
+   * @param handler function to convert the (successful) response
+   * @return value produced by the handler
+   */
+  public <T> T executeGet(String pathAndQuery, long readTimeoutMillis, Function<Response,T> handler) {
+    return executeGet(pathAndQuery, Optional.empty(), readTimeoutMillis, handler);
+  }
+
+  /**
+   * Sends a GET request made for a core to a path below the SOLR base URL
+   * (e.g. admin/cores?core=name)
+   *
+   * @param pathAndQuery path relative to SOLR base URL, including any query string
+   * @param breaker circuit breaker of the core
+   * @param readTimeoutMillis read timeout of this call; 0 for the transport's default
+   * @param handler function to convert the (successful) response
+   * @return value produced by the handler
+   */
+  public <T> T executeGet(String pathAndQuery, CircuitBreaker breaker, long readTimeoutMillis, Function<Response,T> handler) {
+    return executeGet(pathAndQuery, Optional.of(breaker), readTimeoutMillis, handler);
+  }
+
+  private <T> T executeGet(String pathAndQuery, Optional<CircuitBreaker> breaker, long readTimeoutMillis, Function<Response,T> handler) {
+    String url = joinUrl(_solrUrl, pathAndQuery);
+    String handlerName = pathAndQuery.contains("?") ? pathAndQuery.substring(0, pathAndQuery.indexOf('?')) : pathAndQuery;
+    return execute(url, handlerName, "", breaker, false, readTimeoutMillis,
+        () -> _client.target(url).request(MediaType.APPLICATION_JSON).buildGet(), handler);
+  }
+
+  private interface InvocationBuilder {
+    Invocation build();
+  }
+
+  private <T> T execute(String url, String handlerName, String query, Optional<CircuitBreaker> breaker,
+      boolean bulk, long readTimeoutMillis, InvocationBuilder invocation, Function<Response,T> handler) {
+    // fails at once if the breaker is open, before waiting for a connection
+    Optional<CircuitBreaker.Call> breakerCall = breaker.map(b -> b.begin(bulk));
+    long start = System.nanoTime();
+    int inFlight = _inFlight.incrementAndGet();
+    _peakInFlight.accumulateAndGet(inFlight, Math::max);
+    _numRequests.increment();
+    LOG.debug("Querying SOLR at " + url + " with: " + query);
+    Invocation request = invocation.build();
+    if (readTimeoutMillis > 0) {
+      request.property(ClientProperties.READ_TIMEOUT, (int)Math.min(readTimeoutMillis, Integer.MAX_VALUE));
+    }
+    long latencyNanos = -1; // until SOLR answers
+    boolean solrFailed = false;
+    _openedConnection.set(false);
+    try (Response response = request.invoke()) {
+      Metrics.SOLR_CONNECTION_LEASES.inc(_openedConnection.get() ? "new" : "reused");
+      latencyNanos = System.nanoTime() - start;
+      if (response.getStatusInfo().getFamily() != Family.SUCCESSFUL) {
+        String body = response.hasEntity() ? response.readEntity(String.class) : "";
+        String message = "SOLR request to " + url + " failed with status " +
+            response.getStatus() + ". Query: " + query + ", Response: " + body;
+        // client errors are problems with the request, not with SOLR
+        if (response.getStatusInfo().getFamily() == Family.SERVER_ERROR) {
+          solrFailed = true;
+          throw new SolrUnavailableException(message, getRetryAfterSeconds(breaker));
+        }
+        throw new SiteSearchRuntimeException(message);
+      }
+      return handler.apply(response);
+    }
+    catch (ProcessingException e) {
+      if (isPoolTimeout(e)) {
+        // no connection was free; SOLR was not called, so the call is shed as overload
+        _numPoolTimeouts.increment();
+        throw new ServiceOverloadedException("Timed out after " + _acquireTimeoutMillis +
+            "ms waiting for one of " + _pool.getMaxTotal() + " connections to SOLR at " + url, 1);
+      }
+      _numFailures.increment();
+      solrFailed = true;
+      if (isTimeout(e)) {
+        throw new DeadlineExceededException("SOLR request to " + url + " timed out", e);
+      }
+      throw new SolrUnavailableException("Unable to complete SOLR request to " + url,
+          getRetryAfterSeconds(breaker), e);
+    }
+    catch (RuntimeException e) {
+      _numFailures.increment();
+      throw e;
+    }
+    finally {
+      long latency = latencyNanos;
+      if (solrFailed) breakerCall.ifPresent(CircuitBreaker.Call::failed);
+      else if (latency >= 0) breakerCall.ifPresent(call -> call.succeeded(latency));
+      else breakerCall.ifPresent(CircuitBreaker.Call::cancel);
+      _inFlight.decrementAndGet();
+      updatePoolMetrics();
+      Metrics.SOLR_CALL_DURATION.observeSince(start, handlerName);
+    }
+  }
+
+  private static long getRetryAfterSeconds(Optional<CircuitBreaker> breaker) {
+    return breaker.map(CircuitBreaker::getRetryAfterSeconds).orElse(1L);
+  }
+
+  private static boolean isTimeout(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SocketTimeoutException) return true;
+    }
+    return false;
+  }
+
+  private static boolean isPoolTimeout(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ConnectionPoolTimeoutException) return true;
+    }
+    return false;
+  }
+
+  private void updatePoolMetrics() {
+    PoolStats stats = _pool.getTotalStats();
+    Metrics.SOLR_POOL_CONNECTIONS.set(stats.getLeased(), "leased");
+    Metrics.SOLR_POOL_CONNECTIONS.set(stats.getAvailable(), "available");
+    Metrics.SOLR_POOL_CONNECTIONS.set(stats.getPending(), "pending");
+  }
+
+  /**
+   * @return snapshot of transport statistics since startup
+   */
+  public JSONObject getStatistics() {
+    PoolStats pool = _pool.getTotalStats();
+    return new JSONObject()
+      .put("maxConnections", pool.getMax())
+      .put("leasedConnections", pool.getLeased())
+      .put("availableConnections", pool.getAvailable())
+      .put("pendingLeases", pool.getPending())
+      .put("connectionsOpened", _numConnectionsOpened.sum())
+      .put("inFlight", _inFlight.get())
+      .put("peakInFlight", _peakInFlight.get())
+      .put("requests", _numRequests.sum())
+      .put("failures", _numFailures.sum())
+      .put("connectionWaitTimeouts", _numPoolTimeouts.sum())
+      .put("compressedResponses", _numCompressedResponses.sum())
+      .put("bytesReceived", _bytesReceived.sum());
+  }
+
+  @Override
+  public void close() {
+    _evictor.shutdownNow();
+    _client.close();
+    _pool.close();
+  }
+
+  public static String joinUrl(String seg1, String seg2) {
+    return (seg1.endsWith("/")) ? seg1 + seg2 : seg1 + "/" + seg2;
+  }
+
+  /**
+   * Asks SOLR for gzip-compressed responses and decodes them as they are read.
+   * Decoding happens on the raw entity stream so that handlers see plain
+   * content however they choose to read it.
+   */
+  private class GzipFilter implements ClientRequestFilter, ClientResponseFilter {
+
+    @Override
+    public void filter(ClientRequestContext request) {
+      request.getHeaders().putSingle(HttpHeaders.ACCEPT_ENCODING, GZIP);
+    }
+
+    @Override
+    public void filter(ClientRequestContext request, ClientResponseContext response) throws IOException {
+      if (!response.hasEntity()) return;
+      InputStream stream = new CountingInputStream(response.getEntityStream());
+      if (GZIP.equalsIgnoreCase(response.getHeaderString(HttpHeaders.CONTENT_ENCODING))) {
+        _numCompressedResponses.increment();
+        stream = new GZIPInputStream(stream);
+        response.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+        response.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+      }
+      response.setEntityStream(stream);
+    }
+  }
+
+  private class CountingInputStream extends FilterInputStream {
+
+    public CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) _bytesReceived.increment();
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count > 0) _bytesReceived.add(count);
+      return count;
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package org.gusdb.sitesearch.service.suggest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Immutable, compact index of weighted suggestion terms supporting top-N
+ * prefix lookups.  Each term is indexed at the start of every word it contains
+ * (so "kinase inhibitor" is found by both "kin" and "inh"), and matching is
+ * case-insensitive.
+ *
+ * Keys are stored as (term, offset) pairs sorted by the lower-cased text from
+ * that offset, so no per-key strings are allocated.  A prefix maps to a
+ * contiguous range of keys; a max-weight segment tree over the keys lets the
+ * heaviest N terms in that range be found in O(N log n).
+ */
+public class PrefixIndex {
+
+  private final String[] _terms;
+  private final String[] _lowerTerms;
+  private final int[] _weights;
+
+  // sorted keys
+  private final int[] _keyTerms;
+  private final int[] _keyOffsets;
+
+  // segment tree over keys; each node holds the key index of max weight in its range
+  private final int[] _maxTree;
+  private final int _leafBase;
+
+  /**
+   * @param termWeights map from suggestion term to its weight
+   * @return index of the passed terms
+   */
+  public static PrefixIndex build(Map<String,Integer> termWeights) {
+    return new PrefixIndex(termWeights);
+  }
+
+  private PrefixIndex(Map<String,Integer> termWeights) {
+    int numTerms = termWeights.size();
+    _terms = new String[numTerms];
+    _lowerTerms = new String[numTerms];
+    _weights = new int[numTerms];
+    List<int[]> keys = new ArrayList<>();
+    int termId = 0;
+    for (Map.Entry<String,Integer> entry : termWeights.entrySet()) {
+      _terms[termId] = entry.getKey();
+      _lowerTerms[termId] = entry.getKey().toLowerCase();
+      _weights[termId] = entry.getValue();
+      String lower = _lowerTerms[termId];
+      for (int i = 0; i < lower.length(); i++) {
+        if (Character.isLetterOrDigit(lower.charAt(i)) &&
+            (i == 0 || !Character.isLetterOrDigit(lower.charAt(i - 1)))) {
+          keys.add(new int[] { termId, i });
+        }
+      }
+      termId++;
+    }
+    int[][] sortedKeys = keys.toArray(new int[keys.size()][]);
+    Arrays.sort(sortedKeys, (k1, k2) -> compareSuffixes(k1, k2));
+    int numKeys = sortedKeys.length;
+    _keyTerms = new int[numKeys];
+    _keyOffsets = new int[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      _keyTerms[i] = sortedKeys[i][0];
+      _keyOffsets[i] = sortedKeys[i][1];
+    }
+
+    // build segment tree bottom-up; empty leaves hold -1
+    int base = 1;
+    while (base < Math.max(numKeys, 1)) base <<= 1;
+    _leafBase = base;
+    _maxTree = new int[2 * base];
+    Arrays.fill(_maxTree, -1);
+    for (int i = 0; i < numKeys; i++) {
+      _maxTree[base + i] = i;
+    }
+    for (int node = base - 1; node > 0; node--) {
+      _maxTree[node] = heavier(_maxTree[2 * node], _maxTree[2 * node + 1]);
+    }
+  }
+
+  private int compareSuffixes(int[] k1, int[] k2) {
+    String s1 = _lowerTerms[k1[0]], s2 = _lowerTerms[k2[0]];
+    int i1 = k1[1], i2 = k2[1];
+    while (i1 < s1.length() && i2 < s2.length()) {
+      int diff = s1.charAt(i1++) - s2.charAt(i2++);
+      if (diff != 0) return diff;
+    }
+    return (s1.length() - i1) - (s2.length() - i2);
+  }
+
+  public int size() {
+    return _terms.length;
+  }
+
+  /**
+   * @param prefix text to match against the start of any word in a term
+   * @param maxResults maximum number of terms to return
+   * @return matching terms, heaviest first
+   */
+  public List<String> find(String prefix, int maxResults) {
+    String lowerPrefix = prefix.toLowerCase();
+    int first = firstKeyNotBefore(lowerPrefix);
+    int end = firstKeyAfterMatches(lowerPrefix, first);
+    List<String> results = new ArrayList<>();
+    if (first >= end) return results;
+
+    // repeatedly take the heaviest key remaining, splitting its range around it
+    PriorityQueue<int[]> ranges = new PriorityQueue<>((r1, r2) ->
+      Integer.compare(_weights[_keyTerms[r2[2]]], _weights[_keyTerms[r1[2]]]));
+    ranges.add(new int[] { first, end, maxInRange(first, end) });
+    Set<Integer> seenTerms = new HashSet<>();
+    while (!ranges.isEmpty() && results.size() < maxResults) {
+      int[] range = ranges.poll();
+      int key = range[2];
+      if (seenTerms.add(_keyTerms[key])) {
+        results.add(_terms[_keyTerms[key]]);
+      }
+      if (range[0] < key) ranges.add(new int[] { range[0], key, maxInRange(range[0], key) });
+      if (key + 1 < range[1]) ranges.add(new int[] { key + 1, range[1], maxInRange(key + 1, range[1]) });
+    }
+    return results;
+  }
+
+  // first key index whose text is >= prefix
+  private int firstKeyNotBefore(String prefix) {
+    int lo = 0, hi = _keyTerms.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compareKeyTo(mid, prefix) < 0) lo = mid + 1; else hi = mid;
+    }
+    return lo;
+  }
+
+  // first key index at or after start whose text does not start with prefix
+  private int firstKeyAfterMatches(String prefix, int start) {
+    int lo = start, hi = _keyTerms.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (keyStartsWith(mid, prefix)) lo = mid + 1; else hi = mid;
+    }
+    return lo;
+  }
+
+  private int compareKeyTo(int key, String text) {
+    String s = _lowerTerms[_keyTerms[key]];
+    int i = _keyOffsets[key], j = 0;
+    while (i < s.length() && j < text.length()) {
+      int diff = s.charAt(i++) - text.charAt(j++);
+      if (diff != 0) return diff;
+    }
+    return (s.length() - i) - (text.length() - j);
+  }
+
+  private boolean keyStartsWith(int key, String prefix) {
+    return _lowerTerms[_keyTerms[key]].startsWith(prefix, _keyOffsets[key]);
+  }
+
+  // key index of max weight in [from, to)
+  private int maxInRange(int from, int to) {
+    int result = -1;
+    for (int lo = from + _leafBase, hi = to + _leafBase; lo < hi; lo >>= 1, hi >>= 1) {
+      if ((lo & 1) == 1) result = heavier(result, _maxTree[lo++]);
+      if ((hi & 1) == 1) result = heavier(result, _maxTree[--hi]);
+    }
+    return result;
+  }
+
+  private int heavier(int key1, int key2) {
+    if (key1 < 0) return key2;
+    if (key2 < 0) return key1;
+    return _weights[_keyTerms[key2]] > _weights[_keyTerms[key1]] ? key2 : key1;
+  }
+}
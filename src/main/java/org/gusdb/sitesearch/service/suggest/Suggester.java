@@ -0,0 +1,336 @@
+package org.gusdb.sitesearch.service.suggest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gusdb.fgputil.Tuples.TwoTuple;
+import org.gusdb.sitesearch.service.SolrCalls;
+import org.gusdb.sitesearch.service.cache.SingleFlight;
+import org.gusdb.sitesearch.service.exception.DeadlineExceededException;
+import org.gusdb.sitesearch.service.exception.SiteSearchRuntimeException;
+import org.gusdb.sitesearch.service.exception.SolrUnavailableException;
+import org.gusdb.sitesearch.service.request.Deadline;
+import org.gusdb.sitesearch.service.solr.AdmissionLimiter;
+import org.gusdb.sitesearch.service.solr.IndexVersionTracker;
+import org.gusdb.sitesearch.service.solr.SolrCallExecutor;
+import org.gusdb.sitesearch.service.solr.SolrCoreClient;
+import org.json.JSONObject;
+
+/**
+ * Answers typeahead suggestion requests without a SOLR round trip per keystroke.
+ *
+ * If a suggestion field is configured, all terms in that field are loaded into
+ * an in-memory PrefixIndex at startup (in the background) and reloaded
+ * whenever the core's index version changes; requests are answered locally.
+ * After each load, the local answers for a sample of prefixes are compared
+ * with the SOLR suggest handler's and any disagreement is logged and counted.
+ * If SOLR rejects the load request (e.g. the field does not exist in the
+ * core), the local index is not used for the core.
+ *
+ * Until that index is available, or if no field is configured, requests go to
+ * the SOLR suggest handler and responses are cached by prefix.  A longer prefix
+ * is answered by filtering the cached result of a shorter one if that result
+ * held all of SOLR's matches, and concurrent requests for the same uncached
+ * text share a single SOLR call.  While SOLR is unavailable, the cached result
+ * of a shorter prefix may be filtered even if it was not complete (see
+ * getStaleSuggestions).
+ */
+public class Suggester {
+
+  private static final Logger LOG = LogManager.getLogger(Suggester.class);
+
+  // minimum time between attempts to (re)load the local index after a failure
+  private static final long RELOAD_RETRY_MILLIS = 60000;
+
+  // prefixes (of the heaviest terms) whose local and SOLR suggestions are compared after each load
+  private static final int CONSISTENCY_CHECK_PREFIXES = 5;
+  private static final long CONSISTENCY_CHECK_TIMEOUT_MILLIS = 5000;
+  // local matches considered when looking for each SOLR suggestion of a prefix
+  private static final int CONSISTENCY_CHECK_DEPTH = 1000;
+
+  private static class CachedSuggestions {
+
+    private final List<String> _terms;
+    private final boolean _complete;
+
+    public CachedSuggestions(List<String> terms, boolean complete) {
+      _terms = terms;
+      _complete = complete;
+    }
+  }
+
+  private final SolrCoreClient _solr;
+  private final IndexVersionTracker _indexVersion;
+  private final SolrCallExecutor _executor;
+  private final AdmissionLimiter _limiter;
+  private final Optional<String> _suggestField;
+  private final int _maxIndexTerms;
+  private final int _maxResults;
+  private final int _maxCacheEntries;
+
+  // local index state
+  private volatile PrefixIndex _index;
+  private volatile Optional<String> _loadedVersion = Optional.empty();
+  private volatile long _lastLoadAttempt;
+  private volatile boolean _indexUnavailable;
+  private final AtomicBoolean _loading = new AtomicBoolean(false);
+
+  // fallback cache of SOLR responses
+  private final LinkedHashMap<String,CachedSuggestions> _cache;
+  private Optional<String> _cachedVersion = Optional.empty();
+  private final SingleFlight<String,TwoTuple<List<String>,Boolean>> _solrCalls = new SingleFlight<>("suggest");
+
+  // statistics
+  private final LongAdder _numLocal = new LongAdder();
+  private final LongAdder _numCacheHits = new LongAdder();
+  private final LongAdder _numCacheFiltered = new LongAdder();
+  private final LongAdder _numSolrCalls = new LongAdder();
+  private final LongAdder _numPrefixesChecked = new LongAdder();
+  private final LongAdder _numPrefixesMismatched = new LongAdder();
+
+  /**
+   * @param solr client of the core whose suggestions are served
+   * @param indexVersion tracker of the core's index version
+   * @param executor executor on which to load the local index
+   * @param limiter limiter of concurrent SOLR suggest calls
+   * @param suggestField field holding suggestion terms; if empty, no local index is built
+   * @param maxIndexTerms maximum number of terms to load into the local index
+   * @param maxResults maximum number of suggestions to return
+   * @param maxCacheEntries maximum number of SOLR responses to cache
+   */
+  public Suggester(SolrCoreClient solr, IndexVersionTracker indexVersion, SolrCallExecutor executor,
+      AdmissionLimiter limiter, Optional<String> suggestField, int maxIndexTerms, int maxResults, int maxCacheEntries) {
+    _solr = solr;
+    _indexVersion = indexVersion;
+    _executor = executor;
+    _limiter = limiter;
+    _suggestField = suggestField;
+    _maxIndexTerms = maxIndexTerms;
+    _maxResults = maxResults;
+    _maxCacheEntries = maxCacheEntries;
+    _cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String,CachedSuggestions> eldest) {
+        return size() > _maxCacheEntries;
+      }
+    };
+    // start loading the local index in the background
+    _executor.submit(() -> {
+      refreshIndexIfNeeded();
+      return null;
+    });
+  }
+
+  /**
+   * @param searchText text to complete
+   * @param deadline deadline of the request; applies only if SOLR is called
+   * @return suggested completions, best first
+   */
+  public List<String> getSuggestions(String searchText, Deadline deadline) {
+    refreshIndexIfNeeded();
+    PrefixIndex index = _index;
+    if (index != null) {
+      _numLocal.increment();
+      return index.find(searchText.trim(), _maxResults);
+    }
+    return getSuggestionsFromSolr(searchText, deadline);
+  }
+
+  private void refreshIndexIfNeeded() {
+    if (_suggestField.isEmpty() || _indexUnavailable) return;
+    Optional<String> currentVersion = _indexVersion.getVersion();
+    boolean stale = _index == null || (currentVersion.isPresent() && !currentVersion.equals(_loadedVersion));
+    if (stale && System.currentTimeMillis() - _lastLoadAttempt > RELOAD_RETRY_MILLIS &&
+        _loading.compareAndSet(false, true)) {
+      _lastLoadAttempt = System.currentTimeMillis();
+      _executor.submit(() -> {
+        try {
+          long start = System.currentTimeMillis();
+          Map<String,Integer> terms = SolrCalls.getSuggestionTerms(_solr, _suggestField.get(), _maxIndexTerms);
+          PrefixIndex index = PrefixIndex.build(terms);
+          _index = index;
+          _loadedVersion = currentVersion;
+          LOG.info("Loaded " + index.size() + " suggestion terms for index version " +
+              currentVersion.orElse("<unknown>") + " in " + (System.currentTimeMillis() - start) + "ms");
+          checkConsistency(index, terms);
+        }
+        catch (SolrUnavailableException | DeadlineExceededException e) {
+          LOG.error("Unable to load suggestion terms; will continue to use " +
+              (_index == null ? "SOLR suggest handler" : "previous terms"), e);
+        }
+        catch (SiteSearchRuntimeException e) {
+          // SOLR answered but rejected the request or lacked the field; retrying will not help
+          if (_index == null) {
+            _indexUnavailable = true;
+            LOG.warn("Unable to load suggestion terms from field '" + _suggestField.get() + "' of core '" +
+                _solr.getCore() + "'; answering /suggest from the SOLR suggest handler (" + e.getMessage() + ")");
+            return null;
+          }
+          LOG.error("Unable to load suggestion terms; will continue to use previous terms", e);
+        }
+        catch (RuntimeException e) {
+          LOG.error("Unable to load suggestion terms; will continue to use " +
+              (_index == null ? "SOLR suggest handler" : "previous terms"), e);
+        }
+        finally {
+          _loading.set(false);
+        }
+        return null;
+      });
+    }
+  }
+
+  /**
+   * Compares the suggestions of the freshly loaded index with those of the SOLR
+   * suggest handler for prefixes of the heaviest terms.  They agree on a prefix
+   * if every SOLR suggestion is among the local matches and, when SOLR returned
+   * all of its matches, no local suggestion is missing from them.  Weights may
+   * rank terms differently, so the order of suggestions is not compared.
+   */
+  private void checkConsistency(PrefixIndex index, Map<String,Integer> terms) {
+    List<String> prefixes = terms.entrySet().stream()
+      .sorted(Map.Entry.<String,Integer>comparingByValue().reversed())
+      .map(entry -> entry.getKey().trim().toLowerCase())
+      .filter(term -> term.length() >= 3)
+      .map(term -> term.substring(0, 3))
+      .distinct()
+      .limit(CONSISTENCY_CHECK_PREFIXES)
+      .collect(Collectors.toList());
+    List<String> mismatches = new ArrayList<>();
+    for (String prefix : prefixes) {
+      TwoTuple<List<String>,Boolean> solrResult;
+      try {
+        solrResult = SolrCalls.getSuggestions(_solr, _limiter, prefix, _maxResults,
+            new Deadline(CONSISTENCY_CHECK_TIMEOUT_MILLIS));
+      }
+      catch (RuntimeException e) {
+        LOG.warn("Unable to compare local suggestions with SOLR's: " + e.getMessage());
+        return;
+      }
+      _numPrefixesChecked.increment();
+      Set<String> solrTerms = new HashSet<>(solrResult.getFirst());
+      Set<String> localMatches = new HashSet<>(index.find(prefix, CONSISTENCY_CHECK_DEPTH));
+      boolean agree = localMatches.containsAll(solrTerms) && (!solrResult.getSecond() ||
+          solrTerms.containsAll(index.find(prefix, _maxResults)));
+      if (!agree) {
+        _numPrefixesMismatched.increment();
+        mismatches.add("'" + prefix + "': local " + index.find(prefix, _maxResults) + ", SOLR " + solrResult.getFirst());
+      }
+    }
+    if (!mismatches.isEmpty()) {
+      LOG.warn("Local suggestions of core '" + _solr.getCore() + "' (from field '" + _suggestField.get() +
+          "') disagree with the SOLR suggest handler for " + mismatches.size() + " of " + prefixes.size() +
+          " prefixes: " + String.join("; ", mismatches));
+    }
+  }
+
+  private List<String> getSuggestionsFromSolr(String searchText, Deadline deadline) {
+    Optional<String> currentVersion = _indexVersion.getVersion();
+    synchronized (_cache) {
+      if (!currentVersion.equals(_cachedVersion)) {
+        _cache.clear();
+        _cachedVersion = currentVersion;
+      }
+      CachedSuggestions cached = _cache.get(searchText);
+      if (cached != null) {
+        _numCacheHits.increment();
+        return cached._terms;
+      }
+      // look for a complete result for a shorter prefix (min 3 chars) and filter it
+      for (int length = searchText.length() - 1; length >= 3; length--) {
+        cached = _cache.get(searchText.substring(0, length));
+        if (cached != null && cached._complete) {
+          List<String> terms = cached._terms.stream()
+            .filter(term -> matches(term, searchText))
+            .collect(Collectors.toList());
+          _cache.put(searchText, new CachedSuggestions(terms, true));
+          _numCacheFiltered.increment();
+          return terms;
+        }
+      }
+    }
+    // concurrent requests for the same uncached text share one SOLR call
+    TwoTuple<List<String>,Boolean> result = _solrCalls.execute(searchText, deadline, () -> {
+      _numSolrCalls.increment();
+      return SolrCalls.getSuggestions(_solr, _limiter, searchText, _maxResults, deadline);
+    });
+    synchronized (_cache) {
+      if (currentVersion.equals(_cachedVersion)) {
+        _cache.put(searchText, new CachedSuggestions(result.getFirst(), result.getSecond()));
+      }
+    }
+    return result.getFirst();
+  }
+
+  /**
+   * Finds the best available answer from cached SOLR responses, for use when
+   * SOLR cannot be called: the filtered result of the longest cached prefix
+   * of the text, even if that result did not hold all of SOLR's matches
+   *
+   * @param searchText text to complete
+   * @return suggested completions, or empty if no prefix of the text is cached
+   */
+  public Optional<List<String>> getStaleSuggestions(String searchText) {
+    synchronized (_cache) {
+      for (int length = searchText.length(); length >= 3; length--) {
+        CachedSuggestions cached = _cache.get(searchText.substring(0, length));
+        if (cached != null) {
+          return Optional.of(cached._terms.stream()
+            .filter(term -> matches(term, searchText))
+            .collect(Collectors.toList()));
+        }
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Determines whether a term matches the text in the same way the suggest
+   * handler does: case-insensitively, each word of the text must begin a word
+   * of the term.
+   */
+  private static boolean matches(String term, String searchText) {
+    List<String> termWords = Arrays.asList(term.toLowerCase().split("[^\\p{L}\\p{N}]+"));
+    for (String word : searchText.toLowerCase().trim().split("[^\\p{L}\\p{N}]+")) {
+      if (!word.isEmpty() && termWords.stream().noneMatch(termWord -> termWord.startsWith(word))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return snapshot of suggestion statistics since startup
+   */
+  public JSONObject getStatistics() {
+    PrefixIndex index = _index;
+    int cacheSize;
+    synchronized (_cache) {
+      cacheSize = _cache.size();
+    }
+    return new JSONObject()
+      .put("localIndexTerms", index == null ? 0 : index.size())
+      .put("localIndexVersion", _loadedVersion.orElse(null))
+      .put("localIndexUnavailable", _indexUnavailable)
+      .put("consistencyCheck", new JSONObject()
+        .put("prefixesChecked", _numPrefixesChecked.sum())
+        .put("prefixesMismatched", _numPrefixesMismatched.sum()))
+      .put("localAnswers", _numLocal.sum())
+      .put("cacheSize", cacheSize)
+      .put("cacheHits", _numCacheHits.sum())
+      .put("cacheFilteredHits", _numCacheFiltered.sum())
+      .put("solrCalls", _numSolrCalls.sum())
+      .put("coalescedSolrCalls", _solrCalls.getStatistics());
+  }
+}